@@ -77,11 +77,24 @@ public class RawResource extends Resource {
 	 *            The data to be stored.
 	 */
 	public void setData(byte[] data) {
+		byte[] copy = new byte[data.length];
+		System.arraycopy(data, 0, copy, 0, data.length);
+		adoptData(copy);
+	}
+
+	/**
+	 * Stores the given array itself as internal data without copying it. Used
+	 * by the update service and the caches for arrays they have just filled.
+	 * The caller must not modify the array afterwards.
+	 * 
+	 * @param data
+	 *            The data to be stored.
+	 */
+	public void adoptData(byte[] data) {
 		if (data.length > 1024 * 200)
 			Log.w(LOG_TAG,
 					"You really should not use a normal RawResource for data which is bigger than 200 KiB.");
-		this.data = new byte[data.length];
-		System.arraycopy(data, 0, this.data, 0, data.length);
+		this.data = data;
 	}
 
 	/**
@@ -52,6 +52,18 @@ public abstract class Resource {
 	 */
 	protected ResourceConfig mResourceConfig = new ResourceConfig();
 
+	/**
+	 * The entity tag the authority delivered together with the content. Might
+	 * be <code>null</code> if unknown.
+	 */
+	protected String mETag = null;
+
+	/**
+	 * The time of the last modification (UNIX epoch in ms) the authority
+	 * delivered together with the content. 0 if unknown.
+	 */
+	protected long mLastModified = 0L;
+
 	public Resource(Uri path) {
 		if (path.getPath() == null || path.getPath().isEmpty()) {
 			throw new IllegalArgumentException(
@@ -94,6 +106,22 @@ public abstract class Resource {
 		this.mStatus = status;
 	}
 
+	public String getETag() {
+		return mETag;
+	}
+
+	public void setETag(String eTag) {
+		this.mETag = eTag;
+	}
+
+	public long getLastModified() {
+		return mLastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.mLastModified = lastModified;
+	}
+
 	/**
 	 * Puts the resource in a closed status
 	 */
@@ -119,7 +119,19 @@ public class ResourceConfig {
 	 *            Byte array created using the <code>marshall</code> method
 	 */
 	public void unmarshall(byte[] raw) {
-		ByteBuffer bb = ByteBuffer.wrap(raw);
+		this.unmarshall(ByteBuffer.wrap(raw));
+	}
+
+	/**
+	 * Same as <code>unmarshall(byte[])</code>, but reads the marshalled
+	 * configuration starting at the current position of the given buffer.
+	 * This allows to reuse buffers when parsing many configurations.
+	 * 
+	 * @param bb
+	 *            Buffer positioned at data created using the
+	 *            <code>marshall</code> method
+	 */
+	public void unmarshall(ByteBuffer bb) {
 		int version = bb.getInt();
 
 		switch (version) {
@@ -47,21 +47,38 @@ public class SyncIntent {
 	public static final String EXTRA_ERROR = "e";
 
 	/**
-	 * Already read bytes as an INTEGER
+	 * Already read bytes (as transferred) as an INTEGER
 	 */
 	public static final String EXTRA_PROGRESS_BYTES_READ = "pr";
 
 	/**
-	 * Total number of bytes of the resource as an INTEGER
+	 * Total number of bytes of the resource (as transferred) as an INTEGER
 	 */
 	public static final String EXTRA_PROGRESS_BYTES_TOTAL = "pt";
 
 	/**
-	 * Current transmission rate in bytes/s as an INTEGER. Might be -1 if it
-	 * cant be computed.
+	 * Current transmission rate of all workers combined in bytes/s as an
+	 * INTEGER. Might be -1 if it cant be computed.
 	 */
 	public static final String EXTRA_PROGRESS_BYTES_PER_SECOND = "bps";
 
+	/**
+	 * Already read bytes after decoding a compressed transfer as an INTEGER.
+	 * Equals EXTRA_PROGRESS_BYTES_READ if the content was not compressed.
+	 */
+	public static final String EXTRA_PROGRESS_BYTES_DECODED = "pd";
+
+	/**
+	 * Bytes read (as transferred) by all workers of the update session so far
+	 * as a LONG
+	 */
+	public static final String EXTRA_PROGRESS_SESSION_BYTES = "ps";
+
+	/**
+	 * Number of resources currently loaded by the workers as an INTEGER
+	 */
+	public static final String EXTRA_PROGRESS_ACTIVE = "pa";
+
 	/**
 	 * Cache method as an INTEGER (see CacheProvider for details)
 	 */
@@ -81,4 +98,25 @@ public class SyncIntent {
 	 * Proxy extras as an BYTE ARRAY (see ResoruceProxy for details)
 	 */
 	public static final String EXTRA_PROXY_EXTRA = "pe";
+
+	/**
+	 * Optional path of the manifest relative to the authority as STRING. If
+	 * given, only the resources the manifest lists as changed are requested
+	 * (see Manifest for details)
+	 */
+	public static final String EXTRA_MANIFEST_PATH = "mf";
+
+	/**
+	 * Optional flag as BOOLEAN. If true, resources which are not cached are
+	 * loaded in the worst quality on slow connections and upgraded later on
+	 * (see UpdateWorker for details)
+	 */
+	public static final String EXTRA_PROGRESSIVE = "pg";
+
+	/**
+	 * Optional time in ms as LONG after which an update session does not start
+	 * any further requests. 0 disables the limit (see UpdateService for the
+	 * default)
+	 */
+	public static final String EXTRA_SESSION_TIMEOUT = "st";
 }
@@ -0,0 +1,304 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.background;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.connectivity.ConnectionGuru;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Limits the number of {@link UpdateWorker}s which are accessing the network
+ * at the same time. All workers of an update session share one controller and
+ * pass it before every request.
+ * 
+ * <p>
+ * The limit is adjusted using AIMD (additive increase, multiplicative
+ * decrease): after each window of as many requests as the current limit, it
+ * is halved if there were errors or if the average request latency exceeded
+ * twice the lowest latency seen in this session. The latency is the time
+ * until the response headers arrived, so it does not depend on the size of
+ * the content. Otherwise it is increased by one as long as the throughput of
+ * the window does not drop. Slow connections start with a single worker,
+ * faster ones with two.
+ * 
+ * <p>
+ * The controller also bounds the session in time: once its deadline has
+ * passed, the workers do not start any further requests. Besides, it
+ * remembers the resources requeued after stalled transfers, so that each of
+ * them is requeued only once per session.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ConcurrencyController {
+
+	private static final String TAG = "ConcurrencyController";
+
+	/** Latency rise (relative to the minimum) regarded as congestion */
+	private static final float LATENCY_BACKOFF_FACTOR = 2f;
+
+	/**
+	 * The limit is only increased if the throughput stays above this share of
+	 * the previous window's throughput
+	 */
+	private static final float THROUGHPUT_KEEP_FACTOR = 0.9f;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mGateOpened = mLock.newCondition();
+
+	private final int mMaxWorkers;
+
+	/** Number of workers allowed to access the network */
+	private int mLimit;
+
+	/** Number of workers currently accessing the network */
+	private int mActive = 0;
+
+	// measurements of the current window
+	private int mWindowRequests = 0;
+	private int mWindowErrors = 0;
+	private long mWindowBytes = 0L;
+	private long mWindowLatencySum = 0L;
+	private int mWindowLatencies = 0;
+	private long mWindowStart = 0L;
+
+	/** Throughput of the previous window in bytes/s, -1 if unknown */
+	private float mLastThroughput = -1f;
+
+	/** Lowest latency of a successful request in this session */
+	private long mMinLatency = Long.MAX_VALUE;
+
+	/** Point in time (ms) after which no requests are started, 0 if none */
+	private long mDeadline = 0L;
+
+	/** Resources requeued in this session */
+	private final Set<RawResource> mRequeued = Collections
+			.newSetFromMap(new IdentityHashMap<RawResource, Boolean>());
+
+	/**
+	 * @param connection
+	 *            The current connection (see {@link ConnectionGuru})
+	 * @param maxWorkers
+	 *            Number of workers in this session and therefore the upper
+	 *            bound of the limit
+	 */
+	public ConcurrencyController(int connection, int maxWorkers) {
+		this.mMaxWorkers = Math.max(1, maxWorkers);
+		this.mLimit = getInitialLimit(connection, mMaxWorkers);
+	}
+
+	/**
+	 * Returns the number of concurrent workers a session starts with.
+	 */
+	public static int getInitialLimit(int connection, int maxWorkers) {
+		switch (connection) {
+		case ConnectionGuru.CONNECTION_MOBILE_FAST:
+		case ConnectionGuru.CONNECTION_WIFI:
+			return Math.min(2, maxWorkers);
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Blocks until the calling worker may access the network. Each call has to
+	 * be followed by either <code>release(...)</code> or
+	 * <code>releaseUnused()</code>.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		mLock.lock();
+		try {
+			while (mActive >= mLimit)
+				mGateOpened.await();
+			mActive++;
+
+			if (mWindowStart == 0L)
+				mWindowStart = TimeProvider.currentTimeMillis();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Called after a request has been finished.
+	 * 
+	 * @param bytes
+	 *            Number of bytes loaded by the request
+	 * @param latency
+	 *            Time from sending the request until the response headers
+	 *            arrived in ms (excluding the transfer of the content), -1 if
+	 *            there was no response
+	 * @param error
+	 *            <code>true</code> if the request failed
+	 */
+	public void release(long bytes, long latency, boolean error) {
+		mLock.lock();
+		try {
+			mActive--;
+
+			mWindowRequests++;
+			mWindowBytes += bytes;
+			if (latency >= 0) {
+				mWindowLatencySum += latency;
+				mWindowLatencies++;
+			}
+			if (error)
+				mWindowErrors++;
+			else if (latency > 0)
+				mMinLatency = Math.min(mMinLatency, latency);
+
+			if (mWindowRequests >= mLimit)
+				adjust();
+
+			mGateOpened.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Called instead of <code>release(...)</code> if no request has been made
+	 * (e.g. because the queue was empty).
+	 */
+	public void releaseUnused() {
+		mLock.lock();
+		try {
+			mActive--;
+			mGateOpened.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Evaluates the finished window and adjusts the limit. The lock must be
+	 * held.
+	 */
+	private void adjust() {
+		final long NOW = TimeProvider.currentTimeMillis();
+		final long duration = Math.max(1L, NOW - mWindowStart);
+		final float throughput = 1000f * mWindowBytes / duration;
+		final float avgLatency = mWindowLatencies > 0 ? mWindowLatencySum
+				/ (float) mWindowLatencies : -1f;
+
+		final int oldLimit = mLimit;
+		if (mWindowErrors > 0
+				|| (mMinLatency != Long.MAX_VALUE && avgLatency > LATENCY_BACKOFF_FACTOR
+						* mMinLatency)) {
+			// congestion: multiplicative decrease
+			mLimit = Math.max(1, mLimit / 2);
+		} else if (mLastThroughput < 0
+				|| throughput >= THROUGHPUT_KEEP_FACTOR * mLastThroughput) {
+			// still gaining: additive increase
+			mLimit = Math.min(mMaxWorkers, mLimit + 1);
+		}
+
+		onWindowFinished(throughput, avgLatency, mWindowErrors, oldLimit,
+				mLimit);
+
+		mLastThroughput = throughput;
+		mWindowRequests = 0;
+		mWindowErrors = 0;
+		mWindowBytes = 0L;
+		mWindowLatencySum = 0L;
+		mWindowLatencies = 0;
+		mWindowStart = NOW;
+	}
+
+	/**
+	 * Called (with the lock held) after each window. Sub classes might record
+	 * the measurements.
+	 * 
+	 * @param throughput
+	 *            Throughput of the window in bytes/s
+	 * @param avgLatency
+	 *            Average time until the response headers arrived in ms, -1
+	 *            if there were no responses
+	 */
+	protected void onWindowFinished(float throughput, float avgLatency,
+			int errors, int oldLimit, int newLimit) {
+		if (oldLimit != newLimit)
+			Log.d(TAG, "Concurrency " + oldLimit + " -> " + newLimit + " ("
+					+ (int) throughput + " B/s, " + (int) avgLatency + " ms, "
+					+ errors + " errors)");
+	}
+
+	/**
+	 * Sets the point in time after which the workers do not start any further
+	 * requests. Requests running at that time are finished.
+	 * 
+	 * @param deadline
+	 *            Point in time (ms), 0 if the session is not bounded
+	 */
+	public void setDeadline(long deadline) {
+		mLock.lock();
+		try {
+			mDeadline = deadline;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the deadline of the session has passed.
+	 */
+	public boolean isExpired() {
+		mLock.lock();
+		try {
+			return mDeadline > 0L
+					&& TimeProvider.currentTimeMillis() >= mDeadline;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Records that the resource is requeued.
+	 * 
+	 * @return <code>false</code> if it has been requeued before in this
+	 *         session
+	 */
+	boolean markRequeued(RawResource r) {
+		mLock.lock();
+		try {
+			return mRequeued.add(r);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current number of workers allowed to access the network.
+	 */
+	public int getLimit() {
+		mLock.lock();
+		try {
+			return mLimit;
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -27,6 +27,7 @@ import de.tum.smartsync.RawResource;
 import de.tum.smartsync.Resource;
 import de.tum.smartsync.background.statistics.StatisticProcessor;
 import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.connectivity.BandwidthEstimator;
 import de.tum.smartsync.connectivity.ConnectionGuru;
 import de.tum.smartsync.helper.Helper;
 import de.tum.smartsync.helper.TimeProvider;
@@ -82,6 +83,12 @@ public class DecisionAlgorithm {
 	/** The associated cache */
 	private CacheProvider mCache;
 
+	/**
+	 * Measured connection properties. Might be <code>null</code>, then the
+	 * static factors of the {@link ConnectionGuru} are used.
+	 */
+	private BandwidthEstimator mEstimator = null;
+
 	/** The final list of the resource to update */
 	private LinkedList<RawResource> mUpdateList;
 
@@ -144,6 +151,13 @@ public class DecisionAlgorithm {
 		this.statsUsage = statsUsage;
 	}
 
+	/**
+	 * Sets the estimator providing the measured speed of the connections.
+	 */
+	public void setBandwidthEstimator(BandwidthEstimator estimator) {
+		this.mEstimator = estimator;
+	}
+
 	/**
 	 * Runs the algorithm and creates the list of the resource needed to be
 	 * updated
@@ -226,7 +240,7 @@ public class DecisionAlgorithm {
 	 * Reward fast connection
 	 */
 	private float ruleConnection() {
-		final float currentSpeed = ConnectionGuru.getSpeedFactor(connection);
+		final float currentSpeed = getSpeedFactor(connection);
 		return currentSpeed * RULE_CONNECTION_FACTOR;
 	}
 
@@ -235,7 +249,8 @@ public class DecisionAlgorithm {
 	 */
 	private float ruleQualityGain(Resource r) {
 		final int currentQuality = mCache.getCachingStatus(r);
-		final int expectedQuality = ConnectionGuru
+		final int expectedQuality = mEstimator != null ? mEstimator
+				.getExpectedQuality(connection) : ConnectionGuru
 				.getExpectedQuality(connection);
 		final float qualityGain = expectedQuality - currentQuality;
 		return Math.max(0f, qualityGain * RULE_QUALITY_GAIN_FACTOR);
@@ -254,7 +269,7 @@ public class DecisionAlgorithm {
 	 * improvements
 	 */
 	private float ruleConnectionForecast() {
-		final float currentSpeed = ConnectionGuru.getSpeedFactor(connection);
+		final float currentSpeed = getSpeedFactor(connection);
 		final float futureSpeed = averageConnectionSpeedNextHour();
 		// Log.d(TAG, "CurrentSpeed: " + currentSpeed + " and FutureSpeed: "
 		// + futureSpeed);
@@ -408,6 +423,16 @@ public class DecisionAlgorithm {
 				hour));
 
 		int conn = ConnectionGuru.toNearestRealConnectionType(average);
+		return getSpeedFactor(conn);
+	}
+
+	/**
+	 * Returns the measured speed factor of the connection type if available,
+	 * otherwise the static one.
+	 */
+	private float getSpeedFactor(int conn) {
+		if (mEstimator != null)
+			return mEstimator.getSpeedFactor(conn);
 		return ConnectionGuru.getSpeedFactor(conn);
 	}
 
@@ -0,0 +1,112 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.background;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.caching.CacheIndex;
+import de.tum.smartsync.connectivity.Manifest;
+
+/**
+ * <p>
+ * Compares the {@link Manifest} of an authority with the {@link CacheIndex}
+ * in order to find the resources which have not changed since they were
+ * cached. Those do not need a request at all.
+ * 
+ * <p>
+ * The resources of the work queue are sorted by their uri, then the three
+ * sorted lists are joined by merging them in a single pass. A resource is
+ * unchanged if the version of the manifest equals the ETag of the cached
+ * content. Resources missing in the manifest or in the index are regarded as
+ * changed.
+ * 
+ * <p>
+ * The version does not tell anything about the quality, so a connection
+ * decisive resource is only skipped if its cached content is at least of the
+ * expected quality, like <code>UpdateService.shouldUpdate(...)</code>
+ * decides. Otherwise the upgrade would never be requested.
+ * 
+ * @author Daniel
+ * 
+ */
+class ManifestFilter {
+
+	/**
+	 * A resource of the work queue with its uri as sort key
+	 */
+	private static class Keyed implements Comparable<Keyed> {
+		final String mUri;
+		final RawResource mResource;
+
+		Keyed(RawResource r) {
+			this.mUri = r.getPathUri().toString();
+			this.mResource = r;
+		}
+
+		@Override
+		public int compareTo(Keyed another) {
+			return mUri.compareTo(another.mUri);
+		}
+	}
+
+	/**
+	 * Returns the resources of the work queue which have not changed and
+	 * need no upgrade. The work queue itself is not modified.
+	 * 
+	 * @param expectedQuality
+	 *            The quality expected for the current connection
+	 */
+	static List<RawResource> findUnchanged(List<RawResource> workQueue,
+			Manifest manifest, CacheIndex index, int expectedQuality) {
+		Keyed[] queue = new Keyed[workQueue.size()];
+		int n = 0;
+		for (RawResource r : workQueue)
+			queue[n++] = new Keyed(r);
+		Arrays.sort(queue);
+
+		List<RawResource> unchanged = new LinkedList<RawResource>();
+		int m = 0;
+		int c = 0;
+		for (Keyed k : queue) {
+			// advance both lists up to the uri of the resource
+			while (m < manifest.size()
+					&& manifest.getPath(m).compareTo(k.mUri) < 0)
+				m++;
+			while (c < index.size() && index.getUri(c).compareTo(k.mUri) < 0)
+				c++;
+
+			if (m == manifest.size() || c == index.size())
+				break;
+			if (!manifest.getPath(m).equals(k.mUri)
+					|| !index.getUri(c).equals(k.mUri))
+				continue;
+
+			final String eTag = index.getETag(c);
+			if (eTag == null || !eTag.equals(manifest.getVersion(m)))
+				continue;
+
+			// the cached content is up to date, but maybe inferior
+			if (index.getStatus(c) >= expectedQuality
+					|| !k.mResource.getConfig().isConnectionDecisive())
+				unchanged.add(k.mResource);
+		}
+
+		return unchanged;
+	}
+}
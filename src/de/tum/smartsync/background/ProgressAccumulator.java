@@ -0,0 +1,256 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.background;
+
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Collects the progress of all {@link UpdateWorker}s of an update session and
+ * publishes a combined snapshot at a fixed rate, regardless of how many
+ * workers and resources there are.
+ * 
+ * <p>
+ * Every worker reports into its own {@link Slot}, which it passes to its
+ * resource proxy as progress listener. A slot has a single writer, so
+ * reporting takes no lock and allocates nothing: the values are published by
+ * a sequence counter, which lets the publisher thread detect and repeat torn
+ * reads.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ProgressAccumulator implements Runnable {
+
+	private static final String TAG = "ProgressAccumulator";
+
+	/** Snapshots are published at most this often (4 Hz) */
+	public static final long PUBLISH_INTERVAL = 250; // 250ms
+
+	private final UpdateService mService;
+
+	private final Slot[] mSlots;
+	private int mSlotCount = 0;
+
+	private Thread mThread = null;
+	private volatile boolean mRunning = false;
+
+	// only accessed by the publishing thread
+	private long mLastPublish = 0L;
+	private long mLastSessionBytes = 0L;
+	private int mLastVersion = -1;
+
+	/**
+	 * @param service
+	 *            Receives errors and updated resources directly and the
+	 *            progress snapshots periodically
+	 * @param maxSlots
+	 *            Maximum number of workers reporting into this accumulator
+	 */
+	public ProgressAccumulator(UpdateService service, int maxSlots) {
+		this.mService = service;
+		this.mSlots = new Slot[maxSlots];
+	}
+
+	/**
+	 * Creates the slot of a further worker. Must be called before
+	 * <code>start()</code>.
+	 */
+	public Slot newSlot() {
+		if (mThread != null)
+			throw new IllegalStateException("Already started");
+
+		Slot slot = new Slot();
+		mSlots[mSlotCount++] = slot;
+		return slot;
+	}
+
+	/**
+	 * Starts publishing snapshots.
+	 */
+	public void start() {
+		mRunning = true;
+		mThread = new Thread(this, TAG);
+		mThread.start();
+	}
+
+	/**
+	 * Stops publishing and publishes a last snapshot.
+	 */
+	public void stop() {
+		mRunning = false;
+		if (mThread == null)
+			return;
+
+		mThread.interrupt();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while waiting for the publisher");
+		}
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			try {
+				Thread.sleep(PUBLISH_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			publish(false);
+		}
+		publish(true);
+	}
+
+	/**
+	 * Combines the slots into one snapshot and hands it to the service.
+	 * 
+	 * @param force
+	 *            Publish even if nothing has changed
+	 */
+	private void publish(boolean force) {
+		int version = 0;
+		long sessionBytes = 0L;
+		int active = 0;
+
+		// the most recently updated resource is reported as current one
+		long latestUpdate = -1L;
+		String uri = null;
+		int bytes = 0;
+		int total = -1;
+		int decoded = 0;
+
+		for (int i = 0; i < mSlotCount; i++) {
+			Slot s = mSlots[i];
+
+			int seq;
+			String sUri;
+			int sBytes, sTotal, sDecoded;
+			long sCompleted, sUpdate;
+			do {
+				// odd while the writer is in progress
+				while (((seq = s.mSeq) & 1) != 0)
+					Thread.yield();
+				sUri = s.mUri;
+				sBytes = s.mBytes;
+				sTotal = s.mTotal;
+				sDecoded = s.mDecoded;
+				sCompleted = s.mCompleted;
+				sUpdate = s.mLastUpdate;
+			} while (seq != s.mSeq);
+
+			version += seq;
+			sessionBytes += sCompleted + sBytes;
+			if (sUri != null && (sTotal < 0 || sBytes < sTotal))
+				active++;
+
+			if (sUri != null && sUpdate > latestUpdate) {
+				latestUpdate = sUpdate;
+				uri = sUri;
+				bytes = sBytes;
+				total = sTotal;
+				decoded = sDecoded;
+			}
+		}
+
+		if (!force && (uri == null || version == mLastVersion))
+			return;
+
+		final long now = TimeProvider.currentTimeMillis();
+		int bytesPerSecond = -1;
+		if (mLastPublish != 0L && now > mLastPublish) {
+			final long byteDiff = sessionBytes - mLastSessionBytes;
+
+			// 1000, as there are 1000ms per second
+			bytesPerSecond = (int) ((1000 * byteDiff) / (now - mLastPublish));
+		}
+
+		mLastVersion = version;
+		mLastPublish = now;
+		mLastSessionBytes = sessionBytes;
+
+		mService.publishProgress(uri, bytes, total, bytesPerSecond, decoded,
+				sessionBytes, active);
+	}
+
+	/**
+	 * <p>
+	 * The progress of a single worker. Errors and updated resources are
+	 * forwarded to the service immediately.
+	 * 
+	 * <p>
+	 * Progress may only be reported by one thread at a time, which is the case
+	 * for a resource proxy (see <code>informProgressListener(...)</code>).
+	 */
+	public class Slot implements ProgressListener {
+
+		/** Incremented before and after each write */
+		private volatile int mSeq = 0;
+
+		private volatile String mUri = null;
+		private volatile int mBytes = 0;
+		private volatile int mTotal = -1;
+		private volatile int mDecoded = 0;
+
+		/**
+		 * Bytes of the resources finished before the current one and of
+		 * earlier attempts of the current one
+		 */
+		private volatile long mCompleted = 0L;
+
+		private volatile long mLastUpdate = 0L;
+
+		private Slot() {
+		}
+
+		@Override
+		public void onProgress(String currentUri, int byteCnt, int progress,
+				int bytesPerSecond, int decodedCnt) {
+			final int seq = mSeq;
+			mSeq = seq + 1;
+
+			// a new resource: the last one is finished. The same resource
+			// starting over (e.g. a retry or the fallback of a batch) keeps
+			// the bytes already transferred, so the session bytes never
+			// decrease.
+			if (currentUri != mUri
+					&& (currentUri == null || !currentUri.equals(mUri))) {
+				mCompleted += mBytes;
+				mUri = currentUri;
+			} else if (byteCnt < mBytes) {
+				mCompleted += mBytes;
+			}
+			mBytes = byteCnt;
+			mTotal = progress;
+			mDecoded = decodedCnt;
+			mLastUpdate = TimeProvider.currentTimeMillis();
+
+			mSeq = seq + 2;
+		}
+
+		@Override
+		public void updatedResource(String uri) {
+			mService.updatedResource(uri);
+		}
+
+		@Override
+		public void onError(String uri, String message) {
+			mService.onError(uri, message);
+		}
+	}
+}
@@ -37,9 +37,12 @@ public interface ProgressListener {
 	 * @param bytesPerSecond
 	 *            Current transmission rate in bytes/s. Might be -1 if it cant
 	 *            be computed.
+	 * @param decodedCnt
+	 *            Number of bytes already loaded after decoding. Equals
+	 *            byteCnt if the content is not encoded.
 	 */
 	public void onProgress(String currentUri, int byteCnt, int progress,
-			int bytesPerSecond);
+			int bytesPerSecond, int decodedCnt);
 
 	/**
 	 * Called when a resource if finally updated and ready to be retrieved by
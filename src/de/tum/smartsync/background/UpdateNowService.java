@@ -17,9 +17,7 @@ package de.tum.smartsync.background;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
 import android.util.Log;
@@ -43,7 +41,8 @@ import de.tum.smartsync.manager.ResourceManagerTableHelper;
  */
 public class UpdateNowService extends UpdateService {
 
-	private final static int NUM_WORKERS = 3;
+	/** Maximum number of concurrent workers */
+	private final static int MAX_WORKERS = 4;
 
 	static final String TAG = "UpdateNowService";
 
@@ -60,31 +59,7 @@ public class UpdateNowService extends UpdateService {
 		List<RawResource> workQueue = ResourceManagerTableHelper
 				.getAllResources(context, mRessourceManagerName, cacheMethod);
 
-		ReentrantLock lockQueue = new ReentrantLock();
-		ReentrantLock lockCache = new ReentrantLock();
-
-		// create workers
-		LinkedList<Thread> workers = new LinkedList<Thread>();
-		for (int i = 0; i < NUM_WORKERS; i++) {
-			UpdateWorker worker = new UpdateWorker(getApplicationContext(),
-					lockCache, cache, lockQueue, workQueue, proxyMethod,
-					proxyExtras, this);
-			Thread t = new Thread(worker);
-			workers.add(t);
-		}
-
-		// start workers
-		for (Thread t : workers)
-			t.start();
-
-		// wait for them to finish
-		for (Thread t : workers) {
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		runWorkers(context, workQueue, MAX_WORKERS);
 	}
 
 }
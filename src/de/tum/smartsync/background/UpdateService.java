@@ -17,6 +17,12 @@ package de.tum.smartsync.background;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.app.IntentService;
 import android.content.Context;
@@ -26,7 +32,13 @@ import de.tum.smartsync.RawResource;
 import de.tum.smartsync.Resource;
 import de.tum.smartsync.SyncIntent;
 import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.connectivity.BandwidthEstimator;
 import de.tum.smartsync.connectivity.ConnectionGuru;
+import de.tum.smartsync.connectivity.HttpConnectionPool;
+import de.tum.smartsync.connectivity.Manifest;
+import de.tum.smartsync.connectivity.ResourceProxy;
+import de.tum.smartsync.connectivity.TrafficBudget;
+import de.tum.smartsync.helper.TimeProvider;
 
 /**
  * Abstract class providing the necessary methods for UpdateServices for parsing
@@ -40,6 +52,12 @@ public abstract class UpdateService extends IntentService implements
 
 	private final static String TAG = "UpdateService";
 
+	/**
+	 * Time after which a session does not start any further requests, unless
+	 * the intent specifies another one
+	 */
+	public static final long DEFAULT_SESSION_TIMEOUT = 10 * TimeProvider.MINUTE;
+
 	public UpdateService(String name) {
 		super(name);
 	}
@@ -49,8 +67,17 @@ public abstract class UpdateService extends IntentService implements
 	public String cacheName;
 	public int proxyMethod;
 	public byte[] proxyExtras;
+	/** Might be <code>null</code> if the manifest mode is not used */
+	public String manifestPath;
+	/** Whether missing resources are loaded in low quality first */
+	public boolean progressive;
+	/** Time in ms after which no further requests are started, 0 if none */
+	public long sessionTimeout;
 	public CacheProvider cache;
 
+	/** Reused for all progress broadcasts */
+	private Intent mProgressIntent = null;
+
 	@Override
 	protected void onHandleIntent(Intent intent) {
 		// Debug.startMethodTracing("BACKRGOUND");
@@ -65,6 +92,9 @@ public abstract class UpdateService extends IntentService implements
 		// Parse all the intent content
 		parseIntentContent(intent);
 
+		// network setup overlaps with the local work before the downloads
+		prewarm();
+
 		Log.d(TAG, "Received an UPDATE_NOW intent from "
 				+ mRessourceManagerName + ".");
 
@@ -120,6 +150,33 @@ public abstract class UpdateService extends IntentService implements
 		if (proxyExtras == null)
 			throw new IllegalArgumentException(
 					"Expected EXTRA_PROXY_EXTRA but it was not given.");
+
+		// optional
+		manifestPath = intent.getStringExtra(SyncIntent.EXTRA_MANIFEST_PATH);
+		progressive = intent.getBooleanExtra(SyncIntent.EXTRA_PROGRESSIVE,
+				false);
+		sessionTimeout = Math.max(0L, intent.getLongExtra(
+				SyncIntent.EXTRA_SESSION_TIMEOUT, DEFAULT_SESSION_TIMEOUT));
+	}
+
+	/**
+	 * Lets a resource proxy resolve the authority and open the connections
+	 * the first workers will need.
+	 */
+	private void prewarm() {
+		final int conn = new ConnectionGuru(this).getCurrentConnection();
+		if (conn == ConnectionGuru.CONNECTION_NONE)
+			return;
+
+		try {
+			ResourceProxy proxy = ResourceProxy.getResourceProxy(this,
+					proxyMethod, proxyExtras);
+			proxy.prewarm(ConcurrencyController.getInitialLimit(conn,
+					HttpConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+		} catch (IllegalArgumentException e) {
+			// the workers will report it
+			Log.w(TAG, "Unable to prewarm: " + e.getMessage());
+		}
 	}
 
 	/**
@@ -138,6 +195,138 @@ public abstract class UpdateService extends IntentService implements
 		sendBroadcast(bcIntent);
 	}
 
+	/**
+	 * Updates all resources of the work queue using several
+	 * {@link UpdateWorker}s and blocks until all of them have finished. The
+	 * number of workers accessing the network at the same time is adapted by a
+	 * {@link ConcurrencyController}, which also stops the workers once the
+	 * session timeout has passed.
+	 * 
+	 * @param maxWorkers
+	 *            Maximum number of concurrent workers
+	 */
+	protected void runWorkers(Context context, List<RawResource> workQueue,
+			int maxWorkers) {
+		ConnectionGuru connGuru = new ConnectionGuru(context);
+		ConcurrencyController controller = createConcurrencyController(
+				connGuru.getCurrentConnection(), maxWorkers);
+		if (sessionTimeout > 0)
+			controller.setDeadline(TimeProvider.currentTimeMillis()
+					+ sessionTimeout);
+
+		// resources the manifest lists as unchanged need no request at all
+		if (manifestPath != null)
+			workQueue = applyManifest(context, workQueue,
+					connGuru.getCurrentConnection());
+
+		ReentrantLock lockQueue = new ReentrantLock();
+		ReentrantLock lockCache = new ReentrantLock();
+
+		// create workers; there is no use in more workers than resources
+		final int numWorkers = Math.max(1,
+				Math.min(maxWorkers, workQueue.size()));
+		ProgressAccumulator progress = new ProgressAccumulator(this,
+				numWorkers);
+		LinkedList<Thread> workers = new LinkedList<Thread>();
+		for (int i = 0; i < numWorkers; i++) {
+			UpdateWorker worker = new UpdateWorker(getApplicationContext(),
+					lockCache, cache, lockQueue, workQueue, proxyMethod,
+					proxyExtras, progress.newSlot(), controller);
+			worker.setProgressive(progressive);
+			Thread t = new Thread(worker);
+			workers.add(t);
+		}
+
+		// start workers
+		progress.start();
+		for (Thread t : workers)
+			t.start();
+
+		// wait for them to finish
+		for (Thread t : workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		progress.stop();
+
+		// the estimates and the traffic are only written now and then while
+		// loading
+		BandwidthEstimator.getInstance(context).persist();
+		TrafficBudget.getInstance(context).persist();
+
+		Log.d(TAG, "Finished with a concurrency of " + controller.getLimit());
+	}
+
+	/**
+	 * Loads the manifest of the authority and returns the resources of the
+	 * work queue which have changed. The cached content of the unchanged ones
+	 * is revalidated, just like after a "304 Not Modified". If the manifest is
+	 * not available, all resources are requested as usual.
+	 * 
+	 * @return A new work queue
+	 */
+	private List<RawResource> applyManifest(Context context,
+			List<RawResource> workQueue, int conn) {
+		final long start = TimeProvider.currentTimeMillis();
+
+		Manifest manifest;
+		try {
+			ResourceProxy proxy = ResourceProxy.getResourceProxy(context,
+					proxyMethod, proxyExtras);
+			proxy.setCurrentConnection(conn);
+			manifest = proxy.loadManifest(manifestPath);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to load manifest: " + e.getMessage());
+			return workQueue;
+		} catch (IllegalArgumentException e) {
+			// the workers will report it
+			Log.w(TAG, "Unable to load manifest: " + e.getMessage());
+			return workQueue;
+		}
+		if (manifest == null) {
+			Log.w(TAG, "The resource proxy does not support manifests.");
+			return workQueue;
+		}
+
+		final int expectedQuality = BandwidthEstimator.getInstance(context)
+				.getExpectedQuality(conn);
+		List<RawResource> unchanged = ManifestFilter.findUnchanged(workQueue,
+				manifest, cache.getIndex(), expectedQuality);
+		Set<RawResource> skipped = Collections
+				.newSetFromMap(new IdentityHashMap<RawResource, Boolean>());
+		skipped.addAll(unchanged);
+
+		List<RawResource> changed = new LinkedList<RawResource>();
+		for (RawResource r : workQueue) {
+			if (!skipped.contains(r))
+				changed.add(r);
+		}
+
+		// the workers have not been started, so the cache is not locked
+		for (RawResource r : unchanged) {
+			cache.touch(r);
+			fireUpdateResource(r.getPathUri().toString());
+		}
+
+		Log.d(TAG, "Manifest of " + manifest.size() + " resources left "
+				+ changed.size() + " of " + workQueue.size()
+				+ " resources to update in "
+				+ (TimeProvider.currentTimeMillis() - start) + "ms.");
+		return changed;
+	}
+
+	/**
+	 * Creates the controller shared by the workers of one session.
+	 */
+	protected ConcurrencyController createConcurrencyController(
+			int connection, int maxWorkers) {
+		return new ConcurrencyController(connection, maxWorkers);
+	}
+
 	/**
 	 * Basic update decision method for very, very basic decisions
 	 */
@@ -158,7 +347,8 @@ public abstract class UpdateService extends IntentService implements
 			if (!r.getConfig().isConnectionDecisive())
 				return false;
 			// update if we expect to have a better quality
-			int expectedQuality = ConnectionGuru.getExpectedQuality(conn);
+			int expectedQuality = BandwidthEstimator.getInstance(this)
+					.getExpectedQuality(conn);
 			if (expectedQuality > currentQuality)
 				return true;
 			else
@@ -181,21 +371,50 @@ public abstract class UpdateService extends IntentService implements
 	}
 
 	/**
-	 * Called by the background resource proxy.
+	 * Called by the background resource proxy if it is not run by the workers
+	 * of <code>runWorkers(...)</code>, which report into a
+	 * {@link ProgressAccumulator} instead.
 	 */
 	@Override
 	public void onProgress(String currentUri, int bytesCnt, int bytesTotal,
-			int bytesPerSecond) {
-		Intent bcIntent = new Intent(SyncIntent.UPDATE_PROGRESS);
+			int bytesPerSecond, int decodedCnt) {
+		publishProgress(currentUri, bytesCnt, bytesTotal, bytesPerSecond,
+				decodedCnt, bytesCnt, 1);
+	}
+
+	/**
+	 * Fires an UPDATE_PROGRESS broadcast. The same Intent is reused for all
+	 * broadcasts, as <code>sendBroadcast(...)</code> copies it.
+	 * 
+	 * @param currentUri
+	 *            The resource updated most recently. Might be
+	 *            <code>null</code>.
+	 * @param sessionBytes
+	 *            Bytes read by all workers of the session so far
+	 * @param active
+	 *            Number of resources currently loaded
+	 */
+	synchronized void publishProgress(String currentUri, int bytesCnt,
+			int bytesTotal, int bytesPerSecond, int decodedCnt,
+			long sessionBytes, int active) {
+		if (mProgressIntent == null)
+			mProgressIntent = new Intent(SyncIntent.UPDATE_PROGRESS);
+
+		Intent bcIntent = mProgressIntent;
 		bcIntent.putExtra(SyncIntent.EXTRA_NAME, mRessourceManagerName);
 		if (currentUri != null)
 			bcIntent.putExtra(SyncIntent.EXTRA_URI, currentUri);
+		else
+			bcIntent.removeExtra(SyncIntent.EXTRA_URI);
 		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_BYTES_READ, bytesCnt);
 		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_BYTES_TOTAL, bytesTotal);
 		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_BYTES_PER_SECOND,
 				bytesPerSecond);
+		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_BYTES_DECODED, decodedCnt);
+		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_SESSION_BYTES,
+				sessionBytes);
+		bcIntent.putExtra(SyncIntent.EXTRA_PROGRESS_ACTIVE, active);
 		sendBroadcast(bcIntent);
-
 	}
 
 	@Override
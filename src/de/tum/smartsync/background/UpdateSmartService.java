@@ -17,10 +17,8 @@ package de.tum.smartsync.background;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
@@ -32,6 +30,7 @@ import de.tum.smartsync.RawResource;
 import de.tum.smartsync.SyncIntent;
 import de.tum.smartsync.background.statistics.StatisticProcessor;
 import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.connectivity.BandwidthEstimator;
 import de.tum.smartsync.connectivity.ConnectionGuru;
 import de.tum.smartsync.connectivity.ResourceProxy;
 import de.tum.smartsync.helper.Helper;
@@ -58,7 +57,8 @@ import de.tum.smartsync.manager.SmartResourceManager;
  */
 public class UpdateSmartService extends UpdateService {
 
-	private final static int NUM_WORKERS = 2;
+	/** Maximum number of concurrent workers */
+	private final static int MAX_WORKERS = 3;
 
 	static final String TAG = "UpdateSmartService";
 
@@ -127,6 +127,8 @@ public class UpdateSmartService extends UpdateService {
 
 		ConnectionGuru connGuru = new ConnectionGuru(context);
 		final int conn = connGuru.getCurrentConnection();
+		BandwidthEstimator.getInstance(context).setCurrentNetwork(conn,
+				connGuru.getNetworkType());
 
 		// create list
 		List<RawResource> workQueue = ResourceManagerTableHelper
@@ -151,6 +153,7 @@ public class UpdateSmartService extends UpdateService {
 
 		algo.setInput(conn, workQueue, cache, isPowerConnected, isPowerLow,
 				statsConnection, statsUsage);
+		algo.setBandwidthEstimator(BandwidthEstimator.getInstance(context));
 
 		// run the algorithm for filtering our current resource list
 		Log.d(TAG, "list size before algorithm: " + workQueue.size());
@@ -158,31 +161,7 @@ public class UpdateSmartService extends UpdateService {
 		workQueue = algo.getUpdateList();
 		Log.d(TAG, "list size after algorithm: " + workQueue.size());
 
-		ReentrantLock lockQueue = new ReentrantLock();
-		ReentrantLock lockCache = new ReentrantLock();
-
-		// create workers
-		LinkedList<Thread> workers = new LinkedList<Thread>();
-		for (int i = 0; i < NUM_WORKERS; i++) {
-			UpdateWorker worker = new UpdateWorker(getApplicationContext(),
-					lockCache, cache, lockQueue, workQueue, proxyMethod,
-					proxyExtras, this);
-			Thread t = new Thread(worker);
-			workers.add(t);
-		}
-
-		// start workers
-		for (Thread t : workers)
-			t.start();
-
-		// wait for them to finish
-		for (Thread t : workers) {
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+		runWorkers(context, workQueue, MAX_WORKERS);
 	}
 
 }
@@ -16,7 +16,8 @@
 package de.tum.smartsync.background;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
@@ -29,9 +30,12 @@ import android.util.Log;
 import de.tum.smartsync.RawResource;
 import de.tum.smartsync.Resource;
 import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.connectivity.BandwidthEstimator;
+import de.tum.smartsync.connectivity.CircuitOpenException;
 import de.tum.smartsync.connectivity.ConnectionGuru;
 import de.tum.smartsync.connectivity.DoNotUpdateException;
 import de.tum.smartsync.connectivity.ResourceProxy;
+import de.tum.smartsync.resource.RawBigResource;
 
 //You found it. This is where the magic happens. :)
 /**
@@ -51,6 +55,15 @@ public class UpdateWorker implements Runnable {
 
 	public static final String HTTP_PARAM_TIMESTAMP = "ts";
 
+	/** Maximum number of small resources loaded with a single request */
+	public static final int BATCH_SIZE = 16;
+
+	/**
+	 * Connections expected to deliver at most this quality are regarded as
+	 * slow by the progressive mode
+	 */
+	public static final int PROGRESSIVE_MAX_QUALITY = Resource.QUALITY_FAIR;
+
 	private String TAG = "UpdateWorker_";
 
 	private static int index = 1;
@@ -66,6 +79,12 @@ public class UpdateWorker implements Runnable {
 	private ResourceProxy mProxy;
 	private ProgressListener listener;
 
+	/** Limits the concurrent network access. Might be <code>null</code>. */
+	private ConcurrencyController mController;
+
+	/** See <code>setProgressive(...)</code> */
+	private boolean mProgressive = false;
+
 	private Context context;
 
 	final int myIndex;
@@ -89,12 +108,16 @@ public class UpdateWorker implements Runnable {
 	 *            Used for generating own resource proxy
 	 * @param listener
 	 *            Used for various callbacks about current status
+	 * @param controller
+	 *            Shared by all workers for limiting the concurrent network
+	 *            access. Might be <code>null</code>.
 	 */
 	public UpdateWorker(Context context, ReentrantLock lockCache,
 			CacheProvider cache, ReentrantLock lockQueue,
 			List<RawResource> workQueue, int proxyMethod, byte[] proxyExtras,
-			ProgressListener listener) {
+			ProgressListener listener, ConcurrencyController controller) {
 		super();
+		this.mController = controller;
 		this.lockCache = lockCache;
 		this.cache = cache;
 		this.lockQueue = lockQueue;
@@ -114,6 +137,18 @@ public class UpdateWorker implements Runnable {
 		// Log.d(TAG, "created!");
 	}
 
+	/**
+	 * Enables or disables the progressive mode: on slow connections resources
+	 * which are not cached at all are requested in the worst quality, so that
+	 * they are available as soon as possible. A later session on a faster
+	 * connection upgrades them, as the cache replaces them by any better
+	 * quality. Only resources whose configuration is connection decisive are
+	 * affected.
+	 */
+	public void setProgressive(boolean progressive) {
+		this.mProgressive = progressive;
+	}
+
 	@Override
 	/**
 	 * The actual update routine involving cache and resource proxy :)
@@ -131,12 +166,33 @@ public class UpdateWorker implements Runnable {
 		if (conn == ConnectionGuru.CONNECTION_NONE)
 			throw new RuntimeException("No connection available!");
 
-		final int expectedQuality = ConnectionGuru.getExpectedQuality(conn);
+		BandwidthEstimator estimator = BandwidthEstimator.getInstance(context);
+		estimator.setCurrentNetwork(conn, connGuru.getNetworkType());
+		final int expectedQuality = estimator.getExpectedQuality(conn);
+		mProxy.setCurrentConnection(conn);
+		mProxy.setMetered(connGuru.isMetered());
 
 		// work until no resources are left for updating
 		boolean running = true;
 		while (running) {
-			RawResource r = null;
+			List<RawResource> batch = new LinkedList<RawResource>();
+
+			// wait until we are allowed to access the network
+			if (mController != null) {
+				try {
+					mController.acquire();
+				} catch (InterruptedException e) {
+					Log.w(TAG, "Interrupted while waiting for the controller");
+					break;
+				}
+
+				// the session is over, the next one will go on
+				if (mController.isExpired()) {
+					mController.releaseUnused();
+					expire();
+					break;
+				}
+			}
 
 			// PERFORMING CONCURRENT WORK ON WORKING QUEUE
 			lockQueue.lock();
@@ -146,79 +202,64 @@ public class UpdateWorker implements Runnable {
 					running = false;
 				} else {
 					// else get new resources from list
-					r = workQueue.get(0);
-					workQueue.remove(0);
+					RawResource r = workQueue.remove(0);
+					batch.add(r);
+
+					// small resources are loaded together in order to save
+					// round trips
+					if (mProxy.supportsBatch() && !(r instanceof RawBigResource))
+						takeSmallResources(batch);
 				}
 			} finally {
 				lockQueue.unlock();
 			}
-			if (!running)
+			if (!running) {
+				if (mController != null)
+					mController.releaseUnused();
 				break;
-
-			long timestamp;
-			String uri = r.getPathUri().toString();
-			Log.d(TAG, "Processing: " + uri);
+			}
 
 			// PERFORMING CONCURRENT WORK ON CACHE
-			lockCache.lock();
-			try {
-				// retrieve timestamp
-				timestamp = cache.getTimestamp(r);
-
-				// mark as currently updating
-				r.setStatus(Resource.UPDATING);
-				cache.cache(r);
-			} finally {
-				lockCache.unlock();
+			final long[] timestamps = new long[batch.size()];
+			final int[] qualities = new int[batch.size()];
+			int i = 0;
+			for (RawResource r : batch) {
+				Log.d(TAG, "Processing: " + r.getPathUri());
+				timestamps[i] = prepare(r, expectedQuality, qualities, i);
+				i++;
 			}
 
-			// prepare HTTP request
-			List<NameValuePair> params = new LinkedList<NameValuePair>();
-			params.add(new BasicNameValuePair(HTTP_PARAM_CONNECTION, Integer
-					.toString(conn)));
-			params.add(new BasicNameValuePair(HTTP_PARAM_EXPECTED_QUALITY,
-					Integer.toString(expectedQuality)));
-			params.add(new BasicNameValuePair(HTTP_PARAM_TIMESTAMP, Long
-					.toString(timestamp)));
-
 			// PERFORM ACTUAL HTTP ACCESS
-			boolean updated = false;
-			try {
-				mProxy.doLoad(r, params);
-				updated = true;
-			} catch (MalformedURLException e) {
-				listener.onError(uri, e.getLocalizedMessage());
-				e.printStackTrace();
-				continue;
-			} catch (IOException e) {
-				listener.onError(uri, e.getLocalizedMessage());
-				e.printStackTrace();
-				continue;
-			} catch (DoNotUpdateException noUpdate) {
-				Log.v(TAG, "Did not update resource (" + uri.toString()
-						+ ") because: " + noUpdate.getMessage());
+			mProxy.takeLatency();
+			Exception[] results = new Exception[batch.size()];
+			if (isUniform(qualities)) {
+				load(batch, timestamps, qualities[0], conn, results);
+			} else {
+				// resources of the same quality share a request
+				loadByQuality(batch, timestamps, qualities, conn, results);
 			}
-			Log.d(TAG, "Loaded resource: " + uri);
 
-			// if the proxy returned a new resource and did not thrown an
-			// exception
-			if (updated) {
-				// set quality
-				r.setStatus(expectedQuality);
-
-				// PERFORMING CONCURRENT WORK ON CACHE
-				lockCache.lock();
-				try {
-					// store it in cache
-					cache.cache(r);
-					Log.d(TAG, "Cached resource: " + uri);
-				} finally {
-					lockCache.unlock();
+			if (mController != null)
+				releaseController(batch, results);
+
+			CircuitOpenException circuitOpen = null;
+			int skipped = 0;
+			i = 0;
+			for (RawResource r : batch) {
+				if (results[i] instanceof CircuitOpenException) {
+					circuitOpen = (CircuitOpenException) results[i];
+					skipped++;
+				} else if (!requeue(r, results[i])) {
+					finish(r, results[i], qualities[i]);
 				}
+				i++;
 			}
 
-			// fire an UPDATE_RESOURCE
-			listener.updatedResource(uri);
+			// the authority is unreachable: do not try the remaining resources
+			if (circuitOpen != null) {
+				abort(circuitOpen, skipped);
+				break;
+			}
 
 			// todo: remove sleep in background method?
 			// but helped that following intents are correctly transferred by
@@ -239,4 +280,303 @@ public class UpdateWorker implements Runnable {
 
 	}
 
+	/**
+	 * Removes all resources from the work queue and fires a single error for
+	 * them instead of one per resource.
+	 * 
+	 * @param skipped
+	 *            Number of resources of the current batch which have not been
+	 *            loaded
+	 */
+	private void abort(CircuitOpenException e, int skipped) {
+		lockQueue.lock();
+		try {
+			skipped += workQueue.size();
+			workQueue.clear();
+		} finally {
+			lockQueue.unlock();
+		}
+
+		Log.w(TAG, "Skipping " + skipped + " resources: " + e.getMessage());
+		listener.onError(e.getAuthority(), e.getLocalizedMessage() + " ("
+				+ skipped + " resources skipped)");
+	}
+
+	/**
+	 * Removes all resources from the work queue after the deadline of the
+	 * session has passed. They keep their cached content and are updated by
+	 * the next session.
+	 */
+	private void expire() {
+		int skipped;
+		lockQueue.lock();
+		try {
+			skipped = workQueue.size();
+			workQueue.clear();
+		} finally {
+			lockQueue.unlock();
+		}
+
+		if (skipped > 0)
+			Log.i(TAG, "Session deadline passed, leaving " + skipped
+					+ " resources to the next session.");
+	}
+
+	/**
+	 * Puts a resource whose transfer stalled back at the end of the work
+	 * queue, so that the other resources are loaded meanwhile instead of
+	 * waiting for a retry. Each resource is requeued once per session, a
+	 * second stall is reported as error.
+	 * 
+	 * @param result
+	 *            The outcome of loading the resource
+	 * @return <code>false</code> if the resource has not been requeued
+	 */
+	private boolean requeue(RawResource r, Exception result) {
+		if (!(result instanceof SocketTimeoutException) || mController == null
+				|| !mController.markRequeued(r))
+			return false;
+
+		Log.d(TAG, "Requeuing " + r.getPathUri() + ": " + result.getMessage());
+		lockQueue.lock();
+		try {
+			workQueue.add(r);
+		} finally {
+			lockQueue.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Reports the outcome of the request to the concurrency controller.
+	 */
+	private void releaseController(List<RawResource> batch,
+			Exception[] results) {
+		long bytes = 0L;
+		boolean error = false;
+
+		int i = 0;
+		for (RawResource r : batch) {
+			if (results[i] == null)
+				bytes += r.getSize();
+			else if (results[i] instanceof IOException)
+				error = true;
+			i++;
+		}
+
+		// the time until the response, as the transfer depends on the size
+		mController.release(bytes, mProxy.takeLatency(), error);
+	}
+
+	/**
+	 * Moves further small resources from the work queue into the batch. The
+	 * queue lock must be held.
+	 */
+	private void takeSmallResources(List<RawResource> batch) {
+		Iterator<RawResource> it = workQueue.iterator();
+		while (it.hasNext() && batch.size() < BATCH_SIZE) {
+			RawResource r = it.next();
+			if (r instanceof RawBigResource)
+				continue;
+
+			batch.add(r);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Loads the resources with a single request for the given quality.
+	 * 
+	 * @param results
+	 *            Receives the outcome of each resource, see
+	 *            <code>ResourceProxy.loadBatch(...)</code>
+	 */
+	private void load(List<RawResource> resources, long[] timestamps,
+			int quality, int conn, Exception[] results) {
+		// prepare HTTP request
+		List<NameValuePair> params = new LinkedList<NameValuePair>();
+		params.add(new BasicNameValuePair(HTTP_PARAM_CONNECTION, Integer
+				.toString(conn)));
+		params.add(new BasicNameValuePair(HTTP_PARAM_EXPECTED_QUALITY,
+				Integer.toString(quality)));
+
+		if (resources.size() > 1) {
+			Exception[] r = mProxy.loadBatch(resources, params, timestamps);
+			System.arraycopy(r, 0, results, 0, r.length);
+			return;
+		}
+
+		params.add(new BasicNameValuePair(HTTP_PARAM_TIMESTAMP, Long
+				.toString(timestamps[0])));
+		try {
+			mProxy.load(resources.get(0), params);
+		} catch (IOException e) {
+			results[0] = e;
+		} catch (DoNotUpdateException e) {
+			results[0] = e;
+		}
+	}
+
+	/**
+	 * Splits the batch by the requested qualities and loads each part with a
+	 * request of its own.
+	 */
+	private void loadByQuality(List<RawResource> batch, long[] timestamps,
+			int[] qualities, int conn, Exception[] results) {
+		boolean[] done = new boolean[qualities.length];
+		for (int first = 0; first < qualities.length; first++) {
+			if (done[first])
+				continue;
+
+			final int quality = qualities[first];
+			List<RawResource> part = new LinkedList<RawResource>();
+			int[] positions = new int[qualities.length];
+			for (int i = first; i < qualities.length; i++) {
+				if (qualities[i] == quality) {
+					positions[part.size()] = i;
+					part.add(batch.get(i));
+					done[i] = true;
+				}
+			}
+
+			long[] partTimestamps = new long[part.size()];
+			for (int i = 0; i < partTimestamps.length; i++)
+				partTimestamps[i] = timestamps[positions[i]];
+
+			Exception[] partResults = new Exception[part.size()];
+			load(part, partTimestamps, quality, conn, partResults);
+			for (int i = 0; i < partResults.length; i++)
+				results[positions[i]] = partResults[i];
+		}
+	}
+
+	private static boolean isUniform(int[] qualities) {
+		for (int q : qualities) {
+			if (q != qualities[0])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Chooses the quality requested for a resource.
+	 * 
+	 * @param cachedQuality
+	 *            Caching status of the resource
+	 */
+	private int chooseQuality(RawResource r, int cachedQuality,
+			int expectedQuality) {
+		if (!mProgressive || expectedQuality > PROGRESSIVE_MAX_QUALITY
+				|| !r.getConfig().isConnectionDecisive())
+			return expectedQuality;
+
+		// a missing resource is needed fast on a slow link, whatever quality
+		if (cachedQuality <= Resource.UPDATING)
+			return Resource.QUALITY_WORST;
+
+		// the upgrade is left to a faster link, only changes are loaded
+		return Math.min(cachedQuality, expectedQuality);
+	}
+
+	/**
+	 * @return Whether the cached content is replaced by a better quality,
+	 *         which is only attempted in the progressive mode on a link which
+	 *         is not slow
+	 */
+	private boolean isUpgrade(RawResource r, int cachedQuality, int quality,
+			int expectedQuality) {
+		return mProgressive && expectedQuality > PROGRESSIVE_MAX_QUALITY
+				&& cachedQuality > Resource.UPDATING && cachedQuality < quality
+				&& r.getConfig().isConnectionDecisive();
+	}
+
+	/**
+	 * Marks the resource as currently updating, chooses the quality to
+	 * request and fills in the validators of the cached content.
+	 * 
+	 * @param qualities
+	 *            Receives the quality to request at the given position
+	 * @return The timestamp of the cached content
+	 */
+	private long prepare(RawResource r, int expectedQuality, int[] qualities,
+			int position) {
+		lockCache.lock();
+		try {
+			final int cachedQuality = cache.getCachingStatus(r);
+			final int quality = chooseQuality(r, cachedQuality,
+					expectedQuality);
+			qualities[position] = quality;
+
+			// retrieve timestamp and validators of the cached content
+			long timestamp = cache.getTimestamp(r);
+			cache.fillValidators(r);
+
+			// an upgrade must not be answered with "not modified" for the
+			// inferior content, so the request is not conditional
+			if (isUpgrade(r, cachedQuality, quality, expectedQuality)) {
+				r.setETag(null);
+				r.setLastModified(0L);
+				timestamp = 0L;
+			}
+
+			// mark as currently updating (meta information only)
+			r.setStatus(Resource.UPDATING);
+			cache.cacheStatus(r);
+
+			return timestamp;
+		} finally {
+			lockCache.unlock();
+		}
+	}
+
+	/**
+	 * Processes the outcome of loading a single resource.
+	 * 
+	 * @param result
+	 *            <code>null</code> if the resource has been loaded, otherwise
+	 *            the exception explaining why not
+	 */
+	private void finish(RawResource r, Exception result, int expectedQuality) {
+		String uri = r.getPathUri().toString();
+
+		if (result instanceof DoNotUpdateException) {
+			DoNotUpdateException noUpdate = (DoNotUpdateException) result;
+			Log.v(TAG, "Did not update resource (" + uri
+					+ ") because: " + noUpdate.getMessage());
+
+			// the cached content has been revalidated, so it is fresh again
+			if (noUpdate.isNotModified()) {
+				lockCache.lock();
+				try {
+					cache.touch(r);
+				} finally {
+					lockCache.unlock();
+				}
+			}
+		} else if (result != null) {
+			listener.onError(uri, result.getLocalizedMessage());
+			result.printStackTrace();
+			return;
+		} else {
+			Log.d(TAG, "Loaded resource: " + uri);
+
+			// the proxy returned a new resource and did not thrown an
+			// exception: set quality
+			r.setStatus(expectedQuality);
+
+			// PERFORMING CONCURRENT WORK ON CACHE
+			lockCache.lock();
+			try {
+				// store it in cache
+				cache.cache(r);
+				Log.d(TAG, "Cached resource: " + uri);
+			} finally {
+				lockCache.unlock();
+			}
+		}
+
+		// fire an UPDATE_RESOURCE
+		listener.updatedResource(uri);
+	}
+
 }
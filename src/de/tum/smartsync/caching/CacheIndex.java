@@ -0,0 +1,103 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.caching;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * The validators of the cached content: for each resource the caching status
+ * and the ETag of the best candidate which has content and is not outdated,
+ * i.e. the candidate
+ * <code>CacheProvider.fillValidators(...)</code> would use. The entries are
+ * sorted by the uri of the resources (in the order of
+ * <code>String.compareTo(...)</code>), so that the index can be joined with
+ * other sorted lists without any lookups.
+ * 
+ * @author Daniel
+ * 
+ */
+public class CacheIndex {
+
+	private static class Entry implements Comparable<Entry> {
+		final String mUri;
+		final int mStatus;
+		final String mETag;
+
+		Entry(String uri, int status, String eTag) {
+			this.mUri = uri;
+			this.mStatus = status;
+			this.mETag = eTag;
+		}
+
+		@Override
+		public int compareTo(Entry another) {
+			return mUri.compareTo(another.mUri);
+		}
+	}
+
+	private final List<Entry> mEntries;
+
+	CacheIndex(int capacity) {
+		mEntries = new ArrayList<Entry>(capacity);
+	}
+
+	/**
+	 * Adds the validator of a resource. Each resource must only be added
+	 * once.
+	 * 
+	 * @param status
+	 *            Caching status (i.e. the quality) of the content
+	 * @param eTag
+	 *            Might be <code>null</code>.
+	 */
+	void add(String uri, int status, String eTag) {
+		mEntries.add(new Entry(uri, status, eTag));
+	}
+
+	/**
+	 * Sorts the entries by their uri. Must be called after adding the
+	 * entries.
+	 */
+	void sort() {
+		// the entries are usually sorted already, which is cheap
+		Collections.sort(mEntries);
+	}
+
+	public int size() {
+		return mEntries.size();
+	}
+
+	public String getUri(int i) {
+		return mEntries.get(i).mUri;
+	}
+
+	/**
+	 * @return The quality of the cached content
+	 */
+	public int getStatus(int i) {
+		return mEntries.get(i).mStatus;
+	}
+
+	/**
+	 * @return <code>null</code> if the cached content has no ETag
+	 */
+	public String getETag(int i) {
+		return mEntries.get(i).mETag;
+	}
+}
@@ -15,6 +15,8 @@
 // along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package de.tum.smartsync.caching;
 
+import java.io.IOException;
+
 import android.content.Context;
 import de.tum.smartsync.RawResource;
 import de.tum.smartsync.Resource;
@@ -75,6 +77,19 @@ public abstract class CacheProvider {
 	 */
 	public abstract void cache(RawResource r);
 
+	/**
+	 * <p>
+	 * This method propagates only the status of a resource to the caching
+	 * provider. In contrast to <code>cache(RawResource)</code> it never touches
+	 * the content of the resource but only its meta information. It is
+	 * intended for status transitions like marking a resource as
+	 * <code>Resource.UPDATING</code>.
+	 * 
+	 * @param r
+	 *            The resource to be considered
+	 */
+	public abstract void cacheStatus(Resource r);
+
 	/**
 	 * <p>
 	 * Returns whether the resource is cached and its current caching status
@@ -97,6 +112,36 @@ public abstract class CacheProvider {
 	 */
 	public abstract void fillResource(RawResource r);
 
+	/**
+	 * <p>
+	 * Fills the validators (ETag and Last-Modified) of the best candidate
+	 * which lies within the resources caching limits into the resource. The
+	 * content of the resource is not touched.
+	 * 
+	 * @param r
+	 *            The resource to be filled
+	 */
+	public abstract void fillValidators(Resource r);
+
+	/**
+	 * <p>
+	 * Returns the validators and the quality of all resources with cached
+	 * content, sorted by their uri. For each resource the same candidate is
+	 * considered as by <code>fillValidators(...)</code>.
+	 */
+	public abstract CacheIndex getIndex();
+
+	/**
+	 * <p>
+	 * Refreshes the timestamp of the best candidate without rewriting its
+	 * content. This is called when the authority confirmed that the cached
+	 * content is still up-to-date.
+	 * 
+	 * @param r
+	 *            The resource to be considered
+	 */
+	public abstract void touch(Resource r);
+
 	/**
 	 * Returns the implemented cache method of this cache instance.
 	 * 
@@ -137,4 +182,22 @@ public abstract class CacheProvider {
 	 */
 	public abstract long getTimestamp(Resource r);
 
+	/**
+	 * Writes all valid entries of this cache into the given snapshot. See
+	 * {@link CacheSnapshot} for details.
+	 * 
+	 * @throws IOException
+	 */
+	abstract void exportEntries(CacheSnapshot.Writer writer)
+			throws IOException;
+
+	/**
+	 * Stores all entries of the given snapshot while preserving their status,
+	 * timestamp and configuration. See {@link CacheSnapshot} for details.
+	 * 
+	 * @throws IOException
+	 */
+	abstract void importEntries(CacheSnapshot.Reader reader)
+			throws IOException;
+
 }
@@ -0,0 +1,490 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.caching;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Exports the content of a cache into a single snapshot file and imports it
+ * back into a cache of any type. This allows to provision new installations
+ * with a prebuilt cache (e.g. shipped with the APK as an asset) instead of
+ * downloading everything during the first synchronization.
+ * 
+ * <p>
+ * The snapshot is written and read strictly sequentially. It consists of a
+ * header, the entries (uri, status, timestamp, marshalled configuration,
+ * validators and data) and a trailer which is protected by a CRC32 checksum
+ * over the whole file. Status, timestamps and configurations are preserved
+ * by the import.
+ * 
+ * @author Daniel
+ * 
+ */
+public class CacheSnapshot {
+
+	private static final String TAG = "CacheSnapshot";
+
+	/** "SSSN" - SmartSync SNapshot */
+	private static final int MAGIC = 0x5353534E;
+
+	/**
+	 * Used to determine the structure of the snapshot. Version 2 added the
+	 * validators (ETag and Last-Modified) to every entry.
+	 */
+	private static final int FORMAT_VERSION = 0x02;
+
+	private static final int FORMAT_VERSION_NO_VALIDATORS = 0x01;
+
+	private static final int MARKER_ENTRY = 0x01;
+	private static final int MARKER_END = 0x00;
+
+	/** Size of the trailing checksum */
+	private static final int CHECKSUM_SIZE = 8;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes all valid entries of the given cache into the snapshot file. An
+	 * existing file will be overwritten.
+	 * 
+	 * @return The number of exported entries
+	 * @throws IOException
+	 */
+	public static int exportCache(CacheProvider cache, File target)
+			throws IOException {
+		final long start = TimeProvider.currentTimeMillis();
+
+		Writer writer = new Writer(target);
+		boolean success = false;
+		try {
+			cache.exportEntries(writer);
+			writer.finish();
+			success = true;
+		} finally {
+			writer.close();
+			if (!success)
+				target.delete();
+		}
+
+		Log.d(TAG, "Exported " + writer.getCount() + " entries in "
+				+ (TimeProvider.currentTimeMillis() - start) + "ms.");
+		return writer.getCount();
+	}
+
+	/**
+	 * Imports all entries of the given snapshot into the cache. The checksum
+	 * is verified before anything is written to the cache.
+	 * 
+	 * @return The number of imported entries
+	 * @throws IOException
+	 *             If the snapshot is corrupt or could not be read
+	 */
+	public static int importCache(CacheProvider cache, File source)
+			throws IOException {
+		final long start = TimeProvider.currentTimeMillis();
+
+		if (!verify(source))
+			throw new IOException("Checksum mismatch in snapshot: " + source);
+
+		final int count = importVerified(cache, source);
+		Log.d(TAG, "Imported " + count + " entries in "
+				+ (TimeProvider.currentTimeMillis() - start) + "ms.");
+		return count;
+	}
+
+	/**
+	 * Imports all entries of the snapshot read from the given stream, e.g. an
+	 * asset of the APK. The stream is copied into a temporary file first,
+	 * which verifies the checksum on the way, so nothing is written to the
+	 * cache if the snapshot is corrupt. The stream is not closed.
+	 * 
+	 * @param tempDir
+	 *            Directory for the temporary copy, e.g. the cache directory
+	 *            of the app
+	 * @return The number of imported entries
+	 * @throws IOException
+	 *             If the snapshot is corrupt or could not be read
+	 */
+	public static int importCache(CacheProvider cache, InputStream source,
+			File tempDir) throws IOException {
+		final long start = TimeProvider.currentTimeMillis();
+
+		File temp = File.createTempFile("snapshot", null, tempDir);
+		try {
+			if (!copyVerified(source, temp))
+				throw new IOException("Checksum mismatch in snapshot");
+
+			final int count = importVerified(cache, temp);
+			Log.d(TAG, "Imported " + count + " entries from stream in "
+					+ (TimeProvider.currentTimeMillis() - start) + "ms.");
+			return count;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static int importVerified(CacheProvider cache, File source)
+			throws IOException {
+		Reader reader = new Reader(source);
+		try {
+			cache.importEntries(reader);
+		} finally {
+			reader.close();
+		}
+		return reader.getCount();
+	}
+
+	/**
+	 * Copies the snapshot into the given file and checks its trailing
+	 * checksum meanwhile. The last {@link #CHECKSUM_SIZE} bytes read are held
+	 * back from the checksum, as they might be the checksum itself.
+	 * 
+	 * @return <code>true</code> if the snapshot is intact
+	 * @throws IOException
+	 */
+	private static boolean copyVerified(InputStream in, File target)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[BUFFER_SIZE];
+		int held = 0;
+
+		OutputStream out = new FileOutputStream(target);
+		try {
+			int len;
+			while ((len = in.read(buf, held, buf.length - held)) != -1) {
+				out.write(buf, held, len);
+
+				final int ready = held + len - CHECKSUM_SIZE;
+				if (ready > 0) {
+					crc.update(buf, 0, ready);
+					System.arraycopy(buf, ready, buf, 0, CHECKSUM_SIZE);
+					held = CHECKSUM_SIZE;
+				} else {
+					held += len;
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (held < CHECKSUM_SIZE)
+			return false;
+		return ByteBuffer.wrap(buf, 0, CHECKSUM_SIZE).getLong() == crc
+				.getValue();
+	}
+
+	/**
+	 * Checks the trailing checksum of the given snapshot file.
+	 * 
+	 * @return <code>true</code> if the snapshot is intact
+	 * @throws IOException
+	 */
+	public static boolean verify(File source) throws IOException {
+		final long payload = source.length() - CHECKSUM_SIZE;
+		if (payload < 0)
+			return false;
+
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new FileInputStream(source));
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			long remaining = payload;
+			while (remaining > 0) {
+				int len = in.read(buf, 0,
+						(int) Math.min(buf.length, remaining));
+				if (len == -1)
+					return false;
+				crc.update(buf, 0, len);
+				remaining -= len;
+			}
+			return in.readLong() == crc.getValue();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sequentially writes entries into a snapshot file. Used by the
+	 * {@link CacheProvider} implementations.
+	 */
+	public static class Writer {
+
+		private final CRC32 mCrc = new CRC32();
+		private final OutputStream mFileOut;
+		private final DataOutputStream mOut;
+		private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+		private int mCount = 0;
+
+		Writer(File target) throws IOException {
+			mFileOut = new BufferedOutputStream(new FileOutputStream(target),
+					BUFFER_SIZE);
+			mOut = new DataOutputStream(new CheckedOutputStream(mFileOut,
+					mCrc));
+
+			mOut.writeInt(MAGIC);
+			mOut.writeInt(FORMAT_VERSION);
+		}
+
+		/**
+		 * Appends a single entry.
+		 * 
+		 * @param data
+		 *            Content of the entry. Exactly <code>size</code> bytes are
+		 *            read from it.
+		 * @throws IOException
+		 */
+		public void writeEntry(String uri, int status, long timestamp,
+				byte[] config, String eTag, long lastModified,
+				InputStream data, long size) throws IOException {
+			writeEntryHeader(uri, status, timestamp, config, eTag,
+					lastModified, size);
+
+			long remaining = size;
+			while (remaining > 0) {
+				int len = data.read(mBuffer, 0,
+						(int) Math.min(mBuffer.length, remaining));
+				if (len == -1)
+					throw new IOException("Unexpected end of data for " + uri);
+				mOut.write(mBuffer, 0, len);
+				remaining -= len;
+			}
+		}
+
+		/**
+		 * Appends a single entry.
+		 * 
+		 * @throws IOException
+		 */
+		public void writeEntry(String uri, int status, long timestamp,
+				byte[] config, String eTag, long lastModified, byte[] data)
+				throws IOException {
+			writeEntryHeader(uri, status, timestamp, config, eTag,
+					lastModified, data.length);
+			mOut.write(data);
+		}
+
+		private void writeEntryHeader(String uri, int status, long timestamp,
+				byte[] config, String eTag, long lastModified, long size)
+				throws IOException {
+			mOut.writeByte(MARKER_ENTRY);
+			mOut.writeUTF(uri);
+			mOut.writeInt(status);
+			mOut.writeLong(timestamp);
+			mOut.writeInt(config.length);
+			mOut.write(config);
+			mOut.writeBoolean(eTag != null);
+			if (eTag != null)
+				mOut.writeUTF(eTag);
+			mOut.writeLong(lastModified);
+			mOut.writeLong(size);
+			mCount++;
+		}
+
+		int getCount() {
+			return mCount;
+		}
+
+		void finish() throws IOException {
+			mOut.writeByte(MARKER_END);
+			mOut.writeInt(mCount);
+			mOut.flush();
+
+			// the checksum itself is not part of the checksum
+			new DataOutputStream(mFileOut).writeLong(mCrc.getValue());
+			mFileOut.flush();
+		}
+
+		void close() throws IOException {
+			mFileOut.close();
+		}
+	}
+
+	/**
+	 * Sequentially reads entries from a snapshot file. Used by the
+	 * {@link CacheProvider} implementations.
+	 */
+	public static class Reader {
+
+		private final DataInputStream mIn;
+		private final int mVersion;
+
+		private int mCount = 0;
+		private boolean mFinished = false;
+
+		private String mUri;
+		private int mStatus;
+		private long mTimestamp;
+		private byte[] mConfig;
+		private String mETag;
+		private long mLastModified;
+		private long mRemaining = 0;
+
+		Reader(File source) throws IOException {
+			mIn = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(source), BUFFER_SIZE));
+
+			if (mIn.readInt() != MAGIC)
+				throw new IOException("Not a snapshot: " + source);
+			mVersion = mIn.readInt();
+			if (mVersion != FORMAT_VERSION
+					&& mVersion != FORMAT_VERSION_NO_VALIDATORS)
+				throw new IOException("Unknown snapshot version: " + mVersion);
+		}
+
+		/**
+		 * Advances to the next entry. Unread data of the current entry is
+		 * skipped.
+		 * 
+		 * @return <code>false</code> if there are no more entries
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			if (mFinished)
+				return false;
+
+			// skip what has not been read
+			while (mRemaining > 0) {
+				long skipped = mIn.skip(mRemaining);
+				if (skipped <= 0)
+					throw new IOException("Unexpected end of snapshot");
+				mRemaining -= skipped;
+			}
+
+			final int marker = mIn.readByte();
+			if (marker == MARKER_END) {
+				final int expected = mIn.readInt();
+				if (expected != mCount)
+					throw new IOException("Snapshot should contain "
+							+ expected + " entries, but had " + mCount);
+				mFinished = true;
+				return false;
+			}
+			if (marker != MARKER_ENTRY)
+				throw new IOException("Unknown marker in snapshot: " + marker);
+
+			mUri = mIn.readUTF();
+			mStatus = mIn.readInt();
+			mTimestamp = mIn.readLong();
+			mConfig = new byte[mIn.readInt()];
+			mIn.readFully(mConfig);
+			mETag = null;
+			mLastModified = 0L;
+			if (mVersion >= FORMAT_VERSION) {
+				if (mIn.readBoolean())
+					mETag = mIn.readUTF();
+				mLastModified = mIn.readLong();
+			}
+			mRemaining = mIn.readLong();
+
+			mCount++;
+			return true;
+		}
+
+		public String getUri() {
+			return mUri;
+		}
+
+		public int getStatus() {
+			return mStatus;
+		}
+
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		/**
+		 * Returns the marshalled configuration of the current entry.
+		 */
+		public byte[] getConfig() {
+			return mConfig;
+		}
+
+		/**
+		 * Returns the ETag of the current entry or <code>null</code>
+		 */
+		public String getETag() {
+			return mETag;
+		}
+
+		/**
+		 * Returns the Last-Modified of the current entry or 0 if unknown
+		 */
+		public long getLastModified() {
+			return mLastModified;
+		}
+
+		/**
+		 * Returns the size of the data of the current entry in bytes
+		 */
+		public long getDataSize() {
+			return mRemaining;
+		}
+
+		/**
+		 * Reads the whole data of the current entry into a new array.
+		 * 
+		 * @throws IOException
+		 */
+		public byte[] readData() throws IOException {
+			byte[] data = new byte[(int) mRemaining];
+			mIn.readFully(data);
+			mRemaining = 0;
+			return data;
+		}
+
+		/**
+		 * Copies the whole data of the current entry to the given stream.
+		 * 
+		 * @throws IOException
+		 */
+		public void copyData(OutputStream out) throws IOException {
+			byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, mRemaining)];
+			while (mRemaining > 0) {
+				int len = mIn.read(buf, 0,
+						(int) Math.min(buf.length, mRemaining));
+				if (len == -1)
+					throw new IOException("Unexpected end of snapshot");
+				out.write(buf, 0, len);
+				mRemaining -= len;
+			}
+		}
+
+		int getCount() {
+			return mCount;
+		}
+
+		void close() throws IOException {
+			mIn.close();
+		}
+	}
+}
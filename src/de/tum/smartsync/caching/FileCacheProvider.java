@@ -23,16 +23,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.Assert;
 import android.content.Context;
 import android.util.Log;
-import android.util.Pair;
 import de.tum.smartsync.RawResource;
 import de.tum.smartsync.Resource;
-import de.tum.smartsync.ResourceConfig;
+import de.tum.smartsync.helper.BufferPool;
 import de.tum.smartsync.helper.Helper;
 import de.tum.smartsync.helper.TimeProvider;
 import de.tum.smartsync.resource.RawBigResource;
@@ -55,8 +54,8 @@ public class FileCacheProvider extends CacheProvider {
 	private final static String TAG = "FileCacheProvider";
 
 	private final static String REGEX_VALID_NAME = "\\w+";
-	private final static String FILE_SUFFIX_INFO = ".info";
-	private final static String FILE_SUFFIX_DATA = ".bin";
+	private final static String FILE_SUFFIX_INFO = InfoFileScanner.FILE_SUFFIX_INFO;
+	private final static String FILE_SUFFIX_DATA = InfoFileScanner.FILE_SUFFIX_DATA;
 
 	private final static int LOCATION_EXTERNAL = 0x00;
 	private final static int LOCATION_INTERNAL = 0x01;
@@ -133,25 +132,18 @@ public class FileCacheProvider extends CacheProvider {
 
 	@Override
 	public void remove(Resource r) {
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
 
-		for (Pair<File, File> p : candidates) {
-			p.first.delete();
-			p.second.delete();
+		while (info.next()) {
+			info.getInfoFile().delete();
+			info.getDataFile().delete();
 		}
 	}
 
 	@Override
 	public void cache(RawResource r) {
-		File dir = getDirOfResource(r);
-
-		// create directory if neccessary
-		if (!dir.exists()) {
-			boolean success = dir.mkdir();
-			if (!success)
-				throw new RuntimeException("Unable to create directory: " + dir);
-			// Log.d(TAG, "Created directory: " + dir);
-		}
+		File dir = createDirOfResource(r);
 
 		// check if outdated
 		boolean shouldCache = shouldCache(r);
@@ -183,60 +175,113 @@ public class FileCacheProvider extends CacheProvider {
 		}
 	}
 
-	private void writeDataFile(RawResource r, File dataFile) throws IOException {
-		OutputStream out = new BufferedOutputStream(new FileOutputStream(
-				dataFile));
+	@Override
+	public void cacheStatus(Resource r) {
+		File dir = createDirOfResource(r);
 
-		if (r instanceof RawBigResource) {
-			InputStream in = r.getNewInputStream();
-			byte[] buf = new byte[BUFFER_SIZE];
+		// check if outdated
+		boolean shouldCache = shouldCache(r);
+		if (!shouldCache)
+			return;
 
-			while (true) {
-				int len = in.read(buf);
+		// status-only entries have an empty data file; reuse one of the same
+		// status if there is any
+		File infoFile = null;
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(dir, r.getPathUri().toString());
 
-				// finished reading
-				if (len == -1)
-					break;
+		while (info.next()) {
+			if (info.getStatus() != r.getStatus())
+				continue;
 
-				// transport to buffer
-				out.write(buf, 0, len);
+			File dataFile = info.getDataFile();
+			if (dataFile.length() == 0) {
+				infoFile = info.getInfoFile();
+				break;
 			}
+		}
 
-		} else {
-			out.write(r.getFlatData());
+		try {
+			if (infoFile == null) {
+				String fileName = Helper.randomFileName();
+				infoFile = new File(dir, fileName + FILE_SUFFIX_INFO);
+
+				// an empty data file is enough, no content has to be written
+				new File(dir, fileName + FILE_SUFFIX_DATA).createNewFile();
+			}
+
+			writeInfoFile(r, TimeProvider.currentTimeMillis(), infoFile);
+		} catch (IOException e) {
+			throw new RuntimeException("Writing info file failed!", e);
 		}
+	}
 
-		out.flush();
-		out.close();
+	private File createDirOfResource(Resource r) {
+		File dir = getDirOfResource(r);
+
+		// create directory if neccessary
+		if (!dir.exists()) {
+			boolean success = dir.mkdir();
+			if (!success)
+				throw new RuntimeException("Unable to create directory: " + dir);
+			// Log.d(TAG, "Created directory: " + dir);
+		}
+
+		return dir;
 	}
 
-	private boolean shouldCache(Resource r) {
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
-		final long NOW = TimeProvider.currentTimeMillis();
+	private void writeDataFile(RawResource r, File dataFile) throws IOException {
+		// both branches write large blocks, so there is no need for another
+		// buffering layer
+		OutputStream out = new FileOutputStream(dataFile);
 
-		// Iterate over all possible candidate files
-		for (Pair<File, File> p : candidates) {
-			File infoFile = p.first;
-			Pair<RawResource, Long> info;
-			try {
-				info = parseInfoFile(infoFile);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		try {
+			if (r instanceof RawBigResource) {
+				InputStream in = r.getNewInputStream();
+				byte[] buf = BufferPool.acquire(BUFFER_SIZE);
+				try {
+					while (true) {
+						int len = in.read(buf);
+
+						// finished reading
+						if (len == -1)
+							break;
+
+						// transport to buffer
+						out.write(buf, 0, len);
+					}
+				} finally {
+					BufferPool.release(buf);
+					in.close();
+				}
+
+			} else {
+				out.write(r.getFlatData());
 			}
 
-			Resource rr = info.first;
-			long timestamp = info.second;
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private boolean shouldCache(Resource r) {
+		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
 
+		// Iterate over all possible candidate files
+		while (info.next()) {
 			// is this entry already out dated but not yet removed?
-			if (timestamp + rr.getConfig().getCacheLifespan() < NOW)
+			if (info.isOutdated(NOW))
 				continue;
 
 			// is there any newer entry?
-			if (timestamp > NOW)
+			if (info.getTimestamp() > NOW)
 				return false;
 
 			// is there any of better quality?
-			if (rr.getStatus() > r.getStatus())
+			if (info.getStatus() > r.getStatus())
 				return false;
 		}
 
@@ -246,30 +291,19 @@ public class FileCacheProvider extends CacheProvider {
 
 	@Override
 	public int getCachingStatus(Resource r) {
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
 		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
 
 		int bestStatus = Resource.NOT_AVAILABLE;
 
 		// Iterate over all possible candidate files
-		for (Pair<File, File> p : candidates) {
-			File infoFile = p.first;
-			Pair<RawResource, Long> info;
-			try {
-				info = parseInfoFile(infoFile);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-
-			Resource rr = info.first;
-			long timestamp = info.second;
-			boolean outdated = timestamp + rr.getConfig().getCacheLifespan() < NOW;
-
-			if (outdated)
+		while (info.next()) {
+			if (info.isOutdated(NOW))
 				continue;
 
-			if (rr.getStatus() > bestStatus)
-				bestStatus = rr.getStatus();
+			if (info.getStatus() > bestStatus)
+				bestStatus = info.getStatus();
 		}
 
 		return bestStatus;
@@ -277,34 +311,22 @@ public class FileCacheProvider extends CacheProvider {
 
 	@Override
 	public long getTimestamp(Resource r) {
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
 		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
 
 		int bestStatus = Resource.NOT_AVAILABLE;
 		long resultTimeStamp = 0;
 
 		// Iterate over all possible candidate files
-		for (Pair<File, File> p : candidates) {
-			File infoFile = p.first;
-			Pair<RawResource, Long> info;
-			try {
-				info = parseInfoFile(infoFile);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-
-			Resource rr = info.first;
-			long timestamp = info.second;
-			boolean outdated = timestamp + rr.getConfig().getCacheLifespan() < NOW;
-
-			if (outdated)
+		while (info.next()) {
+			if (info.isOutdated(NOW))
 				continue;
 
-			if (rr.getStatus() > bestStatus) {
-				bestStatus = rr.getStatus();
-				resultTimeStamp = timestamp;
+			if (info.getStatus() > bestStatus) {
+				bestStatus = info.getStatus();
+				resultTimeStamp = info.getTimestamp();
 			}
-
 		}
 
 		return resultTimeStamp;
@@ -312,53 +334,141 @@ public class FileCacheProvider extends CacheProvider {
 
 	@Override
 	public void fillResource(RawResource r) {
-		// determine best file
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
-		final long NOW = TimeProvider.currentTimeMillis();
+		// determine best file; entries without content (e.g. only marked as
+		// updating) must not win
+		InfoFileScanner info = new InfoFileScanner();
+		File bestInfoFile = findBestContent(info, r);
+		if (bestInfoFile == null)
+			return;
 
-		int bestStatus = Resource.NOT_AVAILABLE;
-		long newsestTimestamp = 0L;
-		File bestContentFile = null;
-		Resource bestResource = null;
+		// only the winner is turned into objects
+		try {
+			info.read(bestInfoFile, null);
+			r.setConfig(info.buildConfig());
+			r.setStatus(info.getStatus());
+			writeToResource(InfoFileScanner.getDataFileOf(bestInfoFile), r);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-		// Iterate over all possible candidate files
-		for (Pair<File, File> p : candidates) {
-			File infoFile = p.first;
-			Pair<RawResource, Long> info;
-			try {
-				info = parseInfoFile(infoFile);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+	@Override
+	public void fillValidators(Resource r) {
+		InfoFileScanner info = new InfoFileScanner();
+		File bestInfoFile = findBestContent(info, r);
+		if (bestInfoFile == null)
+			return;
+
+		try {
+			info.read(bestInfoFile, null);
+			r.setETag(info.getETag());
+			r.setLastModified(info.getLastModified());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Best candidate of a resource found while building the index
+	 */
+	private static class IndexCandidate {
+		int mStatus;
+		long mTimestamp;
+		String mETag;
+	}
+
+	@Override
+	public CacheIndex getIndex() {
+		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
+		Map<String, IndexCandidate> best = new HashMap<String, IndexCandidate>();
+
+		File dirs[] = cacheDir.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				info.reset(dir, null);
+
+				// the same rules as in findBestContent(...)
+				while (info.next()) {
+					if (info.isOutdated(NOW)
+							|| info.getStatus() <= Resource.UPDATING)
+						continue;
+
+					final String uri = info.getUri();
+					IndexCandidate b = best.get(uri);
+					if (b == null) {
+						b = new IndexCandidate();
+						best.put(uri, b);
+					} else if (info.getStatus() < b.mStatus
+							|| (info.getStatus() == b.mStatus && info
+									.getTimestamp() < b.mTimestamp)) {
+						continue;
+					}
+
+					b.mStatus = info.getStatus();
+					b.mTimestamp = info.getTimestamp();
+					b.mETag = info.getETag();
+				}
 			}
+		}
 
-			Resource currentCandidate = info.first;
-			long timestamp = info.second;
+		CacheIndex index = new CacheIndex(best.size());
+		for (Map.Entry<String, IndexCandidate> e : best.entrySet())
+			index.add(e.getKey(), e.getValue().mStatus, e.getValue().mETag);
+		index.sort();
+		return index;
+	}
 
-			// is this entry already out dated but not yet removed?
-			if (timestamp + currentCandidate.getConfig().getCacheLifespan() < NOW)
-				continue;
+	@Override
+	public void touch(Resource r) {
+		InfoFileScanner info = new InfoFileScanner();
+		File bestInfoFile = findBestContent(info, r);
+		if (bestInfoFile == null)
+			return;
 
-			// is there any newer entry?
-			if (timestamp < newsestTimestamp)
+		// only the info file is rewritten, the data file stays untouched
+		try {
+			info.read(bestInfoFile, null);
+			writeInfoFile(info.getUri(), info.getStatus(),
+					TimeProvider.currentTimeMillis(),
+					info.getMarshalledConfig(), info.getETag(),
+					info.getLastModified(), bestInfoFile);
+		} catch (IOException e) {
+			throw new RuntimeException("Writing info file failed!", e);
+		}
+	}
+
+	/**
+	 * Determines the info file of the best not outdated candidate with
+	 * content.
+	 * 
+	 * @return <code>null</code> if there is none
+	 */
+	private File findBestContent(InfoFileScanner info, Resource r) {
+		final long NOW = TimeProvider.currentTimeMillis();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
+
+		int bestStatus = Resource.UPDATING;
+		long newsestTimestamp = 0L;
+		File bestInfoFile = null;
+
+		while (info.next()) {
+			// is this entry out dated or without any content?
+			if (info.isOutdated(NOW) || info.getStatus() <= Resource.UPDATING)
 				continue;
 
-			// is there any of better quality?
-			if (currentCandidate.getStatus() < bestStatus)
+			// is this entry's status worse than our current one? or had
+			// there been an entry of the same status with a newer timestamp?
+			if (info.getStatus() < bestStatus
+					|| (info.getStatus() == bestStatus && info.getTimestamp() < newsestTimestamp))
 				continue;
 
-			bestResource = currentCandidate;
-			bestContentFile = p.second;
+			bestStatus = info.getStatus();
+			newsestTimestamp = info.getTimestamp();
+			bestInfoFile = info.getInfoFile();
 		}
 
-		if (bestResource != null) {
-			r.setConfig(bestResource.getConfig());
-			r.setStatus(bestResource.getStatus());
-			try {
-				writeToResource(bestContentFile, r);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		return bestInfoFile;
 	}
 
 	private void writeToResource(File contentFile, RawResource r)
@@ -369,10 +479,14 @@ public class FileCacheProvider extends CacheProvider {
 			rr.replaceUnderlyingFile(contentFile);
 		} else {
 			// it is a normal raw resource
+			// the file length allows reading into an exact-size array
 			InputStream in = new FileInputStream(contentFile);
-			byte[] data = Helper.readStreamIntoArray(in,
-					Helper.FILE_SIZE_UNKOWN);
-			r.setData(data);
+			try {
+				r.adoptData(Helper.readStreamIntoArray(in,
+						(int) contentFile.length()));
+			} finally {
+				in.close();
+			}
 		}
 	}
 
@@ -383,25 +497,14 @@ public class FileCacheProvider extends CacheProvider {
 
 	@Override
 	public boolean isOutdated(Resource r) {
-		List<Pair<File, File>> candidates = getFilesOfResource(r);
 		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
+		info.reset(getDirOfResource(r), r.getPathUri().toString());
 
 		// Iterate over all possible candidate files
-		for (Pair<File, File> p : candidates) {
-			File infoFile = p.first;
-			Pair<RawResource, Long> info;
-			try {
-				info = parseInfoFile(infoFile);
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-
+		while (info.next()) {
 			// check if it is a valid entry
-			Resource rr = info.first;
-			long timestamp = info.second;
-			boolean outdated = timestamp + rr.getConfig().getCacheLifespan() < NOW;
-
-			if (outdated)
+			if (info.isOutdated(NOW))
 				continue;
 
 			// there's at least one up-to-date version
@@ -417,60 +520,22 @@ public class FileCacheProvider extends CacheProvider {
 		return this.mName;
 	}
 
-	private List<Pair<File, File>> getFilesOfResource(Resource r) {
-		List<Pair<File, File>> result = new LinkedList<Pair<File, File>>();
-
-		File dir = getDirOfResource(r);
-		if (!dir.exists() || !dir.isDirectory())
-			return result;
-
-		// dir does exists, so iterate through files
-		File files[] = dir.listFiles();
-		for (File infoFile : files) {
-			// find info file
-			final String infoFileName = infoFile.getName();
-			if (!infoFileName.endsWith(FILE_SUFFIX_INFO))
-				continue;
-			// Log.v(TAG, "Check file: " + infoFile);
-
-			// check if it has the wanted URI
-			try {
-				String uri = parseJustUriFromInfoFile(infoFile);
-				if (!r.getPathUri().toString().equals(uri))
-					continue;
-
-			} catch (IOException e) {
-				e.printStackTrace();
-				continue;
-			}
-
-			// find corresponding content file
-			String contentFileName = infoFileName.substring(0,
-					infoFileName.length() - FILE_SUFFIX_INFO.length())
-					+ FILE_SUFFIX_DATA;
-			File contentFile = new File(dir, contentFileName);
-
-			if (!contentFile.exists())
-				continue;
-
-			// add both to the result
-			Pair<File, File> p = new Pair<File, File>(infoFile, contentFile);
-			result.add(p);
-		}
-
-		return result;
+	private void writeInfoFile(Resource r, long timestamp, File f)
+			throws IOException {
+		writeInfoFile(r.getPathUri().toString(), r.getStatus(), timestamp, r
+				.getConfig().marshall(), r.getETag(), r.getLastModified(), f);
 	}
 
-	private void writeInfoFile(Resource r, long timestamp, File f)
+	private void writeInfoFile(String uri, int status, long timestamp,
+			byte[] marshalled, String eTag, long lastModified, File f)
 			throws IOException {
 		OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
 
 		// WRITE MAGIC (R)
-		out.write(new byte[] { (byte) 0xBA, (byte) 0xBE, (byte) 0xC0,
-				(byte) 0xDE });
+		out.write(InfoFileScanner.MAGIC);
 
 		// WRITE URI
-		char[] chars = r.getPathUri().toString().toCharArray();
+		char[] chars = uri.toCharArray();
 		int len = chars.length;
 		ByteBuffer b1 = ByteBuffer.allocate(4 + 2 * len);
 		b1.putInt(len);
@@ -481,13 +546,12 @@ public class FileCacheProvider extends CacheProvider {
 
 		// WRITE STATUS AND TIMESTAMP
 		ByteBuffer b2 = ByteBuffer.allocate(4 + 8);
-		b2.putInt(r.getStatus());
+		b2.putInt(status);
 		b2.putLong(timestamp);
 		Assert.assertTrue(b2.remaining() == 0);
 		out.write(b2.array());
 
 		// WRITE RESOURCE CONFIG
-		byte[] marshalled = r.getConfig().marshall();
 		int len2 = marshalled.length;
 		ByteBuffer b3 = ByteBuffer.allocate(4 + len2);
 		b3.putInt(len2);
@@ -495,58 +559,77 @@ public class FileCacheProvider extends CacheProvider {
 		Assert.assertTrue(b3.remaining() == 0);
 		out.write(b3.array());
 
+		// WRITE VALIDATORS
+		int len3 = eTag == null ? -1 : eTag.length();
+		ByteBuffer b4 = ByteBuffer.allocate(4 + 2 * Math.max(len3, 0) + 8);
+		b4.putInt(len3);
+		for (int i = 0; i < len3; i++)
+			b4.putChar(eTag.charAt(i));
+		b4.putLong(lastModified);
+		Assert.assertTrue(b4.remaining() == 0);
+		out.write(b4.array());
+
 		// FLUSH
 		out.flush();
 		out.close();
 	}
 
-	/**
-	 * Parses a given info file for meta information
-	 * 
-	 * @param f
-	 *            The file to parse
-	 * @return A pair consisting of the RawResource and the timestamp
-	 * @throws IOException
-	 */
-	private Pair<RawResource, Long> parseInfoFile(File f) throws IOException {
-		// The real IO operations are here
-		InputStream in = new FileInputStream(f);
-		byte array[] = Helper.readStreamIntoArray(in, Helper.FILE_SIZE_UNKOWN);
-		in.close();
-
-		ByteBuffer b = ByteBuffer.wrap(array);
-
-		// CHECK MAGIC
-		Assert.assertEquals((byte) 0xBA, b.get());
-		Assert.assertEquals((byte) 0xBE, b.get());
-		Assert.assertEquals((byte) 0xC0, b.get());
-		Assert.assertEquals((byte) 0xDE, b.get());
-
-		// READ URI
-		int len = b.getInt();
-		char chars[] = new char[len];
-		for (int i = 0; i < len; i++)
-			chars[i] = b.getChar();
-		String uri = new String(chars);
+	@Override
+	void exportEntries(CacheSnapshot.Writer writer) throws IOException {
+		final long NOW = TimeProvider.currentTimeMillis();
+		InfoFileScanner info = new InfoFileScanner();
 
-		// READ STATUS AND TIMESTAMP AND EXPIRE
-		int status = b.getInt();
-		long timestamp = b.getLong();
+		File dirs[] = cacheDir.listFiles();
+		if (dirs == null)
+			return;
 
-		// READ CACHE CONFIG
-		int len2 = b.getInt();
-		byte[] cacheConfigRaw = new byte[len2];
-		b.get(cacheConfigRaw);
+		for (File dir : dirs) {
+			info.reset(dir, null);
 
-		Assert.assertTrue(b.remaining() == 0);
+			while (info.next()) {
+				// status-only entries and expired ones are not worth exporting
+				if (info.getStatus() <= Resource.UPDATING
+						|| info.isOutdated(NOW))
+					continue;
 
-		// BUILD OBJECTS
-		ResourceConfig rc = new ResourceConfig(cacheConfigRaw);
-		RawResource r = new RawResource(uri);
-		r.setConfig(rc);
-		r.setStatus(status);
+				File dataFile = info.getDataFile();
+				InputStream in = new FileInputStream(dataFile);
+				try {
+					writer.writeEntry(info.getUri(), info.getStatus(),
+							info.getTimestamp(), info.getMarshalledConfig(),
+							info.getETag(), info.getLastModified(), in,
+							dataFile.length());
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
 
-		return new Pair<RawResource, Long>(r, timestamp);
+	@Override
+	void importEntries(CacheSnapshot.Reader reader) throws IOException {
+		while (reader.next()) {
+			final String uri = reader.getUri();
+			File dir = new File(cacheDir, getHashForUri(uri));
+			if (!dir.exists() && !dir.mkdir())
+				throw new IOException("Unable to create directory: " + dir);
+
+			String fileName = Helper.randomFileName();
+			File infoFile = new File(dir, fileName + FILE_SUFFIX_INFO);
+			File dataFile = new File(dir, fileName + FILE_SUFFIX_DATA);
+
+			// data first, so that no entry without content becomes visible
+			OutputStream out = new FileOutputStream(dataFile);
+			try {
+				reader.copyData(out);
+			} finally {
+				out.close();
+			}
+
+			writeInfoFile(uri, reader.getStatus(), reader.getTimestamp(),
+					reader.getConfig(), reader.getETag(),
+					reader.getLastModified(), infoFile);
+		}
 	}
 
 	private File getDirOfResource(Resource r) {
@@ -563,28 +646,4 @@ public class FileCacheProvider extends CacheProvider {
 		return Integer.toString(i, 10 + 26);
 	}
 
-	private String parseJustUriFromInfoFile(File f) throws IOException {
-		// The real IO operations are here
-		InputStream in = new FileInputStream(f);
-		byte array[] = Helper.readStreamIntoArray(in, Helper.FILE_SIZE_UNKOWN);
-		in.close();
-
-		ByteBuffer b = ByteBuffer.wrap(array);
-
-		// CHECK MAGIC
-		Assert.assertEquals((byte) 0xBA, b.get());
-		Assert.assertEquals((byte) 0xBE, b.get());
-		Assert.assertEquals((byte) 0xC0, b.get());
-		Assert.assertEquals((byte) 0xDE, b.get());
-
-		// READ URI
-		int len = b.getInt();
-		char chars[] = new char[len];
-		for (int i = 0; i < len; i++)
-			chars[i] = b.getChar();
-		String uri = new String(chars);
-
-		return uri;
-	}
-
 }
@@ -0,0 +1,345 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.caching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.util.Log;
+import de.tum.smartsync.ResourceConfig;
+
+/**
+ * <p>
+ * Iterates over the info files of a resource directory used by the
+ * {@link FileCacheProvider}. All meta information of the current candidate are
+ * decoded into primitive fields of this reusable instance. No objects are
+ * created per examined file except the ones needed for opening it.
+ * 
+ * <p>
+ * The usual usage is: <code>reset(dir, uri)</code> followed by calling
+ * <code>next()</code> until it returns <code>false</code>. Instances of this
+ * class are not thread-safe.
+ * 
+ * @author Daniel
+ * 
+ */
+class InfoFileScanner {
+
+	private static final String TAG = "InfoFileScanner";
+
+	static final String FILE_SUFFIX_INFO = ".info";
+	static final String FILE_SUFFIX_DATA = ".bin";
+
+	/**
+	 * Magic of info files without validators. The last byte of the magic
+	 * denotes the format version.
+	 */
+	static final byte[] MAGIC_V1 = new byte[] { (byte) 0xBA, (byte) 0xBE,
+			(byte) 0xC0, (byte) 0xDE };
+
+	/** Magic of info files which also contain ETag and Last-Modified */
+	static final byte[] MAGIC = new byte[] { (byte) 0xBA, (byte) 0xBE,
+			(byte) 0xC0, (byte) 0xDF };
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+
+	/** Reused for decoding the configuration of every candidate */
+	private final ResourceConfig mConfig = new ResourceConfig();
+	private int mConfigOffset;
+
+	private File mDir;
+	private String mUri;
+	private String[] mNames;
+	private int mIndex;
+
+	/** Status of the current candidate */
+	private int mStatus;
+
+	/** Timestamp of the current candidate */
+	private long mTimestamp;
+
+	/** Position of the ETag within the buffer, -1 if there is none */
+	private int mETagOffset;
+	private int mETagLength;
+
+	/** Last-Modified of the current candidate, 0 if unknown */
+	private long mLastModified;
+
+	/**
+	 * Prepares this scanner for iterating over all candidates of the given uri
+	 * within the given directory.
+	 */
+	void reset(File dir, String uri) {
+		mDir = dir;
+		mUri = uri;
+		mIndex = -1;
+		mNames = dir.isDirectory() ? dir.list() : null;
+
+		// sorting places the data file directly in front of its info file,
+		// as ".bin" < ".info"
+		if (mNames != null)
+			Arrays.sort(mNames);
+	}
+
+	/**
+	 * Advances to the next candidate which belongs to the uri and has a data
+	 * file.
+	 * 
+	 * @return <code>false</code> if there are no more candidates
+	 */
+	boolean next() {
+		if (mNames == null)
+			return false;
+
+		while (++mIndex < mNames.length) {
+			final String name = mNames[mIndex];
+			if (!name.endsWith(FILE_SUFFIX_INFO))
+				continue;
+
+			// find corresponding content file
+			if (!hasDataFile(mIndex))
+				continue;
+
+			// check if it has the wanted URI
+			try {
+				if (read(new File(mDir, name), mUri))
+					return true;
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to read info file " + name, e);
+			} catch (BufferUnderflowException e) {
+				// truncated, e.g. by a crash while writing
+				Log.w(TAG, "Unable to read info file " + name, e);
+			}
+		}
+		return false;
+	}
+
+	private boolean hasDataFile(int infoIndex) {
+		if (infoIndex == 0)
+			return false;
+
+		final String info = mNames[infoIndex];
+		final String data = mNames[infoIndex - 1];
+		final int baseLen = info.length() - FILE_SUFFIX_INFO.length();
+
+		return data.length() == baseLen + FILE_SUFFIX_DATA.length()
+				&& data.endsWith(FILE_SUFFIX_DATA)
+				&& data.regionMatches(0, info, 0, baseLen);
+	}
+
+	/**
+	 * Reads the given info file into this instance.
+	 * 
+	 * @param uri
+	 *            If not <code>null</code> the meta information is only parsed
+	 *            if the file belongs to this uri.
+	 * @return <code>false</code> if the file belongs to another uri
+	 * @throws IOException
+	 */
+	boolean read(File f, String uri) throws IOException {
+		// The real IO operations are here
+		final int size = (int) f.length();
+		if (size > mBuffer.length) {
+			mBuffer = new byte[Math.max(size, 2 * mBuffer.length)];
+			mByteBuffer = ByteBuffer.wrap(mBuffer);
+		}
+
+		InputStream in = new FileInputStream(f);
+		try {
+			int pos = 0;
+			while (pos < size) {
+				int len = in.read(mBuffer, pos, size - pos);
+				if (len == -1)
+					throw new IOException("Unexpected end of info file: " + f);
+				pos += len;
+			}
+		} finally {
+			in.close();
+		}
+
+		ByteBuffer b = mByteBuffer;
+		b.clear();
+		b.limit(size);
+
+		// CHECK MAGIC
+		for (int i = 0; i < MAGIC.length - 1; i++) {
+			if (b.get() != MAGIC[i])
+				throw new IOException("Not an info file: " + f);
+		}
+		final byte version = b.get();
+		if (version != MAGIC[MAGIC.length - 1]
+				&& version != MAGIC_V1[MAGIC_V1.length - 1])
+			throw new IOException("Unknown version of info file: " + f);
+
+		// COMPARE URI
+		int len = b.getInt();
+		if (uri != null) {
+			if (len != uri.length())
+				return false;
+			for (int i = 0; i < len; i++) {
+				if (b.getChar() != uri.charAt(i))
+					return false;
+			}
+		} else {
+			b.position(b.position() + 2 * len);
+		}
+
+		// READ STATUS AND TIMESTAMP
+		mStatus = b.getInt();
+		mTimestamp = b.getLong();
+
+		// READ CACHE CONFIG
+		int len2 = b.getInt();
+		mConfigOffset = b.position();
+		mConfig.unmarshall(b);
+		// the marshalled config might be padded
+		b.position(mConfigOffset + len2);
+
+		// READ VALIDATORS
+		mETagOffset = -1;
+		mETagLength = 0;
+		mLastModified = 0L;
+		if (version == MAGIC[MAGIC.length - 1]) {
+			int len3 = b.getInt();
+			if (len3 >= 0) {
+				mETagOffset = b.position();
+				mETagLength = len3;
+				b.position(mETagOffset + 2 * len3);
+			}
+			mLastModified = b.getLong();
+		}
+
+		if (b.remaining() != 0)
+			throw new IOException("Malformed info file: " + f);
+
+		return true;
+	}
+
+	/**
+	 * Returns the uri of the info file read last. This method allocates a new
+	 * String.
+	 */
+	String getUri() {
+		ByteBuffer b = mByteBuffer;
+		b.position(MAGIC.length);
+
+		int len = b.getInt();
+		char chars[] = new char[len];
+		for (int i = 0; i < len; i++)
+			chars[i] = b.getChar();
+		return new String(chars);
+	}
+
+	/**
+	 * Returns the ETag of the info file read last. This method allocates a
+	 * new String.
+	 * 
+	 * @return <code>null</code> if there is none
+	 */
+	String getETag() {
+		if (mETagOffset == -1)
+			return null;
+
+		ByteBuffer b = mByteBuffer;
+		b.position(mETagOffset);
+
+		char chars[] = new char[mETagLength];
+		for (int i = 0; i < mETagLength; i++)
+			chars[i] = b.getChar();
+		return new String(chars);
+	}
+
+	long getLastModified() {
+		return mLastModified;
+	}
+
+	int getStatus() {
+		return mStatus;
+	}
+
+	long getTimestamp() {
+		return mTimestamp;
+	}
+
+	long getCacheLifespan() {
+		return mConfig.getCacheLifespan();
+	}
+
+	/**
+	 * Returns true if the current candidate has exceeded its cache lifespan
+	 */
+	boolean isOutdated(long now) {
+		return mTimestamp + mConfig.getCacheLifespan() < now;
+	}
+
+	/**
+	 * Returns the info file of the current candidate. This method allocates a
+	 * new File.
+	 */
+	File getInfoFile() {
+		return new File(mDir, mNames[mIndex]);
+	}
+
+	/**
+	 * Returns the data file of the current candidate. This method allocates a
+	 * new File.
+	 */
+	File getDataFile() {
+		return new File(mDir, mNames[mIndex - 1]);
+	}
+
+	/**
+	 * Returns the marshalled configuration of the info file read last. This
+	 * method allocates a new array.
+	 */
+	byte[] getMarshalledConfig() {
+		ByteBuffer b = mByteBuffer;
+		b.position(mConfigOffset - 4);
+
+		byte[] raw = new byte[b.getInt()];
+		b.get(raw);
+		return raw;
+	}
+
+	/**
+	 * Creates a new configuration object for the info file read last.
+	 */
+	ResourceConfig buildConfig() {
+		ResourceConfig rc = new ResourceConfig();
+		mByteBuffer.position(mConfigOffset);
+		rc.unmarshall(mByteBuffer);
+		return rc;
+	}
+
+	/**
+	 * Returns the data file belonging to the given info file.
+	 */
+	static File getDataFileOf(File infoFile) {
+		final String infoFileName = infoFile.getName();
+		String contentFileName = infoFileName.substring(0,
+				infoFileName.length() - FILE_SUFFIX_INFO.length())
+				+ FILE_SUFFIX_DATA;
+		return new File(infoFile.getParentFile(), contentFileName);
+	}
+}
@@ -111,6 +111,10 @@ public class SqlCacheProvider extends CacheProvider {
 		values.put(SqlCacheTableHelper.KEY_EXPIRE, expireTime);
 		values.put(SqlCacheTableHelper.KEY_PRIO, config.getPriority());
 
+		// validators for conditional requests
+		values.put(SqlCacheTableHelper.KEY_ETAG, r.getETag());
+		values.put(SqlCacheTableHelper.KEY_LAST_MODIFIED, r.getLastModified());
+
 		// insert content
 		byte[] data = new byte[0];
 
@@ -135,38 +139,73 @@ public class SqlCacheProvider extends CacheProvider {
 		db.insert(mName, null, values);
 	}
 
+	private static final String WHERE_URI_STATUS_NO_DATA = SqlCacheTableHelper.KEY_URI
+			+ "= ? AND "
+			+ SqlCacheTableHelper.KEY_STATUS
+			+ "= ? AND "
+			+ SqlCacheTableHelper.KEY_DATA + " IS NULL";
+
+	@Override
+	public void cacheStatus(Resource r) {
+		final ResourceConfig config = r.getConfig();
+
+		// determine if we should cache this status
+		if (!shouldCache(db, r))
+			return;
+
+		final long NOW = TimeProvider.currentTimeMillis();
+		final String uri = r.getPathUri().toString();
+
+		ContentValues values = new ContentValues();
+		values.put(SqlCacheTableHelper.KEY_TIMESTAMP, NOW);
+		values.put(SqlCacheTableHelper.KEY_EXPIRE,
+				NOW + config.getCacheLifespan());
+		values.put(SqlCacheTableHelper.KEY_PRIO, config.getPriority());
+
+		// refresh an already existing status-only entry if there is one
+		final int cnt = db.update(mName, values, WHERE_URI_STATUS_NO_DATA,
+				new String[] { uri, Integer.toString(r.getStatus()) });
+		if (cnt > 0)
+			return;
+
+		// otherwise insert a new entry without any data
+		values.put(SqlCacheTableHelper.KEY_URI, uri);
+		values.put(SqlCacheTableHelper.KEY_STATUS, r.getStatus());
+		values.put(SqlCacheTableHelper.KEY_CONFIG, config.marshall());
+		values.putNull(SqlCacheTableHelper.KEY_DATA);
+
+		db.insert(mName, null, values);
+	}
+
 	private static final String[] COLUMNS_STATUS_TIMESTAMP_EXPIRE = new String[] {
 			SqlCacheTableHelper.KEY_STATUS, SqlCacheTableHelper.KEY_TIMESTAMP,
 			SqlCacheTableHelper.KEY_EXPIRE };
 
-	private boolean shouldCache(SQLiteDatabase db, RawResource r) {
+	private boolean shouldCache(SQLiteDatabase db, Resource r) {
 		// get all interesting columns (status and time stamp) and rows (where
 		// URI)
 		Cursor c = db.query(mName, COLUMNS_STATUS_TIMESTAMP_EXPIRE, WHERE_URI,
 				new String[] { r.getPathUri().toString() }, null, null, null);
 
-		// no entries yet? we should cache it!
-		if (c.getCount() == 0)
-			return true;
-
 		final long NOW = TimeProvider.currentTimeMillis();
 
+		// no entries yet? we should cache it!
+		boolean result = true;
+
 		while (c.moveToNext()) {
 			// is this entry already out dated but not yet removed?
 			if (c.getLong(2) < NOW)
 				continue;
 
-			// is there any newer entry?
-			if (c.getLong(1) > NOW)
-				return false;
-
-			// is there any of better quality?
-			if (c.getInt(0) > r.getStatus())
-				return false;
+			// is there any newer entry? or any of better quality?
+			if (c.getLong(1) > NOW || c.getInt(0) > r.getStatus()) {
+				result = false;
+				break;
+			}
 		}
 		c.close();
 
-		return true;
+		return result;
 	}
 
 	private static final String[] COLUMNS_STATUS_EXPIRE = new String[] {
@@ -193,10 +232,9 @@ public class SqlCacheProvider extends CacheProvider {
 		return bestStatus;
 	}
 
-	private static final String[] COLUMNS_STATUS_TIMESTAMP_CONFIG_EXPIRE_ID = new String[] {
+	private static final String[] COLUMNS_STATUS_TIMESTAMP_EXPIRE_ID = new String[] {
 			SqlCacheTableHelper.KEY_STATUS, SqlCacheTableHelper.KEY_TIMESTAMP,
-			SqlCacheTableHelper.KEY_CONFIG, SqlCacheTableHelper.KEY_EXPIRE,
-			SqlCacheTableHelper.KEY_ID };
+			SqlCacheTableHelper.KEY_EXPIRE, SqlCacheTableHelper.KEY_ID };
 
 	private static final String[] COLUMNS_STATUS_TIMESTAMP_DATA_CONFIG_EXPIRE = new String[] {
 			SqlCacheTableHelper.KEY_STATUS, SqlCacheTableHelper.KEY_TIMESTAMP,
@@ -208,38 +246,22 @@ public class SqlCacheProvider extends CacheProvider {
 	@Override
 	public void fillResource(RawResource r) {
 		// query this resource from our DB
-		Cursor c = db.query(mName, COLUMNS_STATUS_TIMESTAMP_CONFIG_EXPIRE_ID,
+		Cursor c = db.query(mName, COLUMNS_STATUS_TIMESTAMP_EXPIRE_ID,
 				WHERE_URI, new String[] { r.getPathUri().toString() }, null,
 				null, null);
 
-		long bestTimestamp = 0L;
-		int bestStatus = r.getStatus();
-		int bestIndex = -1;
+		// entries without content (e.g. only marked as updating) must not win
+		final int best = findBestContent(c);
 		int bestId = -1;
-
-		while (c.moveToNext()) {
-			// is this entry already out dated but not yet removed?
-			if (c.getLong(3) < TimeProvider.currentTimeMillis())
-				continue;
-
-			// is this entry's status worse than our current one?
-			if (c.getInt(0) < bestStatus)
-				continue;
-			bestStatus = c.getInt(0);
-
-			// had there been an entry with a newer time stamp?
-			if (c.getLong(1) < bestTimestamp)
-				continue;
-			bestTimestamp = c.getLong(1);
-
-			// remember position
-			bestIndex = c.getPosition();
-			bestId = c.getInt(4);
+		if (best >= 0) {
+			c.moveToPosition(best);
+			if (c.getInt(0) >= r.getStatus())
+				bestId = c.getInt(3);
 		}
 		c.close();
 
 		// nothing found?
-		if (bestIndex == -1)
+		if (bestId == -1)
 			return;
 
 		// query data for best resource
@@ -267,15 +289,145 @@ public class SqlCacheProvider extends CacheProvider {
 			}
 		} else {
 			// it is just a normal RawResource
+			// the cursor returns a new array for each call
 			final byte data[] = c2.getBlob(2);
 			if (data != null)
-				r.setData(data);
+				r.adoptData(data);
 		}
 
 		ResourceConfig config = r.getConfig();
 		config.unmarshall(c2.getBlob(3));
 	}
 
+	private static final String[] COLUMNS_STATUS_TIMESTAMP_EXPIRE_ID_ETAG_LASTMOD = new String[] {
+			SqlCacheTableHelper.KEY_STATUS, SqlCacheTableHelper.KEY_TIMESTAMP,
+			SqlCacheTableHelper.KEY_EXPIRE, SqlCacheTableHelper.KEY_ID,
+			SqlCacheTableHelper.KEY_ETAG, SqlCacheTableHelper.KEY_LAST_MODIFIED };
+
+	@Override
+	public void fillValidators(Resource r) {
+		Cursor c = db.query(mName,
+				COLUMNS_STATUS_TIMESTAMP_EXPIRE_ID_ETAG_LASTMOD, WHERE_URI,
+				new String[] { r.getPathUri().toString() }, null, null, null);
+
+		final int best = findBestContent(c);
+		if (best >= 0) {
+			c.moveToPosition(best);
+			r.setETag(c.getString(4));
+			r.setLastModified(c.getLong(5));
+		}
+		c.close();
+	}
+
+	private static final String[] COLUMNS_STATUS_TIMESTAMP_URI_ETAG = new String[] {
+			SqlCacheTableHelper.KEY_STATUS, SqlCacheTableHelper.KEY_TIMESTAMP,
+			SqlCacheTableHelper.KEY_URI, SqlCacheTableHelper.KEY_ETAG };
+
+	@Override
+	public CacheIndex getIndex() {
+		Cursor c = db.query(mName, COLUMNS_STATUS_TIMESTAMP_URI_ETAG,
+				WHERE_VALID_CONTENT,
+				new String[] { Integer.toString(Resource.UPDATING),
+						Long.toString(TimeProvider.currentTimeMillis()) },
+				null, null, SqlCacheTableHelper.KEY_URI);
+
+		CacheIndex index = new CacheIndex(c.getCount());
+		String uri = null;
+		String bestETag = null;
+		int bestStatus = Resource.UPDATING;
+		long bestTimestamp = 0L;
+
+		// the candidates of a resource are adjacent, the best one is chosen
+		// like findBestContent(...) does
+		while (c.moveToNext()) {
+			final String u = c.getString(2);
+			if (!u.equals(uri)) {
+				if (uri != null)
+					index.add(uri, bestStatus, bestETag);
+				uri = u;
+				bestStatus = Resource.UPDATING;
+				bestTimestamp = 0L;
+			}
+
+			final int status = c.getInt(0);
+			if (status < bestStatus
+					|| (status == bestStatus && c.getLong(1) < bestTimestamp))
+				continue;
+
+			bestStatus = status;
+			bestTimestamp = c.getLong(1);
+			bestETag = c.getString(3);
+		}
+		if (uri != null)
+			index.add(uri, bestStatus, bestETag);
+		c.close();
+
+		index.sort();
+		return index;
+	}
+
+	@Override
+	public void touch(Resource r) {
+		Cursor c = db.query(mName,
+				COLUMNS_STATUS_TIMESTAMP_EXPIRE_ID_ETAG_LASTMOD, WHERE_URI,
+				new String[] { r.getPathUri().toString() }, null, null, null);
+
+		int bestId = -1;
+		final int best = findBestContent(c);
+		if (best >= 0) {
+			c.moveToPosition(best);
+			bestId = c.getInt(3);
+		}
+		c.close();
+
+		if (bestId == -1)
+			return;
+
+		// only the meta information is updated, not the data
+		final long NOW = TimeProvider.currentTimeMillis();
+		ContentValues values = new ContentValues();
+		values.put(SqlCacheTableHelper.KEY_TIMESTAMP, NOW);
+		values.put(SqlCacheTableHelper.KEY_EXPIRE, NOW
+				+ r.getConfig().getCacheLifespan());
+		db.update(mName, values, WHERE_ID,
+				new String[] { Integer.toString(bestId) });
+	}
+
+	/**
+	 * Determines the best not expired entry with content. The cursor must
+	 * contain the status, timestamp and expire columns at the first three
+	 * positions.
+	 * 
+	 * @return The position of the best entry or -1 if there is none
+	 */
+	private int findBestContent(Cursor c) {
+		final long NOW = TimeProvider.currentTimeMillis();
+
+		int bestStatus = Resource.UPDATING;
+		long bestTimestamp = 0L;
+		int bestIndex = -1;
+
+		while (c.moveToNext()) {
+			final int status = c.getInt(0);
+
+			// is this entry already out dated or without any content?
+			if (c.getLong(2) < NOW || status <= Resource.UPDATING)
+				continue;
+
+			// is this entry's status worse than our current one? or had there
+			// been an entry of the same status with a newer time stamp?
+			if (status < bestStatus
+					|| (status == bestStatus && c.getLong(1) < bestTimestamp))
+				continue;
+
+			bestStatus = status;
+			bestTimestamp = c.getLong(1);
+			bestIndex = c.getPosition();
+		}
+
+		return bestIndex;
+	}
+
 	@Override
 	public void close() {
 		if (db != null)
@@ -413,4 +565,69 @@ public class SqlCacheProvider extends CacheProvider {
 		return timeStamp;
 	}
 
+	private static final String[] COLUMNS_URI_STATUS_TIMESTAMP_CONFIG_ETAG_LASTMOD_DATA = new String[] {
+			SqlCacheTableHelper.KEY_URI, SqlCacheTableHelper.KEY_STATUS,
+			SqlCacheTableHelper.KEY_TIMESTAMP, SqlCacheTableHelper.KEY_CONFIG,
+			SqlCacheTableHelper.KEY_ETAG,
+			SqlCacheTableHelper.KEY_LAST_MODIFIED,
+			SqlCacheTableHelper.KEY_DATA };
+
+	private static final String WHERE_VALID_CONTENT = SqlCacheTableHelper.KEY_STATUS
+			+ " > ? AND " + SqlCacheTableHelper.KEY_EXPIRE + " >= ?";
+
+	@Override
+	void exportEntries(CacheSnapshot.Writer writer) throws IOException {
+		// status-only entries and expired ones are not worth exporting. A
+		// single scan including the data, the cursor window moves along.
+		Cursor c = db.query(mName,
+				COLUMNS_URI_STATUS_TIMESTAMP_CONFIG_ETAG_LASTMOD_DATA,
+				WHERE_VALID_CONTENT,
+				new String[] { Integer.toString(Resource.UPDATING),
+						Long.toString(TimeProvider.currentTimeMillis()) },
+				null, null, SqlCacheTableHelper.KEY_URI);
+
+		try {
+			while (c.moveToNext()) {
+				byte[] data = c.getBlob(6);
+				writer.writeEntry(c.getString(0), c.getInt(1), c.getLong(2),
+						c.getBlob(3), c.getString(4), c.getLong(5),
+						data != null ? data : new byte[0]);
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Override
+	void importEntries(CacheSnapshot.Reader reader) throws IOException {
+		// one transaction for all entries is way faster than single inserts
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			while (reader.next()) {
+				final ResourceConfig config = new ResourceConfig(
+						reader.getConfig());
+
+				values.clear();
+				values.put(SqlCacheTableHelper.KEY_URI, reader.getUri());
+				values.put(SqlCacheTableHelper.KEY_STATUS, reader.getStatus());
+				values.put(SqlCacheTableHelper.KEY_TIMESTAMP,
+						reader.getTimestamp());
+				values.put(SqlCacheTableHelper.KEY_CONFIG, reader.getConfig());
+				values.put(SqlCacheTableHelper.KEY_EXPIRE,
+						reader.getTimestamp() + config.getCacheLifespan());
+				values.put(SqlCacheTableHelper.KEY_PRIO, config.getPriority());
+				values.put(SqlCacheTableHelper.KEY_ETAG, reader.getETag());
+				values.put(SqlCacheTableHelper.KEY_LAST_MODIFIED,
+						reader.getLastModified());
+				values.put(SqlCacheTableHelper.KEY_DATA, reader.readData());
+
+				db.insert(mName, null, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 }
@@ -31,7 +31,7 @@ public class SqlCacheTableHelper extends SQLiteOpenHelper {
 
 	public static final String DATABASE_NAME = "de.tum.smartsync.cachedb";
 
-	private static final int DATABASE_VERSION = DatabaseHelper.DATABASE_VERSION + 3;
+	private static final int DATABASE_VERSION = DatabaseHelper.DATABASE_VERSION + 4;
 
 	public static final String KEY_ID = "i";
 	public static final String KEY_URI = "u";
@@ -41,6 +41,8 @@ public class SqlCacheTableHelper extends SQLiteOpenHelper {
 	public static final String KEY_CONFIG = "c";
 	public static final String KEY_EXPIRE = "e";
 	public static final String KEY_PRIO = "p";
+	public static final String KEY_ETAG = "g";
+	public static final String KEY_LAST_MODIFIED = "l";
 
 	private String mTableName;
 
@@ -63,7 +65,8 @@ public class SqlCacheTableHelper extends SQLiteOpenHelper {
 				+ KEY_ID + " INTEGER PRIMARY KEY, " + KEY_URI + " TEXT, "
 				+ KEY_STATUS + " INTEGER, " + KEY_TIMESTAMP + " INTEGER, "
 				+ KEY_DATA + " BLOB, " + KEY_CONFIG + " BLOB, " + KEY_EXPIRE
-				+ " INTEGER, " + KEY_PRIO + " INTEGER);";
+				+ " INTEGER, " + KEY_PRIO + " INTEGER, " + KEY_ETAG + " TEXT, "
+				+ KEY_LAST_MODIFIED + " INTEGER);";
 		db.execSQL(TABLE_CREATE);
 		db.execSQL("CREATE INDEX IF NOT EXISTS uri_index_" + mTableName
 				+ " ON " + mTableName + "(" + KEY_URI + ");");
@@ -0,0 +1,483 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import de.tum.smartsync.Resource;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Learns the actual throughput and latency of the connection types (and of
+ * single authorities) from real downloads. The values are exponentially
+ * weighted moving averages, so recent downloads count more than old ones.
+ * For the latency the mean deviation is averaged as well, which allows to
+ * estimate high percentiles of the latency. The values are persisted in the
+ * {@link ConnectivityDbHelper} database. Downloads only update the values in
+ * memory; the changed ones are written at most every
+ * {@link #PERSIST_INTERVAL} and when <code>persist()</code> is called.
+ * 
+ * <p>
+ * The connection types of the {@link ConnectionGuru} are coarse, e.g. LTE and
+ * HSDPA are both fast mobile connections. Hence the samples are also
+ * accounted to the network type of the current connection (see
+ * <code>setCurrentNetwork(...)</code>), and the estimate of that network type
+ * is preferred as soon as it has enough samples.
+ * 
+ * <p>
+ * The estimates replace the static factors of the {@link ConnectionGuru}. As
+ * long as there are not enough samples for a connection type, the static
+ * factors are used as fallback.
+ * 
+ * @author Daniel
+ * 
+ */
+public class BandwidthEstimator {
+
+	private static final String TAG = "BandwidthEstimator";
+
+	/** Weight of a new sample within the moving average */
+	private static final float EWMA_ALPHA = 0.25f;
+
+	/** Number of samples needed before an estimate is trusted */
+	public static final int MIN_SAMPLES = 3;
+
+	/**
+	 * Smaller transfers are dominated by the latency and therefore not used
+	 * for estimating the throughput
+	 */
+	public static final long MIN_THROUGHPUT_SAMPLE_BYTES = 16 * 1024;
+
+	/**
+	 * Throughput regarded as speed factor 1.0, matching a fast mobile
+	 * connection of {@link ConnectionGuru}
+	 */
+	private static final float REFERENCE_THROUGHPUT = 100 * 1024f; // B/s
+
+	/** Latency regarded as delay factor 1.0 */
+	private static final float REFERENCE_LATENCY = 200f; // ms
+
+	/** Authority used for the estimate of a whole connection type */
+	private static final String ANY_AUTHORITY = "";
+
+	/** Network type used for the estimate of a whole connection type */
+	public static final int ANY_NETWORK_TYPE = -1;
+
+	/** Minimum time between two writes of the changed estimates */
+	public static final long PERSIST_INTERVAL = 30 * TimeProvider.SECOND;
+
+	private static BandwidthEstimator sInstance = null;
+
+	private final ConnectivityDbHelper mDbHelper;
+
+	private final Map<String, Estimate> mEstimates = new HashMap<String, Estimate>();
+
+	/** Estimates changed since they were written */
+	private final Set<Estimate> mChanged = new HashSet<Estimate>();
+
+	private long mLastPersist = 0L;
+
+	/** The connection type the network type belongs to */
+	private int mCurrentConnection = ConnectionGuru.CONNECTION_UNKNOWN;
+	private int mNetworkType = ANY_NETWORK_TYPE;
+
+	/** Keeps the writes in the order of the changes */
+	private final Object mPersistLock = new Object();
+
+	/**
+	 * Moving averages for one connection type and authority
+	 */
+	private static class Estimate {
+		final int mConnection;
+		final int mNetworkType;
+		final String mAuthority;
+
+		/** bytes per second, -1 if unknown */
+		float mThroughput = -1f;
+		int mThroughputSamples = 0;
+
+		/** ms until the first byte, -1 if unknown */
+		float mLatency = -1f;
+		int mLatencySamples = 0;
+
+		/** Mean deviation of the latency in ms */
+		float mLatencyDeviation = 0f;
+
+		Estimate(int connection, int networkType, String authority) {
+			this.mConnection = connection;
+			this.mNetworkType = networkType;
+			this.mAuthority = authority;
+		}
+	}
+
+	private BandwidthEstimator(Context context) {
+		mDbHelper = ConnectivityDbHelper.getInstance(context);
+		load();
+	}
+
+	/**
+	 * Returns the estimator of this process. It is created and loaded from
+	 * the database on first use.
+	 */
+	public static synchronized BandwidthEstimator getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new BandwidthEstimator(context.getApplicationContext());
+		return sInstance;
+	}
+
+	private static final String[] COLUMNS_ALL = new String[] {
+			ConnectivityDbHelper.KEY_CONNECTION,
+			ConnectivityDbHelper.KEY_NETWORK_TYPE,
+			ConnectivityDbHelper.KEY_AUTHORITY,
+			ConnectivityDbHelper.KEY_THROUGHPUT,
+			ConnectivityDbHelper.KEY_LATENCY,
+			ConnectivityDbHelper.KEY_LATENCY_DEVIATION,
+			ConnectivityDbHelper.KEY_SAMPLES };
+
+	private void load() {
+		SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		Cursor c = db.query(ConnectivityDbHelper.TABLE_BANDWIDTH, COLUMNS_ALL,
+				null, null, null, null, null);
+		while (c.moveToNext()) {
+			Estimate e = new Estimate(c.getInt(0), c.getInt(1),
+					c.getString(2));
+			e.mThroughput = c.getFloat(3);
+			e.mLatency = c.getFloat(4);
+			e.mLatencyDeviation = c.getFloat(5);
+
+			// the exact split does not matter after a restart
+			final int samples = c.getInt(6);
+			e.mThroughputSamples = e.mThroughput < 0 ? 0 : samples;
+			e.mLatencySamples = e.mLatency < 0 ? 0 : samples;
+			mEstimates.put(
+					getKey(e.mConnection, e.mNetworkType, e.mAuthority), e);
+		}
+		c.close();
+
+		Log.d(TAG, "Loaded " + mEstimates.size() + " estimates.");
+	}
+
+	private static ContentValues toValues(Estimate e) {
+		ContentValues values = new ContentValues();
+		values.put(ConnectivityDbHelper.KEY_CONNECTION, e.mConnection);
+		values.put(ConnectivityDbHelper.KEY_NETWORK_TYPE, e.mNetworkType);
+		values.put(ConnectivityDbHelper.KEY_AUTHORITY, e.mAuthority);
+		values.put(ConnectivityDbHelper.KEY_THROUGHPUT, e.mThroughput);
+		values.put(ConnectivityDbHelper.KEY_LATENCY, e.mLatency);
+		values.put(ConnectivityDbHelper.KEY_LATENCY_DEVIATION,
+				e.mLatencyDeviation);
+		values.put(ConnectivityDbHelper.KEY_SAMPLES,
+				Math.max(e.mThroughputSamples, e.mLatencySamples));
+		values.put(ConnectivityDbHelper.KEY_TIMESTAMP,
+				TimeProvider.currentTimeMillis());
+		return values;
+	}
+
+	/**
+	 * Writes the estimates changed since the last call into the database.
+	 * The update service calls this at the end of each session.
+	 */
+	public void persist() {
+		synchronized (mPersistLock) {
+			List<ContentValues> changed;
+			synchronized (this) {
+				mLastPersist = TimeProvider.currentTimeMillis();
+				if (mChanged.isEmpty())
+					return;
+
+				changed = new ArrayList<ContentValues>(mChanged.size());
+				for (Estimate e : mChanged)
+					changed.add(toValues(e));
+				mChanged.clear();
+			}
+
+			// written without holding the estimates
+			SQLiteDatabase db = mDbHelper.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (ContentValues values : changed)
+					db.replace(ConnectivityDbHelper.TABLE_BANDWIDTH, null,
+							values);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Sets the network type of the current connection, which the samples of
+	 * this connection type are accounted to from now on.
+	 * 
+	 * @param connection
+	 *            See {@link ConnectionGuru}
+	 * @param networkType
+	 *            See <code>ConnectionGuru.getNetworkType()</code>, might be
+	 *            {@link #ANY_NETWORK_TYPE}
+	 */
+	public synchronized void setCurrentNetwork(int connection,
+			int networkType) {
+		this.mCurrentConnection = connection;
+		this.mNetworkType = networkType;
+	}
+
+	private static String getKey(int connection, int networkType,
+			String authority) {
+		return connection + "|" + networkType + "|" + authority;
+	}
+
+	private Estimate getEstimate(int connection, int networkType,
+			String authority, boolean create) {
+		final String key = getKey(connection, networkType, authority);
+		Estimate e = mEstimates.get(key);
+		if (e == null && create) {
+			e = new Estimate(connection, networkType, authority);
+			mEstimates.put(key, e);
+		}
+		return e;
+	}
+
+	/**
+	 * Returns the most specific estimate with enough samples. The network type
+	 * is preferred over the authority, as the type of the link makes the
+	 * bigger difference.
+	 * 
+	 * @param latency
+	 *            Whether samples of the latency are needed instead of the
+	 *            throughput
+	 * @return <code>null</code> if there are not enough samples
+	 */
+	private Estimate findEstimate(int connection, String authority,
+			boolean latency) {
+		Estimate e = null;
+		if (connection == mCurrentConnection
+				&& mNetworkType != ANY_NETWORK_TYPE) {
+			e = trusted(getEstimate(connection, mNetworkType, authority,
+					false), latency);
+			if (e == null)
+				e = trusted(getEstimate(connection, mNetworkType,
+						ANY_AUTHORITY, false), latency);
+		}
+		if (e == null)
+			e = trusted(getEstimate(connection, ANY_NETWORK_TYPE, authority,
+					false), latency);
+		if (e == null)
+			e = trusted(getEstimate(connection, ANY_NETWORK_TYPE,
+					ANY_AUTHORITY, false), latency);
+		return e;
+	}
+
+	private static Estimate trusted(Estimate e, boolean latency) {
+		if (e == null)
+			return null;
+		final int samples = latency ? e.mLatencySamples
+				: e.mThroughputSamples;
+		return samples >= MIN_SAMPLES ? e : null;
+	}
+
+	/**
+	 * Adds the measurements of a finished download.
+	 * 
+	 * @param connection
+	 *            The connection type used (see {@link ConnectionGuru})
+	 * @param authority
+	 *            Might be <code>null</code>
+	 * @param bytes
+	 *            Number of bytes transferred (as on the wire)
+	 * @param latency
+	 *            Time from sending the request until the response arrived in
+	 *            ms
+	 * @param duration
+	 *            Time needed for reading the content in ms
+	 */
+	public void addSample(int connection, String authority, long bytes,
+			long latency, long duration) {
+		if (connection == ConnectionGuru.CONNECTION_NONE)
+			return;
+
+		final boolean due;
+		synchronized (this) {
+			update(connection, ANY_NETWORK_TYPE, authority, bytes, latency,
+					duration);
+			if (connection == mCurrentConnection
+					&& mNetworkType != ANY_NETWORK_TYPE)
+				update(connection, mNetworkType, authority, bytes, latency,
+						duration);
+
+			due = TimeProvider.currentTimeMillis() - mLastPersist
+					>= PERSIST_INTERVAL;
+		}
+
+		if (due)
+			persist();
+	}
+
+	private void update(int connection, int networkType, String authority,
+			long bytes, long latency, long duration) {
+		update(getEstimate(connection, networkType, ANY_AUTHORITY, true),
+				bytes, latency, duration);
+		if (authority != null)
+			update(getEstimate(connection, networkType, authority, true),
+					bytes, latency, duration);
+	}
+
+	private void update(Estimate e, long bytes, long latency, long duration) {
+		if (latency >= 0) {
+			// deviation from the average before this sample (like the
+			// round-trip time estimation of TCP)
+			if (e.mLatency >= 0)
+				e.mLatencyDeviation = ewma(e.mLatencyDeviation,
+						Math.abs(latency - e.mLatency));
+			e.mLatency = ewma(e.mLatency, latency);
+			e.mLatencySamples++;
+		}
+
+		if (bytes >= MIN_THROUGHPUT_SAMPLE_BYTES && duration > 0) {
+			// 1000, as there are 1000ms per second
+			e.mThroughput = ewma(e.mThroughput, 1000f * bytes / duration);
+			e.mThroughputSamples++;
+		}
+
+		mChanged.add(e);
+	}
+
+	private static float ewma(float average, float sample) {
+		if (average < 0)
+			return sample;
+		return EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * average;
+	}
+
+	/**
+	 * Returns the estimated throughput of the connection type in bytes/s.
+	 * 
+	 * @return -1 if there are not enough samples
+	 */
+	public synchronized float getThroughput(int connection) {
+		return getThroughput(connection, ANY_AUTHORITY);
+	}
+
+	/**
+	 * Returns the estimated throughput of the authority over the connection
+	 * type in bytes/s. Falls back to the estimate of the whole connection type.
+	 * 
+	 * @return -1 if there are not enough samples
+	 */
+	public synchronized float getThroughput(int connection, String authority) {
+		Estimate e = findEstimate(connection, authority, false);
+		return e != null ? e.mThroughput : -1f;
+	}
+
+	/**
+	 * Returns the estimated latency of the connection type in ms.
+	 * 
+	 * @return -1 if there are not enough samples
+	 */
+	public synchronized float getLatency(int connection) {
+		return getLatency(connection, ANY_AUTHORITY);
+	}
+
+	/**
+	 * Returns the estimated latency of the authority over the connection type
+	 * in ms. Falls back to the estimate of the whole connection type.
+	 * 
+	 * @return -1 if there are not enough samples
+	 */
+	public synchronized float getLatency(int connection, String authority) {
+		Estimate e = findEstimate(connection, authority, true);
+		return e != null ? e.mLatency : -1f;
+	}
+
+	/**
+	 * Returns the estimated 95th percentile of the latency of the authority
+	 * over the connection type in ms, i.e. only one of twenty responses should
+	 * take longer. Assuming normally distributed latencies, this is the
+	 * average plus twice the mean deviation. Falls back to the estimate of the
+	 * whole connection type.
+	 * 
+	 * @return -1 if there are not enough samples
+	 */
+	public synchronized float getLatencyP95(int connection, String authority) {
+		Estimate e = findEstimate(connection, authority, true);
+		if (e == null)
+			return -1f;
+
+		return e.mLatency + 2f * e.mLatencyDeviation;
+	}
+
+	/**
+	 * Measured replacement for <code>ConnectionGuru.getSpeedFactor()</code>.
+	 * 
+	 * @return A factor between 0.1 (slower) and 10.0 (faster). A fast mobile
+	 *         connection is regarded as 1.0.
+	 */
+	public float getSpeedFactor(int connection) {
+		final float throughput = getThroughput(connection);
+		if (connection == ConnectionGuru.CONNECTION_NONE || throughput < 0)
+			return ConnectionGuru.getSpeedFactor(connection);
+
+		return clamp(throughput / REFERENCE_THROUGHPUT);
+	}
+
+	/**
+	 * Measured replacement for <code>ConnectionGuru.getDelayFactor()</code>.
+	 * 
+	 * @return A factor between 0.1 (less delay) and 10.0 (more delay)
+	 */
+	public float getDelayFactor(int connection) {
+		final float latency = getLatency(connection);
+		if (connection == ConnectionGuru.CONNECTION_NONE || latency < 0)
+			return ConnectionGuru.getDelayFactor(connection);
+
+		return clamp(latency / REFERENCE_LATENCY);
+	}
+
+	/**
+	 * Measured replacement for <code>ConnectionGuru.getExpectedQuality()</code>
+	 * : the quality level is chosen by the speed factor instead of the
+	 * connection type only.
+	 * 
+	 * @return See Resource.NOT_AVAILABLE and Resource.QUALITY_***
+	 */
+	public int getExpectedQuality(int connection) {
+		if (connection == ConnectionGuru.CONNECTION_NONE
+				|| getThroughput(connection) < 0)
+			return ConnectionGuru.getExpectedQuality(connection);
+
+		final float speed = getSpeedFactor(connection);
+		if (speed >= 5f)
+			return Resource.QUALITY_BEST;
+		if (speed >= 0.5f)
+			return Resource.QUALITY_GOOD;
+		if (speed >= 0.2f)
+			return Resource.QUALITY_FAIR;
+		return Resource.QUALITY_WORST;
+	}
+
+	private static float clamp(float factor) {
+		return Math.max(0.1f, Math.min(10f, factor));
+	}
+}
@@ -0,0 +1,258 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Keeps track of authorities which are currently unreachable. After
+ * {@link #FAILURE_THRESHOLD} consecutive failed requests the circuit of an
+ * authority is opened and all further requests fail fast for the open
+ * duration. Afterwards a single probe request is let through (half open): if
+ * it succeeds the circuit is closed again, otherwise it is reopened for twice
+ * the previous duration. A probe which has not reported its outcome within
+ * {@link #PROBE_TIMEOUT} is regarded as lost and replaced by the next request.
+ * 
+ * <p>
+ * The state is persisted in the {@link ConnectivityDbHelper} database, so
+ * that an update service started by the next alarm respects it as well.
+ * 
+ * @author Daniel
+ * 
+ */
+public class CircuitBreaker {
+
+	private static final String TAG = "CircuitBreaker";
+
+	public static final int STATE_CLOSED = 0;
+	public static final int STATE_OPEN = 1;
+	public static final int STATE_HALF_OPEN = 2;
+
+	/** Number of consecutive failures opening the circuit */
+	public static final int FAILURE_THRESHOLD = 5;
+
+	/** Duration the circuit is opened for the first time */
+	public static final long MIN_OPEN_DURATION = 30 * TimeProvider.SECOND;
+
+	/** Upper bound for the doubled open durations */
+	public static final long MAX_OPEN_DURATION = 30 * TimeProvider.MINUTE;
+
+	/** A probe is replaced if it has not reported after this time */
+	public static final long PROBE_TIMEOUT = 5 * TimeProvider.MINUTE;
+
+	private static CircuitBreaker sInstance = null;
+
+	private final ConnectivityDbHelper mDbHelper;
+
+	private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+	/**
+	 * State of the circuit of one authority
+	 */
+	private static class Circuit {
+		final String mAuthority;
+
+		int mState = STATE_CLOSED;
+		int mFailures = 0;
+		long mOpenUntil = 0L;
+		long mOpenDuration = 0L;
+
+		/** Set while the probe request of the half open state is running */
+		boolean mProbing = false;
+		long mProbeStart = 0L;
+
+		Circuit(String authority) {
+			this.mAuthority = authority;
+		}
+	}
+
+	private CircuitBreaker(Context context) {
+		mDbHelper = ConnectivityDbHelper.getInstance(context);
+		load();
+	}
+
+	/**
+	 * Returns the circuit breaker of this process. It is created and loaded
+	 * from the database on first use.
+	 */
+	public static synchronized CircuitBreaker getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new CircuitBreaker(context.getApplicationContext());
+		return sInstance;
+	}
+
+	private static final String[] COLUMNS_ALL = new String[] {
+			ConnectivityDbHelper.KEY_AUTHORITY, ConnectivityDbHelper.KEY_STATE,
+			ConnectivityDbHelper.KEY_FAILURES,
+			ConnectivityDbHelper.KEY_OPEN_UNTIL,
+			ConnectivityDbHelper.KEY_OPEN_DURATION };
+
+	private void load() {
+		SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		Cursor c = db.query(ConnectivityDbHelper.TABLE_CIRCUIT, COLUMNS_ALL,
+				null, null, null, null, null);
+		while (c.moveToNext()) {
+			Circuit circuit = new Circuit(c.getString(0));
+			circuit.mState = c.getInt(1);
+			circuit.mFailures = c.getInt(2);
+			circuit.mOpenUntil = c.getLong(3);
+			circuit.mOpenDuration = c.getLong(4);
+
+			// the probe of a former process never finished
+			if (circuit.mState == STATE_HALF_OPEN)
+				circuit.mState = STATE_OPEN;
+			mCircuits.put(circuit.mAuthority, circuit);
+		}
+		c.close();
+
+		Log.d(TAG, "Loaded " + mCircuits.size() + " circuits.");
+	}
+
+	private void store(Circuit circuit) {
+		ContentValues values = new ContentValues();
+		values.put(ConnectivityDbHelper.KEY_AUTHORITY, circuit.mAuthority);
+		values.put(ConnectivityDbHelper.KEY_STATE, circuit.mState);
+		values.put(ConnectivityDbHelper.KEY_FAILURES, circuit.mFailures);
+		values.put(ConnectivityDbHelper.KEY_OPEN_UNTIL, circuit.mOpenUntil);
+		values.put(ConnectivityDbHelper.KEY_OPEN_DURATION,
+				circuit.mOpenDuration);
+		values.put(ConnectivityDbHelper.KEY_TIMESTAMP,
+				TimeProvider.currentTimeMillis());
+
+		mDbHelper.getWritableDatabase().replace(
+				ConnectivityDbHelper.TABLE_CIRCUIT, null, values);
+	}
+
+	private Circuit getCircuit(String authority) {
+		Circuit circuit = mCircuits.get(authority);
+		if (circuit == null) {
+			circuit = new Circuit(authority);
+			mCircuits.put(authority, circuit);
+		}
+		return circuit;
+	}
+
+	/**
+	 * Checks whether a request to the authority may be sent. If the open
+	 * duration has passed, the calling request becomes the probe of the half
+	 * open circuit and has to report its outcome.
+	 * 
+	 * @throws CircuitOpenException
+	 *             If the authority must not be contacted
+	 */
+	public synchronized void checkRequest(String authority)
+			throws CircuitOpenException {
+		Circuit circuit = getCircuit(authority);
+		switch (circuit.mState) {
+		case STATE_CLOSED:
+			return;
+		case STATE_OPEN:
+			if (TimeProvider.currentTimeMillis() < circuit.mOpenUntil)
+				throw new CircuitOpenException(authority, circuit.mOpenUntil);
+
+			Log.i(TAG, "Probing " + authority);
+			circuit.mState = STATE_HALF_OPEN;
+			startProbe(circuit);
+			store(circuit);
+			return;
+		case STATE_HALF_OPEN:
+			// only a single probe at a time, unless it got lost
+			if (circuit.mProbing
+					&& TimeProvider.currentTimeMillis() < circuit.mProbeStart
+							+ PROBE_TIMEOUT)
+				throw new CircuitOpenException(authority, circuit.mOpenUntil);
+			startProbe(circuit);
+			return;
+		default:
+			throw new IllegalStateException("Unknown circuit state: "
+					+ circuit.mState);
+		}
+	}
+
+	private static void startProbe(Circuit circuit) {
+		circuit.mProbing = true;
+		circuit.mProbeStart = TimeProvider.currentTimeMillis();
+	}
+
+	/**
+	 * Reports that the authority answered a request. Any answer counts, even
+	 * if the resource could not be delivered.
+	 */
+	public synchronized void onSuccess(String authority) {
+		Circuit circuit = getCircuit(authority);
+		if (circuit.mState == STATE_CLOSED && circuit.mFailures == 0)
+			return;
+
+		if (circuit.mState != STATE_CLOSED)
+			Log.i(TAG, "Closing circuit of " + authority);
+
+		circuit.mState = STATE_CLOSED;
+		circuit.mFailures = 0;
+		circuit.mOpenUntil = 0L;
+		circuit.mOpenDuration = 0L;
+		circuit.mProbing = false;
+		store(circuit);
+	}
+
+	/**
+	 * Reports that a request to the authority failed with a transient error.
+	 * Each attempt of a retried request counts.
+	 */
+	public synchronized void onFailure(String authority) {
+		Circuit circuit = getCircuit(authority);
+		circuit.mFailures++;
+
+		if (circuit.mState == STATE_HALF_OPEN) {
+			// the probe failed: wait twice as long
+			open(circuit, Math.min(2 * circuit.mOpenDuration,
+					MAX_OPEN_DURATION));
+		} else if (circuit.mState == STATE_CLOSED
+				&& circuit.mFailures >= FAILURE_THRESHOLD) {
+			open(circuit, MIN_OPEN_DURATION);
+		}
+		store(circuit);
+	}
+
+	private void open(Circuit circuit, long duration) {
+		Log.w(TAG, "Opening circuit of " + circuit.mAuthority + " for "
+				+ duration + "ms after " + circuit.mFailures + " failures");
+
+		circuit.mState = STATE_OPEN;
+		circuit.mOpenDuration = Math.max(duration, MIN_OPEN_DURATION);
+		circuit.mOpenUntil = TimeProvider.currentTimeMillis()
+				+ circuit.mOpenDuration;
+		circuit.mProbing = false;
+	}
+
+	/**
+	 * Returns the state of the authority's circuit.
+	 * 
+	 * @return See STATE_***
+	 */
+	public synchronized int getState(String authority) {
+		Circuit circuit = mCircuits.get(authority);
+		return circuit == null ? STATE_CLOSED : circuit.mState;
+	}
+}
@@ -0,0 +1,60 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Thrown by a resource proxy instead of contacting an authority whose circuit
+ * breaker is open, i.e. which has failed repeatedly a short while ago.
+ * 
+ * @author Daniel
+ * 
+ * @see CircuitBreaker
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = -2981407713529012317L;
+
+	private final String mAuthority;
+	private final long mRetryAfter;
+
+	/**
+	 * @param authority
+	 *            The authority which is not contacted
+	 * @param retryAfter
+	 *            Point in time (ms) when the authority is contacted again
+	 */
+	public CircuitOpenException(String authority, long retryAfter) {
+		super("Authority " + authority
+				+ " failed repeatedly and is not contacted before "
+				+ new Date(retryAfter));
+		this.mAuthority = authority;
+		this.mRetryAfter = retryAfter;
+	}
+
+	public String getAuthority() {
+		return mAuthority;
+	}
+
+	/**
+	 * Returns the point in time (ms) when the authority is contacted again.
+	 */
+	public long getRetryAfter() {
+		return mRetryAfter;
+	}
+}
@@ -15,6 +15,8 @@
 // along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package de.tum.smartsync.connectivity;
 
+import java.lang.reflect.Method;
+
 import de.tum.smartsync.Resource;
 import android.content.Context;
 import android.net.ConnectivityManager;
@@ -176,6 +178,45 @@ public class ConnectionGuru {
 		return CONNECTION_UNKNOWN;
 	}
 
+	/**
+	 * Returns the network type of the current connection, which is finer than
+	 * the connection type: for mobile connections it is one of
+	 * TelephonyManager.NETWORK_TYPE_*** (e.g. LTE or HSDPA).
+	 * 
+	 * @return -1 if there is no connection or the detection failed
+	 */
+	public int getNetworkType() {
+		try {
+			NetworkInfo activeNetwork = mConnectivityManager
+					.getActiveNetworkInfo();
+			if (activeNetwork == null
+					|| !activeNetwork.isConnectedOrConnecting())
+				return -1;
+			return activeNetwork.getSubtype();
+		} catch (Exception e) {
+			Log.w(TAG, "Unable to determine network type due to "
+					+ e.getMessage(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns whether the user pays for the traffic of the current connection
+	 * (e.g. mobile data or a mobile hotspot). Traffic which is not strictly
+	 * needed should be avoided then.
+	 */
+	public boolean isMetered() {
+		try {
+			// ConnectivityManager.isActiveNetworkMetered() exists since API 16
+			Method m = ConnectivityManager.class
+					.getMethod("isActiveNetworkMetered");
+			return (Boolean) m.invoke(mConnectivityManager);
+		} catch (Exception e) {
+			// older platforms: only WIFI is regarded as free
+			return getCurrentConnection() != CONNECTION_WIFI;
+		}
+	}
+
 	/**
 	 * Returns the expected quality level for a given connection
 	 * 
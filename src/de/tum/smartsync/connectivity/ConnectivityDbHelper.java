@@ -0,0 +1,138 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import de.tum.smartsync.background.DatabaseHelper;
+
+/**
+ * <p>
+ * This database stores what has been learned about the connections and the
+ * authorities, so that it survives the short-living update services.
+ * 
+ * <p>
+ * There is a single instance per process, which is shared by all of its
+ * users. The helper keeps one connection to the database, so writes from
+ * different threads are serialized instead of failing because the database is
+ * locked.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ConnectivityDbHelper extends SQLiteOpenHelper {
+
+	private static final String DATABASE_NAME = "SmartSyncConnectivity";
+
+	private static final int DATABASE_VERSION = DatabaseHelper.DATABASE_VERSION;
+
+	private static ConnectivityDbHelper sInstance = null;
+
+	public static final String TABLE_BANDWIDTH = "bandwidth";
+
+	public static final String KEY_CONNECTION = "conn";
+	public static final String KEY_NETWORK_TYPE = "net";
+	public static final String KEY_AUTHORITY = "auth";
+	public static final String KEY_THROUGHPUT = "tp";
+	public static final String KEY_LATENCY = "lat";
+	public static final String KEY_LATENCY_DEVIATION = "latdev";
+	public static final String KEY_SAMPLES = "cnt";
+	public static final String KEY_TIMESTAMP = "time";
+
+	public static final String TABLE_CIRCUIT = "circuit";
+
+	public static final String KEY_STATE = "state";
+	public static final String KEY_FAILURES = "fail";
+	public static final String KEY_OPEN_UNTIL = "until";
+	public static final String KEY_OPEN_DURATION = "dur";
+
+	public static final String TABLE_DNS = "dns";
+
+	public static final String KEY_HOST = "host";
+	public static final String KEY_ADDRESSES = "addr";
+	public static final String KEY_EXPIRES = "exp";
+
+	public static final String TABLE_TRAFFIC = "traffic";
+
+	public static final String KEY_DAY = "day";
+	public static final String KEY_BYTES = "bytes";
+
+	public static final String TABLE_BUDGET = "budget";
+
+	private static final String TABLE_BANDWIDTH_CREATE = "CREATE TABLE "
+			+ TABLE_BANDWIDTH + " (" + KEY_CONNECTION + " INTEGER, "
+			+ KEY_NETWORK_TYPE + " INTEGER, " + KEY_AUTHORITY + " TEXT, "
+			+ KEY_THROUGHPUT + " REAL, " + KEY_LATENCY + " REAL, "
+			+ KEY_LATENCY_DEVIATION + " REAL, " + KEY_SAMPLES + " INTEGER, "
+			+ KEY_TIMESTAMP + " INTEGER, PRIMARY KEY (" + KEY_CONNECTION
+			+ ", " + KEY_NETWORK_TYPE + ", " + KEY_AUTHORITY + "));";
+
+	private static final String TABLE_CIRCUIT_CREATE = "CREATE TABLE "
+			+ TABLE_CIRCUIT + " (" + KEY_AUTHORITY + " TEXT PRIMARY KEY, "
+			+ KEY_STATE + " INTEGER, " + KEY_FAILURES + " INTEGER, "
+			+ KEY_OPEN_UNTIL + " INTEGER, " + KEY_OPEN_DURATION + " INTEGER, "
+			+ KEY_TIMESTAMP + " INTEGER);";
+
+	private static final String TABLE_DNS_CREATE = "CREATE TABLE "
+			+ TABLE_DNS + " (" + KEY_HOST + " TEXT PRIMARY KEY, "
+			+ KEY_ADDRESSES + " TEXT, " + KEY_EXPIRES + " INTEGER);";
+
+	private static final String TABLE_TRAFFIC_CREATE = "CREATE TABLE "
+			+ TABLE_TRAFFIC + " (" + KEY_CONNECTION + " INTEGER, " + KEY_DAY
+			+ " INTEGER, " + KEY_BYTES + " INTEGER, PRIMARY KEY ("
+			+ KEY_CONNECTION + ", " + KEY_DAY + "));";
+
+	// survives upgrades, see onUpgrade(...)
+	private static final String TABLE_BUDGET_CREATE = "CREATE TABLE IF NOT EXISTS "
+			+ TABLE_BUDGET + " (" + KEY_CONNECTION + " INTEGER PRIMARY KEY, "
+			+ KEY_BYTES + " INTEGER);";
+
+	private ConnectivityDbHelper(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	/**
+	 * Returns the helper of this process. It is created on first use.
+	 */
+	public static synchronized ConnectivityDbHelper getInstance(
+			Context context) {
+		if (sInstance == null)
+			sInstance = new ConnectivityDbHelper(
+					context.getApplicationContext());
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(TABLE_BANDWIDTH_CREATE);
+		db.execSQL(TABLE_CIRCUIT_CREATE);
+		db.execSQL(TABLE_DNS_CREATE);
+		db.execSQL(TABLE_TRAFFIC_CREATE);
+		db.execSQL(TABLE_BUDGET_CREATE);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// everything in here can be learned again
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_BANDWIDTH);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_CIRCUIT);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_DNS);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRAFFIC);
+		// ...except for the budgets, which are set by the app
+		onCreate(db);
+	}
+}
@@ -0,0 +1,290 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.apache.http.NameValuePair;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.helper.TimeProvider;
+import de.tum.smartsync.resource.RawBigResource;
+
+/**
+ * <p>
+ * A resource proxy for local sources: content providers of other apps
+ * (<code>content://</code>, including bundled assets and resources) and files
+ * (<code>file://</code>, e.g. on mounted storage). Their resources pass the
+ * same cache and decision pipeline as the ones of remote authorities.
+ * 
+ * <p>
+ * Sources are opened as file descriptors. The content of big resources is
+ * transferred by the channel of the descriptor into the file of the resource,
+ * so it is copied by the kernel without passing the heap. Small resources are
+ * read directly into their final array.
+ * 
+ * <p>
+ * Changes are detected by the size and the time of the last modification of
+ * the source, which are combined into the ETag of the resource. Unchanged
+ * sources are skipped without opening them.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ContentResolverResourceProxy extends ResourceProxy {
+
+	private static final String TAG = "ContentResolverResourceProxy";
+
+	/** Column of the last modification as provided by document providers */
+	private static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+	/** Maximum number of bytes transferred by the channel at once */
+	private static final long TRANSFER_CHUNK = 256 * 1024; // 256kB
+
+	/** Whether the authority is a directory instead of a content provider */
+	private final boolean mIsFile;
+
+	public ContentResolverResourceProxy(Uri authority, Context context) {
+		final String scheme = authority.getScheme();
+		if (ContentResolver.SCHEME_FILE.equalsIgnoreCase(scheme))
+			mIsFile = true;
+		else if (ContentResolver.SCHEME_CONTENT.equalsIgnoreCase(scheme))
+			mIsFile = false;
+		else
+			throw new IllegalArgumentException(
+					"The authority must have the scheme \"content\" or \"file\" but it has the scheme \""
+							+ scheme + "\"");
+
+		if (!mIsFile && context == null)
+			throw new IllegalArgumentException(
+					"A context is needed for accessing content providers");
+
+		this.mAuthority = authority;
+		this.mContext = context;
+	}
+
+	public ContentResolverResourceProxy(byte[] proxyExtra, Context context) {
+		this(unmarshallAuthority(proxyExtra), context);
+	}
+
+	/**
+	 * The parameters are meant for remote authorities and are not passed to
+	 * the source. The timestamp of the last update is considered for detecting
+	 * changes if the resource has no ETag yet.
+	 */
+	@Override
+	public void doLoad(RawResource r, List<NameValuePair> params)
+			throws IOException, DoNotUpdateException {
+		final long start = TimeProvider.currentTimeMillis();
+
+		currentUri = r.getPathUri().toString();
+		informProgressListener(0, -1, false);
+
+		Uri uri = buildUri(r, null);
+
+		// cheap check whether the source has changed since the last update
+		final long[] stat = stat(uri);
+		final long size = stat[0];
+		final long lastModified = stat[1];
+		final String eTag = getETag(size, lastModified);
+		if (eTag != null && r.getETag() != null) {
+			if (eTag.equals(r.getETag()))
+				throw new DoNotUpdateException(
+						DoNotUpdateException.EXC_MESSAGE_NOT_MODIFIED);
+		} else if (lastModified > 0
+				&& lastModified <= getTimestampFromParams(params)) {
+			throw new DoNotUpdateException(
+					DoNotUpdateException.EXC_MESSAGE_NOT_MODIFIED);
+		}
+
+		AssetFileDescriptor afd = open(uri);
+		FileInputStream in = afd.createInputStream();
+		try {
+			long length = afd.getLength();
+			if (length == AssetFileDescriptor.UNKNOWN_LENGTH)
+				length = size;
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("Source too large: " + uri);
+
+			if (r instanceof RawBigResource && length >= 0)
+				transferBig((RawBigResource) r, in, afd.getStartOffset(),
+						(int) length);
+			else
+				replaceResourceContent(r, in, (int) length);
+		} finally {
+			in.close();
+		}
+
+		r.setETag(eTag);
+		r.setLastModified(lastModified);
+
+		final long dur = TimeProvider.currentTimeMillis() - start;
+		Log.d(TAG, "Loaded " + r.getSize() + " bytes from " + uri + " in "
+				+ dur + "ms.");
+	}
+
+	/**
+	 * Returns the size and the time of the last modification of the source
+	 * without opening it.
+	 * 
+	 * @return The size or -1 and the time or 0 if unknown
+	 * @throws FileNotFoundException
+	 *             If the source is a file which does not exist
+	 */
+	private long[] stat(Uri uri) throws FileNotFoundException {
+		if (mIsFile) {
+			File f = new File(uri.getPath());
+			if (!f.isFile())
+				throw new FileNotFoundException("No such file: " + f);
+			return new long[] { f.length(), f.lastModified() };
+		}
+
+		long size = -1L;
+		long lastModified = 0L;
+
+		Cursor c;
+		try {
+			c = mContext.getContentResolver().query(uri, null, null, null,
+					null);
+		} catch (RuntimeException e) {
+			// not every provider supports querying its content
+			Log.d(TAG, "Unable to query " + uri + ": " + e.getMessage());
+			c = null;
+		}
+
+		if (c != null) {
+			try {
+				if (c.moveToFirst()) {
+					final int iSize = c.getColumnIndex(OpenableColumns.SIZE);
+					if (iSize != -1 && !c.isNull(iSize))
+						size = c.getLong(iSize);
+
+					final int iModified = c
+							.getColumnIndex(COLUMN_LAST_MODIFIED);
+					if (iModified != -1 && !c.isNull(iModified))
+						lastModified = c.getLong(iModified);
+				}
+			} finally {
+				c.close();
+			}
+		}
+
+		return new long[] { size, lastModified };
+	}
+
+	/**
+	 * @return <code>null</code> if the size or the time is unknown
+	 */
+	private static String getETag(long size, long lastModified) {
+		if (size < 0 || lastModified <= 0)
+			return null;
+
+		return "\"" + Long.toHexString(size) + "-"
+				+ Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Opens the source for reading.
+	 * 
+	 * @throws FileNotFoundException
+	 *             If there is no such source
+	 */
+	private AssetFileDescriptor open(Uri uri) throws FileNotFoundException {
+		if (mIsFile) {
+			File f = new File(uri.getPath());
+			return new AssetFileDescriptor(ParcelFileDescriptor.open(f,
+					ParcelFileDescriptor.MODE_READ_ONLY), 0,
+					AssetFileDescriptor.UNKNOWN_LENGTH);
+		}
+
+		AssetFileDescriptor afd = mContext.getContentResolver()
+				.openAssetFileDescriptor(uri, "r");
+		if (afd == null)
+			throw new FileNotFoundException("Unable to open " + uri);
+		return afd;
+	}
+
+	/**
+	 * Transfers the source into the file of the resource by the channel of
+	 * the descriptor. Falls back to copying the stream if the resource is not
+	 * written to a file.
+	 * 
+	 * @param offset
+	 *            Start of the content within the descriptor
+	 * @throws IOException
+	 */
+	private void transferBig(RawBigResource r, FileInputStream in,
+			long offset, int length) throws IOException {
+		OutputStream os = r.getOutputStream();
+
+		if (os instanceof FileOutputStream) {
+			FileChannel src = in.getChannel();
+			FileChannel dst = ((FileOutputStream) os).getChannel();
+
+			long pos = 0L;
+			while (pos < length) {
+				final long n = src.transferTo(offset + pos,
+						Math.min(TRANSFER_CHUNK, length - pos), dst);
+				if (n <= 0)
+					throw new EOFException("Source ended after " + pos
+							+ " of " + length + " bytes");
+				pos += n;
+
+				informProgressListener((int) pos, length, false);
+			}
+		} else {
+			transfer(in, os, 0, length);
+		}
+		os.flush();
+
+		informProgressListener(length, length, true);
+	}
+
+	/**
+	 * Local sources fail for the same reason again, so there is no point in
+	 * retrying.
+	 */
+	@Override
+	protected boolean isTransient(IOException e) {
+		return false;
+	}
+
+	@Override
+	byte[] internalMarshall() {
+		return marshallAuthority(mAuthority);
+	}
+
+	@Override
+	public int getProxyMethod() {
+		return ResourceProxy.METHOD_CONTENT_RESOLVER;
+	}
+}
@@ -0,0 +1,54 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown by a resource proxy if a transfer has been aborted because it took
+ * longer than its deadline, e.g. because the authority keeps sending single
+ * bytes. Such transfers are not retried at once but requeued by the
+ * UpdateWorker.
+ * 
+ * @author Daniel
+ * 
+ * @see ResourceProxy#getTransferDeadline(long)
+ */
+public class DeadlineExceededException extends SocketTimeoutException {
+
+	private static final long serialVersionUID = 4719306521876203817L;
+
+	private final long mDeadline;
+
+	/**
+	 * @param url
+	 *            The requested URL
+	 * @param deadline
+	 *            The time the transfer was allowed to take in ms
+	 */
+	public DeadlineExceededException(String url, long deadline) {
+		super("Transfer of " + url + " exceeded its deadline of " + deadline
+				+ "ms");
+		this.mDeadline = deadline;
+	}
+
+	/**
+	 * Returns the time the transfer was allowed to take in ms.
+	 */
+	public long getDeadline() {
+		return mDeadline;
+	}
+}
@@ -0,0 +1,208 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Caches the resolved addresses of the authorities' hosts. The platform only
+ * keeps them for a few seconds, so every update session would otherwise start
+ * with a DNS lookup. The addresses are used for {@link #TTL} without resolving
+ * again. If resolving fails afterwards (e.g. a flaky mobile connection), the
+ * expired addresses are still used for up to {@link #MAX_STALE}.
+ * 
+ * <p>
+ * The addresses are persisted in the {@link ConnectivityDbHelper} database,
+ * so that they survive the short-living update services.
+ * 
+ * <p>
+ * Only the {@link NioResourceProxy} uses the cache, as it connects to the
+ * resolved addresses itself. <code>HttpURLConnection</code> always resolves
+ * the host on its own.
+ * 
+ * @author Daniel
+ * 
+ */
+public class DnsCache {
+
+	private static final String TAG = "DnsCache";
+
+	/** Time resolved addresses are used without resolving again */
+	public static final long TTL = 10 * TimeProvider.MINUTE;
+
+	/** Time expired addresses are used if resolving fails */
+	public static final long MAX_STALE = TimeProvider.DAY;
+
+	private static final String SEPARATOR = ",";
+
+	private static DnsCache sInstance = null;
+
+	private final ConnectivityDbHelper mDbHelper;
+
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	/**
+	 * Resolved addresses of one host
+	 */
+	private static class Entry {
+		final InetAddress[] mAddresses;
+		final long mExpires;
+
+		Entry(InetAddress[] addresses, long expires) {
+			this.mAddresses = addresses;
+			this.mExpires = expires;
+		}
+	}
+
+	private DnsCache(Context context) {
+		mDbHelper = ConnectivityDbHelper.getInstance(context);
+		load();
+	}
+
+	/**
+	 * Returns the cache of this process. It is created and loaded from the
+	 * database on first use.
+	 */
+	public static synchronized DnsCache getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new DnsCache(context.getApplicationContext());
+		return sInstance;
+	}
+
+	private static final String[] COLUMNS_ALL = new String[] {
+			ConnectivityDbHelper.KEY_HOST, ConnectivityDbHelper.KEY_ADDRESSES,
+			ConnectivityDbHelper.KEY_EXPIRES };
+
+	private void load() {
+		final long now = TimeProvider.currentTimeMillis();
+
+		// entries too old for being used at all
+		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		db.delete(ConnectivityDbHelper.TABLE_DNS,
+				ConnectivityDbHelper.KEY_EXPIRES + " < ?",
+				new String[] { Long.toString(now - MAX_STALE) });
+
+		Cursor c = db.query(ConnectivityDbHelper.TABLE_DNS, COLUMNS_ALL, null,
+				null, null, null, null);
+		while (c.moveToNext()) {
+			final String host = c.getString(0);
+			try {
+				mEntries.put(host, new Entry(
+						parse(host, c.getString(1)), c.getLong(2)));
+			} catch (UnknownHostException e) {
+				Log.w(TAG, "Malformed addresses of " + host);
+			}
+		}
+		c.close();
+
+		Log.d(TAG, "Loaded " + mEntries.size() + " hosts.");
+	}
+
+	private void store(String host, Entry e) {
+		StringBuilder sb = new StringBuilder();
+		for (InetAddress address : e.mAddresses) {
+			if (sb.length() > 0)
+				sb.append(SEPARATOR);
+			sb.append(address.getHostAddress());
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(ConnectivityDbHelper.KEY_HOST, host);
+		values.put(ConnectivityDbHelper.KEY_ADDRESSES, sb.toString());
+		values.put(ConnectivityDbHelper.KEY_EXPIRES, e.mExpires);
+
+		mDbHelper.getWritableDatabase().replace(
+				ConnectivityDbHelper.TABLE_DNS, null, values);
+	}
+
+	/**
+	 * Restores the addresses stored by <code>store(...)</code> without any
+	 * lookup, as they are numeric.
+	 */
+	private static InetAddress[] parse(String host, String addresses)
+			throws UnknownHostException {
+		String[] parts = addresses.split(SEPARATOR);
+		InetAddress[] result = new InetAddress[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			result[i] = InetAddress.getByAddress(host,
+					InetAddress.getByName(parts[i]).getAddress());
+		return result;
+	}
+
+	/**
+	 * Returns the addresses of the host. Blocks while the host has to be
+	 * resolved.
+	 * 
+	 * @throws UnknownHostException
+	 *             If the host could not be resolved and there are no usable
+	 *             addresses in the cache
+	 */
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		// numeric hosts are not looked up anyway
+		if (isNumeric(host))
+			return InetAddress.getAllByName(host);
+
+		final long now = TimeProvider.currentTimeMillis();
+		Entry e;
+		synchronized (this) {
+			e = mEntries.get(host);
+		}
+		if (e != null && now < e.mExpires)
+			return e.mAddresses;
+
+		try {
+			Entry resolved = new Entry(InetAddress.getAllByName(host), now
+					+ TTL);
+			synchronized (this) {
+				mEntries.put(host, resolved);
+				store(host, resolved);
+			}
+			Log.v(TAG, "Resolved " + host);
+			return resolved.mAddresses;
+		} catch (UnknownHostException ex) {
+			if (e == null || now > e.mExpires + MAX_STALE)
+				throw ex;
+
+			Log.w(TAG, "Using expired addresses of " + host + ": "
+					+ ex.getMessage());
+			return e.mAddresses;
+		}
+	}
+
+	private static boolean isNumeric(String host) {
+		// IPv6 literals contain colons, host names never do
+		if (host.indexOf(':') != -1)
+			return true;
+
+		for (int i = 0; i < host.length(); i++) {
+			final char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+		return true;
+	}
+}
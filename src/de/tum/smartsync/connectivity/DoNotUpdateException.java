@@ -28,8 +28,17 @@ public class DoNotUpdateException extends Exception {
 
 	public static final String EXC_MESSAGE_BAD_RESPONSE = "BAD RESPONSE CODE: Did not get HTTP/OK Code, but ";
 	public static final String EXC_MESSAGE_NOT_MODIFIED = "NOT MODIFIED";
+	public static final String EXC_MESSAGE_BUDGET_SPENT = "TRAFFIC BUDGET SPENT";
 
 	public DoNotUpdateException(String string) {
 		super(string);
 	}
+
+	/**
+	 * Returns true if the authority told us that our cached content is still
+	 * up-to-date.
+	 */
+	public boolean isNotModified() {
+		return EXC_MESSAGE_NOT_MODIFIED.equals(getMessage());
+	}
 }
@@ -0,0 +1,300 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Sends a request a second time if its response headers have not arrived
+ * after a given delay (usually the 95th percentile of the latency of the
+ * authority), either to the same authority or to a mirror of it. The first
+ * response wins, the other request is cancelled. This cuts off the long tail
+ * of the latencies, which is caused by single slow connections or servers.
+ * 
+ * <p>
+ * The requests must be idempotent, as both might reach the authority. The
+ * number of second requests is limited to {@link #BUDGET} of all hedged
+ * requests of an authority, so that a slow authority is not flooded.
+ * 
+ * <p>
+ * The requests are sent by threads of their own, the calling thread only
+ * waits for the winner. Its connection has to be released to its pool by the
+ * caller afterwards.
+ * 
+ * @author Daniel
+ * 
+ */
+class HedgedRequest {
+
+	private static final String TAG = "HedgedRequest";
+
+	/** Maximum share of the requests of an authority which are sent twice */
+	static final float BUDGET = 0.05f;
+
+	/** Number of hedged requests and of second requests per authority */
+	private static final Map<String, int[]> sCounts = new HashMap<String, int[]>();
+
+	private static final ExecutorService sExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, TAG);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Prepares a connection before the request is sent, e.g. by setting its
+	 * headers. Called for every request, so it must not have side effects.
+	 */
+	interface RequestSetup {
+		void setup(HttpURLConnection conn);
+	}
+
+	/**
+	 * One of the requests sent
+	 */
+	class Attempt implements Runnable {
+		private final HttpConnectionPool mPool;
+		private final URL mUrl;
+		private final boolean mHedge;
+
+		private HttpURLConnection mConn = null;
+		private long mLatency = -1L;
+		private IOException mError = null;
+		private boolean mDone = false;
+		private boolean mCancelled = false;
+
+		Attempt(HttpConnectionPool pool, URL url, boolean hedge) {
+			this.mPool = pool;
+			this.mUrl = url;
+			this.mHedge = hedge;
+		}
+
+		HttpConnectionPool getPool() {
+			return mPool;
+		}
+
+		/**
+		 * Returns the connection, whose response headers have arrived.
+		 */
+		HttpURLConnection getConnection() {
+			return mConn;
+		}
+
+		/**
+		 * Returns the time from sending this request until the response
+		 * headers arrived in ms.
+		 */
+		long getLatency() {
+			return mLatency;
+		}
+
+		/**
+		 * Whether this is the second request
+		 */
+		boolean isHedge() {
+			return mHedge;
+		}
+
+		@Override
+		public void run() {
+			HttpURLConnection conn = null;
+			IOException error = null;
+			try {
+				conn = mPool.open(mUrl);
+				synchronized (HedgedRequest.this) {
+					if (mCancelled)
+						throw new InterruptedIOException("Cancelled");
+					mConn = conn;
+				}
+
+				final long start = TimeProvider.currentTimeMillis();
+				mSetup.setup(conn);
+				conn.getResponseCode();
+				mLatency = TimeProvider.currentTimeMillis() - start;
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException(e);
+			}
+
+			if (!finished(this, error) && conn != null) {
+				// a late response is read, so that the socket can be reused
+				mPool.release(conn, null, error == null);
+			}
+		}
+	}
+
+	private final RequestSetup mSetup;
+
+	private final List<Attempt> mAttempts = new ArrayList<Attempt>(2);
+
+	private Attempt mWinner = null;
+
+	HedgedRequest(RequestSetup setup) {
+		this.mSetup = setup;
+	}
+
+	/**
+	 * Sends the request and waits for the response headers. The request is
+	 * sent once more if they have not arrived after the delay and the budget
+	 * of the authority allows it.
+	 * 
+	 * @param hedgePool
+	 *            Pool of the authority the second request is sent to
+	 * @param hedgeUrl
+	 *            URL of the second request
+	 * @param delay
+	 *            Time after which the second request is sent in ms
+	 * @param authority
+	 *            Authority the budget is accounted to
+	 * @return The first request whose response headers arrived
+	 * @throws IOException
+	 *             The error of the first request if all requests failed
+	 */
+	synchronized Attempt execute(HttpConnectionPool pool, URL url,
+			HttpConnectionPool hedgePool, URL hedgeUrl, long delay,
+			String authority) throws IOException {
+		count(authority);
+		start(new Attempt(pool, url, false));
+
+		try {
+			// a failed request is not hedged but retried by the proxy
+			await(TimeProvider.currentTimeMillis() + delay);
+			if (mWinner == null && !mAttempts.get(0).mDone
+					&& takeBudget(authority)) {
+				Log.d(TAG, "No response from " + url + " after " + delay
+						+ "ms, sending request to " + hedgeUrl);
+				start(new Attempt(hedgePool, hedgeUrl, true));
+			}
+			await(Long.MAX_VALUE);
+		} catch (InterruptedException e) {
+			cancelAll(null);
+			if (mWinner != null)
+				mWinner.mPool.release(mWinner.mConn, null, false);
+			throw new InterruptedIOException("Interrupted while waiting for "
+					+ url);
+		}
+
+		if (mWinner == null)
+			throw mAttempts.get(0).mError;
+
+		if (mWinner.isHedge())
+			Log.d(TAG, "Second request won for " + url);
+		return mWinner;
+	}
+
+	private void start(Attempt a) {
+		mAttempts.add(a);
+		sExecutor.execute(a);
+	}
+
+	/**
+	 * Waits until there is a winner, all requests are done or the deadline
+	 * has passed.
+	 */
+	private void await(long deadline) throws InterruptedException {
+		while (mWinner == null && !allDone()) {
+			final long remaining = deadline - TimeProvider.currentTimeMillis();
+			if (remaining <= 0)
+				return;
+			wait(remaining);
+		}
+	}
+
+	private boolean allDone() {
+		for (Attempt a : mAttempts) {
+			if (!a.mDone)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the threads of the requests when they are done.
+	 * 
+	 * @return <code>true</code> if the request has won and its connection is
+	 *         taken over by the caller
+	 */
+	private synchronized boolean finished(Attempt a, IOException error) {
+		a.mDone = true;
+		a.mError = error;
+		notifyAll();
+
+		if (error != null || a.mCancelled || mWinner != null)
+			return false;
+
+		mWinner = a;
+		cancelAll(a);
+		return true;
+	}
+
+	/**
+	 * Aborts all pending requests except the given one. Their threads release
+	 * the connections.
+	 */
+	private void cancelAll(Attempt except) {
+		for (Attempt a : mAttempts) {
+			if (a == except || a.mDone)
+				continue;
+
+			a.mCancelled = true;
+			if (a.mConn != null)
+				a.mConn.disconnect();
+		}
+	}
+
+	private static void count(String authority) {
+		synchronized (sCounts) {
+			int[] counts = sCounts.get(authority);
+			if (counts == null) {
+				counts = new int[2];
+				sCounts.put(authority, counts);
+			}
+			counts[0]++;
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the authority has used up its budget
+	 */
+	private static boolean takeBudget(String authority) {
+		synchronized (sCounts) {
+			int[] counts = sCounts.get(authority);
+			if (counts[1] + 1 > BUDGET * counts[0])
+				return false;
+
+			counts[1]++;
+			return true;
+		}
+	}
+}
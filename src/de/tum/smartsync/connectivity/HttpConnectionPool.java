@@ -0,0 +1,423 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Manages the HTTP connections to a single authority. There is only one pool
+ * per authority within a process and it is shared by all resource proxies (and
+ * therefore by all UpdateWorkers).
+ * 
+ * <p>
+ * The sockets themselves are kept alive by the keep-alive pool of
+ * <code>HttpURLConnection</code>. This class configures that pool (maximum
+ * idle connections per host and their keep-alive duration) before the first
+ * pool is created, limits the number of concurrent connections per host and
+ * makes sure that connections are released in a way which allows their
+ * reuse. Calling
+ * <code>disconnect()</code> after every request would close the socket
+ * instead.
+ * 
+ * <p>
+ * Connections to HTTPS authorities use the socket factory of the
+ * {@link TlsSessionCache} of the authority, so that they resume the TLS
+ * sessions of each other.
+ * 
+ * <p>
+ * A connection might be given a deadline. A watchdog thread disconnects it
+ * once the deadline has passed, so that a stalled transfer fails instead of
+ * holding its connection (and the worker waiting for it) forever.
+ * 
+ * @author Daniel
+ * 
+ */
+public class HttpConnectionPool {
+
+	private static final String TAG = "HttpConnectionPool";
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+	public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * TimeProvider.MINUTE;
+
+	/**
+	 * Remaining response bodies up to this size are read in order to be able
+	 * to reuse the connection. Larger ones are cheaper to close.
+	 */
+	private static final int MAX_DRAIN_SIZE = 16 * 1024;
+
+	/** Connect and read timeout of the requests opening connections */
+	private static final int PREWARM_TIMEOUT = (int) (10 * TimeProvider.SECOND);
+
+	/** Disconnects the connections which exceeded their deadline */
+	private static final ScheduledExecutorService sWatchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, TAG + "_watchdog");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static final Map<String, HttpConnectionPool> sPools = new HashMap<String, HttpConnectionPool>();
+
+	private static int sMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+	private static long sKeepAliveDuration = DEFAULT_KEEP_ALIVE_DURATION;
+
+	/** Set once the first pool has been created */
+	private static boolean sConfigured = false;
+
+	private final String mAuthority;
+
+	/** Limits the number of concurrent connections to this authority */
+	private final Semaphore mPermits;
+
+	/** Pending deadlines of the connections of this pool */
+	private final Map<HttpURLConnection, Deadline> mDeadlines = new HashMap<HttpURLConnection, Deadline>();
+
+	/** Connections disconnected by the watchdog and not released yet */
+	private final Set<HttpURLConnection> mExpired = new HashSet<HttpURLConnection>();
+
+	/**
+	 * Disconnects a connection once its deadline has passed
+	 */
+	private class Deadline implements Runnable {
+		private final HttpURLConnection mConn;
+		private ScheduledFuture<?> mAbort;
+
+		Deadline(HttpURLConnection conn) {
+			this.mConn = conn;
+		}
+
+		@Override
+		public void run() {
+			synchronized (mDeadlines) {
+				// released or replaced meanwhile
+				if (mDeadlines.get(mConn) != this)
+					return;
+				mDeadlines.remove(mConn);
+				mExpired.add(mConn);
+			}
+
+			Log.d(TAG, "Aborting stalled transfer from " + mConn.getURL());
+			mConn.disconnect();
+		}
+	}
+
+	private HttpConnectionPool(String authority, int maxConnections) {
+		this.mAuthority = authority;
+		this.mPermits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * Returns the pool for the given authority. The pool is created if there
+	 * is none yet.
+	 */
+	public static synchronized HttpConnectionPool getPool(Uri authority) {
+		final String key = authority.getScheme() + "://"
+				+ authority.getEncodedAuthority();
+
+		HttpConnectionPool pool = sPools.get(key);
+		if (pool == null) {
+			if (!sConfigured) {
+				configureKeepAlive();
+				sConfigured = true;
+			}
+			pool = new HttpConnectionPool(key, sMaxConnectionsPerHost);
+			sPools.put(key, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets the maximum number of concurrent and idle connections per host.
+	 * Must be called before the first pool is created, as the platform reads
+	 * its configuration only once.
+	 * 
+	 * @throws IllegalStateException
+	 *             If a pool has been created already
+	 */
+	public static synchronized void setMaxConnectionsPerHost(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException(
+					"At least one connection per host is needed.");
+		checkNotConfigured();
+		sMaxConnectionsPerHost = max;
+	}
+
+	/**
+	 * Sets the keep-alive duration passed to the platform's keep-alive pool.
+	 * Must be called before the first pool is created, as the platform reads
+	 * its configuration only once.
+	 * 
+	 * @param duration
+	 *            Time in ms
+	 * @throws IllegalStateException
+	 *             If a pool has been created already
+	 */
+	public static synchronized void setKeepAliveDuration(long duration) {
+		checkNotConfigured();
+		sKeepAliveDuration = duration;
+	}
+
+	private static void checkNotConfigured() {
+		if (sConfigured)
+			throw new IllegalStateException(
+					"The connection pools are in use already.");
+	}
+
+	private static void configureKeepAlive() {
+		// these properties are read by the platform's keep-alive pool
+		if (!"false".equals(System.getProperty("http.keepAlive")))
+			System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections",
+				Integer.toString(sMaxConnectionsPerHost));
+		System.setProperty("http.keepAliveDuration",
+				Long.toString(sKeepAliveDuration));
+	}
+
+	/**
+	 * Opens a new connection to the given URL, which has to belong to the
+	 * authority of this pool. Blocks while the maximum number of concurrent
+	 * connections is reached. Each opened connection must be released using
+	 * <code>release(...)</code>.
+	 * 
+	 * @throws IOException
+	 */
+	public HttpURLConnection open(URL url) throws IOException {
+		try {
+			mPermits.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(
+					"Interrupted while waiting for a connection to "
+							+ mAuthority);
+		}
+
+		return openReserved(url);
+	}
+
+	/**
+	 * Reserves connections without blocking, e.g. for the segments of a
+	 * download, which must not wait for connections held by the download
+	 * itself. Each reserved connection must either be opened using
+	 * <code>openReserved(...)</code> or given back using
+	 * <code>unreserve(...)</code>.
+	 * 
+	 * @return <code>false</code> if not as many connections are available
+	 */
+	public boolean tryReserve(int count) {
+		return mPermits.tryAcquire(count);
+	}
+
+	/**
+	 * Gives back reserved connections which have not been opened.
+	 */
+	public void unreserve(int count) {
+		mPermits.release(count);
+	}
+
+	/**
+	 * Opens a connection reserved by <code>tryReserve(...)</code>, which has
+	 * to be released like any other connection.
+	 * 
+	 * @throws IOException
+	 */
+	public HttpURLConnection openReserved(URL url) throws IOException {
+		try {
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+
+			// all connections to the authority share the TLS sessions
+			if (conn instanceof HttpsURLConnection)
+				((HttpsURLConnection) conn).setSSLSocketFactory(TlsSessionCache
+						.getCache(mAuthority).getSocketFactory());
+			return conn;
+		} catch (IOException e) {
+			mPermits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			mPermits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the given number of connections to the authority in parallel and
+	 * leaves them in the keep-alive pool. Each connection is opened by a HEAD
+	 * request for the given URL, which has no side effects and no body. Blocks
+	 * until all requests are finished.
+	 */
+	public void prewarm(final URL url, int connections) {
+		List<Thread> threads = new LinkedList<Thread>();
+		for (int i = 0; i < connections; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						head(url);
+					} catch (IOException e) {
+						Log.v(TAG, "Unable to prewarm a connection to "
+								+ mAuthority + ": " + e.getMessage());
+					}
+				}
+			}, TAG + "_prewarm");
+			threads.add(t);
+			t.start();
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void head(URL url) throws IOException {
+		HttpURLConnection conn = open(url);
+		InputStream in = null;
+		boolean reusable = false;
+		try {
+			conn.setConnectTimeout(PREWARM_TIMEOUT);
+			conn.setReadTimeout(PREWARM_TIMEOUT);
+			conn.setRequestMethod("HEAD");
+
+			// reading the (empty) body allows reusing the connection
+			if (conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST)
+				in = conn.getErrorStream();
+			else
+				in = conn.getInputStream();
+			reusable = in != null;
+		} finally {
+			release(conn, in, reusable);
+		}
+	}
+
+	/**
+	 * Sets the time the connection may be used at most. Once it has passed,
+	 * the connection is disconnected, which makes blocked reads fail. A
+	 * deadline set before is replaced. The deadline ends when the connection
+	 * is released.
+	 * 
+	 * @param timeout
+	 *            Time from now in ms
+	 */
+	public void setDeadline(HttpURLConnection conn, long timeout) {
+		Deadline deadline = new Deadline(conn);
+		synchronized (mDeadlines) {
+			Deadline previous = mDeadlines.put(conn, deadline);
+			if (previous != null)
+				previous.mAbort.cancel(false);
+			deadline.mAbort = sWatchdog.schedule(deadline, timeout,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns true if the connection has been disconnected because it
+	 * exceeded its deadline. Must be called before the connection is
+	 * released.
+	 */
+	public boolean isExpired(HttpURLConnection conn) {
+		synchronized (mDeadlines) {
+			return mExpired.contains(conn);
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool.
+	 * 
+	 * @param in
+	 *            The input stream of the response if it has been opened.
+	 *            Might be <code>null</code>.
+	 * @param reusable
+	 *            <code>false</code> if the connection is in an undefined state
+	 *            (e.g. after an exception) and should be closed.
+	 */
+	public void release(HttpURLConnection conn, InputStream in,
+			boolean reusable) {
+		synchronized (mDeadlines) {
+			Deadline deadline = mDeadlines.remove(conn);
+			if (deadline != null)
+				deadline.mAbort.cancel(false);
+			if (mExpired.remove(conn))
+				reusable = false;
+		}
+
+		try {
+			if (reusable && drain(conn, in))
+				return;
+
+			conn.disconnect();
+		} finally {
+			mPermits.release();
+		}
+	}
+
+	/**
+	 * Reads the remaining response and closes the stream, which puts the
+	 * socket back into the keep-alive pool.
+	 * 
+	 * @return <code>false</code> if the connection could not be prepared for
+	 *         reuse
+	 */
+	private boolean drain(HttpURLConnection conn, InputStream in) {
+		try {
+			if (in == null)
+				in = conn.getInputStream();
+
+			byte[] buf = new byte[1024];
+			int drained = 0;
+			while (drained <= MAX_DRAIN_SIZE) {
+				int len = in.read(buf);
+				if (len == -1) {
+					in.close();
+					return true;
+				}
+				drained += len;
+			}
+		} catch (IOException e) {
+			Log.v(TAG, "Unable to reuse connection to " + mAuthority + ": "
+					+ e.getMessage());
+		}
+		return false;
+	}
+}
@@ -15,13 +15,24 @@
 // along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package de.tum.smartsync.connectivity;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
@@ -31,8 +42,9 @@ import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
 import de.tum.smartsync.RawResource;
-import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.helper.CountingInputStream;
 import de.tum.smartsync.helper.TimeProvider;
+import de.tum.smartsync.resource.RawBigResource;
 
 /**
  * This class is used by the update Service in order to establish HTTP
@@ -45,6 +57,40 @@ public class HttpResourceProxy extends ResourceProxy {
 
 	private static final String TAG = "HttpResourceProxy";
 
+	/** Content encodings which are decoded by the resource proxy */
+	protected static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/**
+	 * <p>
+	 * Path (relative to the authority) accepting batch requests. The request
+	 * is a POST carrying the shared parameters in its query. Its body holds
+	 * the number of resources followed by path, timestamp and optional ETag
+	 * of each resource.
+	 * 
+	 * <p>
+	 * The response contains an entry for each requested resource in the same
+	 * order: the HTTP status code and, for 200, the optional ETag, the
+	 * Last-Modified time, the content length and the content itself. All
+	 * values are encoded like <code>DataOutputStream</code> does.
+	 */
+	public static final String BATCH_PATH = "smartsync-batch";
+
+	public static final String BATCH_CONTENT_TYPE = "application/x-smartsync-batch";
+
+	/** Authorities which answered that they do not support batch requests */
+	private static final Set<String> sNoBatchAuthorities = new HashSet<String>();
+
+	/** Whether slow requests of small resources are sent once more */
+	private static boolean sHedgingEnabled = false;
+
+	/** Authorities serving the same resources as mAuthority */
+	protected final List<Uri> mMirrors = new ArrayList<Uri>();
+
+	private int mNextMirror = 0;
+
+	/** Connections reserved for the segments of the current download */
+	private final AtomicInteger mReservedSegments = new AtomicInteger();
+
 	public HttpResourceProxy(Uri authority, Context context) {
 		if (!authority.getScheme().equalsIgnoreCase("http"))
 			throw new IllegalArgumentException(
@@ -58,10 +104,12 @@ public class HttpResourceProxy extends ResourceProxy {
 		disableConnectionReuseIfNecessary();
 
 		this.mAuthority = authority;
+		this.mContext = context;
 	}
 
 	public HttpResourceProxy(byte[] proxyExtra, Context context) {
-		this(Uri.parse(internalUnmarshallAuthority(proxyExtra)), context);
+		this(unmarshallAuthority(proxyExtra), context);
+		unmarshallMirrors(proxyExtra);
 	}
 
 	// for HTTPS extending
@@ -84,45 +132,593 @@ public class HttpResourceProxy extends ResourceProxy {
 		Uri uri = buildUri(r, params);
 		URL url = new URL(uri.toString());
 
-		// build up connection
+		// big resources are persisted while loading, so that a broken
+		// transfer can be resumed later on
+		PartialDownload partial = null;
+		if (r instanceof RawBigResource && mContext != null)
+			partial = PartialDownload.get(mContext, mAuthority.toString()
+					+ r.getPathUri().toString());
+
+		// build up connection (shared with all other workers)
+		HttpConnectionPool pool = HttpConnectionPool.getPool(mAuthority);
 		HttpURLConnection conn = null;
+		InputStream in = null;
+		boolean reusable = false;
+		long deadline = -1L;
 		try {
 			Log.d(TAG, "Loading from url: " + url.toString());
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setIfModifiedSince(getTimestampFromParams(params));
+			final boolean resuming = partial != null && partial.canResume();
+			final long hedgeDelay = getHedgeDelay(r);
+			final long latency;
+			if (hedgeDelay > 0) {
+				// only small resources are hedged, so there is no range
+				HedgedRequest.Attempt winner = hedge(r, params, url,
+						hedgeDelay);
+				pool = winner.getPool();
+				conn = winner.getConnection();
+				latency = winner.getLatency();
+			} else {
+				conn = pool.open(url);
+				final long requestStart = TimeProvider.currentTimeMillis();
+				setTimeouts(conn);
+				setValidators(conn, r, params);
+
+				// big resources are usually compressed already and ranges of
+				// them must refer to the plain content
+				conn.setRequestProperty("Accept-Encoding",
+						r instanceof RawBigResource ? "identity"
+								: ACCEPT_ENCODING);
+
+				if (resuming) {
+					Log.d(TAG, "Resuming at byte " + partial.getLength());
+					conn.setRequestProperty("Range",
+							"bytes=" + partial.getLength() + "-");
+					conn.setRequestProperty("If-Range",
+							partial.getValidator());
+				}
+
+				conn.getResponseCode();
+				latency = TimeProvider.currentTimeMillis() - requestStart;
+			}
 
 			// parse HTTP response status
 			final int respCode = conn.getResponseCode();
+			boolean segmented = false;
+			String validator = null;
 
-			if (respCode == HttpStatus.SC_NOT_MODIFIED)
+			if (respCode == HttpStatus.SC_NOT_MODIFIED) {
+				// there is no body, so the connection can be reused
+				reusable = true;
+				recordTransfer(0, latency, 0);
 				throw new DoNotUpdateException(
 						DoNotUpdateException.EXC_MESSAGE_NOT_MODIFIED);
-			if (respCode != HttpStatus.SC_OK)
-				throw new IOException(
-						DoNotUpdateException.EXC_MESSAGE_BAD_RESPONSE
-								+ conn.getResponseMessage());
+			}
+			if (respCode == HttpStatus.SC_PARTIAL_CONTENT && resuming
+					&& getRangeStart(conn) == partial.getLength()) {
+				// the authority continues where we stopped
+			} else if (respCode == HttpStatus.SC_OK) {
+				// the whole content is sent, so start from scratch
+				validator = getResumeValidator(conn);
+				segmented = validator != null
+						&& conn.getContentEncoding() == null
+						&& shouldSegment(r, conn.getHeaderField("Accept-Ranges"),
+								conn.getContentLength())
+						&& reserveSegments(pool);
+				if (partial != null) {
+					if (validator != null && !segmented) {
+						partial.restart(validator, conn.getContentLength());
+					} else {
+						// resuming without validator might mix up versions and
+						// segments are not loaded in order
+						partial.delete();
+						partial = null;
+					}
+				}
+			} else {
+				// e.g. range not satisfiable: the partial state is useless
+				if (resuming)
+					partial.delete();
+				throw new ResponseCodeException(respCode,
+						conn.getResponseMessage());
+			}
 
 			// open input stream to HTTP response
 			int contentLen = conn.getContentLength();
-			InputStream in = conn.getInputStream();
+			deadline = watchTransfer(pool, conn, contentLen, r.getSize());
+			CountingInputStream counted = new CountingInputStream(
+					conn.getInputStream());
+			in = counted;
+			final long readStart = TimeProvider.currentTimeMillis();
 
 			// replace resource content (read the inputstream)
-			replaceResourceContent(r, in, contentLen);
+			if (segmented) {
+				replaceResourceContentSegmented((RawBigResource) r, in,
+						contentLen, params, validator);
+				// only the first segment has been read from this connection
+				reusable = false;
+			} else {
+				replaceResourceContent(r, in, contentLen,
+						conn.getContentEncoding(), partial);
+				reusable = true;
+			}
+
+			// the other segments went over the link in parallel
+			recordTransfer(segmented ? contentLen : counted.getCount(),
+					latency, TimeProvider.currentTimeMillis() - readStart);
+
+			// remember the validators for the next conditional request
+			r.setETag(conn.getHeaderField("ETag"));
+			r.setLastModified(conn.getLastModified());
 
 		} catch (DoNotUpdateException noUpdate) {
 			// Log.v(TAG, "Did not update resource (" + uri.toString()
 			// + ") because: " + noUpdate.getMessage());
 			throw noUpdate;
+		} catch (IOException e) {
+			if (conn != null && pool.isExpired(conn))
+				throw new DeadlineExceededException(url.toString(), deadline);
+			throw e;
 		} finally {
-
+			// keeps the socket alive unless something went wrong
 			if (conn != null)
-				conn.disconnect();
+				pool.release(conn, in, reusable);
+
+			// e.g. the download failed before all segments were started
+			final int unused = mReservedSegments.getAndSet(0);
+			if (unused > 0)
+				pool.unreserve(unused);
 		}
 
 		final long dur = TimeProvider.currentTimeMillis() - start;
 		Log.d(TAG, "Loaded " + r.getSize() + " bytes in " + dur + "ms.");
 	}
 
+	/**
+	 * Reserves the connections for the other segments of a segmented
+	 * download. They must not be waited for, as all connections might be held
+	 * by downloads waiting for their segments themselves.
+	 * 
+	 * @return <code>false</code> if the content should be loaded using a
+	 *         single stream
+	 */
+	private boolean reserveSegments(HttpConnectionPool pool) {
+		if (!pool.tryReserve(SEGMENT_COUNT - 1)) {
+			Log.d(TAG, "No connections left for segments, using one stream.");
+			return false;
+		}
+		mReservedSegments.set(SEGMENT_COUNT - 1);
+		return true;
+	}
+
+	/**
+	 * Takes one of the connections reserved for segments.
+	 * 
+	 * @return <code>false</code> if none is left
+	 */
+	private boolean takeReservedSegment() {
+		while (true) {
+			final int reserved = mReservedSegments.get();
+			if (reserved <= 0)
+				return false;
+			if (mReservedSegments.compareAndSet(reserved, reserved - 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Sets the connect and read timeouts of the current connection type.
+	 */
+	protected void setTimeouts(HttpURLConnection conn) {
+		conn.setConnectTimeout(getConnectTimeout());
+		conn.setReadTimeout(getReadTimeout());
+	}
+
+	/**
+	 * Lets the pool abort the transfer of the response once it exceeds its
+	 * deadline. A response of unknown length is expected to be about as large
+	 * as the cached content. Without any such hint there is no deadline and
+	 * only the read timeout applies.
+	 * 
+	 * @param contentLen
+	 *            Length of the response or -1 if unknown
+	 * @param cachedLen
+	 *            Length of the cached content or 0 if there is none
+	 * @return The deadline in ms, -1 if there is none
+	 */
+	protected long watchTransfer(HttpConnectionPool pool,
+			HttpURLConnection conn, long contentLen, long cachedLen) {
+		final long deadline = getTransferDeadline(contentLen >= 0 ? contentLen
+				: cachedLen > 0 ? cachedLen : -1L);
+		if (deadline > 0)
+			pool.setDeadline(conn, deadline);
+		return deadline;
+	}
+
+	/**
+	 * Returns the time after which the request for the resource is sent once
+	 * more: the estimated 95th percentile of the latency of the authority.
+	 * Only small resources are hedged and only if the traffic is free.
+	 * 
+	 * @return 0 if the request should not be hedged
+	 */
+	private long getHedgeDelay(RawResource r) {
+		if (!isHedgingEnabled() || mMetered || mContext == null
+				|| r instanceof RawBigResource)
+			return 0;
+
+		final float p95 = BandwidthEstimator.getInstance(mContext)
+				.getLatencyP95(mConnection, getAuthorityAsString());
+		return p95 > 0 ? Math.max(1, Math.round(p95)) : 0;
+	}
+
+	/**
+	 * Requests the resource using a {@link HedgedRequest}. The second request
+	 * is sent to the next mirror or, if there are none, to the authority
+	 * again.
+	 * 
+	 * @return The request whose response headers arrived first
+	 */
+	private HedgedRequest.Attempt hedge(final RawResource r,
+			final List<NameValuePair> params, URL url, long delay)
+			throws IOException {
+		HedgedRequest request = new HedgedRequest(
+				new HedgedRequest.RequestSetup() {
+					@Override
+					public void setup(HttpURLConnection conn) {
+						setTimeouts(conn);
+						setValidators(conn, r, params);
+						conn.setRequestProperty("Accept-Encoding",
+								ACCEPT_ENCODING);
+					}
+				});
+
+		Uri hedgeAuthority = mAuthority;
+		if (!mMirrors.isEmpty()) {
+			hedgeAuthority = mMirrors.get(mNextMirror % mMirrors.size());
+			mNextMirror++;
+		}
+		URL hedgeUrl = new URL(buildUri(hedgeAuthority, r, params).toString());
+
+		return request.execute(HttpConnectionPool.getPool(mAuthority), url,
+				HttpConnectionPool.getPool(hedgeAuthority), hedgeUrl, delay,
+				getAuthorityAsString());
+	}
+
+	/**
+	 * Enables or disables hedging for all HTTP resource proxies of this
+	 * process: requests of small resources are sent once more if their
+	 * response is late (see {@link HedgedRequest}). Disabled by default, as it
+	 * causes extra traffic for the authorities. Never used on metered
+	 * connections.
+	 */
+	public static synchronized void setHedgingEnabled(boolean enabled) {
+		sHedgingEnabled = enabled;
+	}
+
+	public static synchronized boolean isHedgingEnabled() {
+		return sHedgingEnabled;
+	}
+
+	/**
+	 * Adds an authority serving the same resources, which is used for the
+	 * second request of hedged requests. Mirrors are stored with the proxy
+	 * extra.
+	 */
+	public void addMirror(Uri mirror) {
+		if (!mirror.getScheme().equalsIgnoreCase(mAuthority.getScheme()))
+			throw new IllegalArgumentException(
+					"The mirror must have the scheme of the authority \""
+							+ mAuthority.getScheme() + "\"");
+		mMirrors.add(mirror);
+	}
+
+	@Override
+	public boolean supportsBatch() {
+		synchronized (sNoBatchAuthorities) {
+			return !sNoBatchAuthorities.contains(mAuthority.toString());
+		}
+	}
+
+	@Override
+	public Exception[] doLoadBatch(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps) {
+		if (!supportsBatch())
+			return super.doLoadBatch(resources, parameters, timestamps);
+
+		final long start = TimeProvider.currentTimeMillis();
+		Exception[] results = new Exception[resources.size()];
+
+		// build url
+		Uri.Builder b = mAuthority.buildUpon().appendEncodedPath(BATCH_PATH);
+		for (NameValuePair pair : parameters)
+			b.appendQueryParameter(pair.getName(), pair.getValue());
+
+		HttpConnectionPool pool = HttpConnectionPool.getPool(mAuthority);
+		HttpURLConnection conn = null;
+		InputStream in = null;
+		boolean reusable = false;
+		long deadline = -1L;
+		int done = 0;
+		try {
+			URL url = new URL(b.build().toString());
+			Log.d(TAG, "Loading " + resources.size() + " resources from url: "
+					+ url.toString());
+			byte[] body = buildBatchRequest(resources, timestamps);
+
+			conn = pool.open(url);
+			final long requestStart = TimeProvider.currentTimeMillis();
+			setTimeouts(conn);
+			conn.setDoOutput(true);
+			conn.setRequestMethod("POST");
+			conn.setRequestProperty("Content-Type", BATCH_CONTENT_TYPE);
+			conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+			conn.setFixedLengthStreamingMode(body.length);
+
+			OutputStream out = conn.getOutputStream();
+			out.write(body);
+			out.close();
+
+			// parse HTTP response status
+			final int respCode = conn.getResponseCode();
+			final long latency = TimeProvider.currentTimeMillis()
+					- requestStart;
+			if (respCode == HttpStatus.SC_NOT_FOUND
+					|| respCode == HttpStatus.SC_METHOD_NOT_ALLOWED
+					|| respCode == HttpStatus.SC_NOT_IMPLEMENTED) {
+				Log.i(TAG, "No batch support by " + mAuthority);
+				synchronized (sNoBatchAuthorities) {
+					sNoBatchAuthorities.add(mAuthority.toString());
+				}
+				pool.release(conn, null, true);
+				conn = null;
+
+				// the caller has passed the circuit breaker for this request
+				return loadEach(resources, parameters, timestamps, true);
+			}
+			if (respCode != HttpStatus.SC_OK)
+				throw new ResponseCodeException(respCode,
+						conn.getResponseMessage());
+
+			long cachedLen = 0L;
+			for (RawResource r : resources)
+				cachedLen += r.getSize();
+			deadline = watchTransfer(pool, conn, conn.getContentLength(),
+					cachedLen);
+
+			CountingInputStream counted = new CountingInputStream(
+					conn.getInputStream());
+			in = counted;
+			final long readStart = TimeProvider.currentTimeMillis();
+			DataInputStream din = new DataInputStream(new BufferedInputStream(
+					decodeContent(in, conn.getContentEncoding()), BUFFER_SIZE));
+
+			for (RawResource r : resources) {
+				results[done] = readBatchEntry(din, r);
+				done++;
+			}
+			reusable = true;
+
+			recordTransfer(counted.getCount(), latency,
+					TimeProvider.currentTimeMillis() - readStart);
+
+		} catch (IOException e) {
+			if (conn != null && pool.isExpired(conn))
+				e = new DeadlineExceededException(b.build().toString(),
+						deadline);
+
+			// all resources not read so far failed
+			for (int i = done; i < results.length; i++)
+				results[i] = e;
+		} finally {
+			if (conn != null)
+				pool.release(conn, in, reusable);
+		}
+
+		final long dur = TimeProvider.currentTimeMillis() - start;
+		Log.d(TAG, "Loaded batch of " + resources.size() + " in " + dur
+				+ "ms.");
+		return results;
+	}
+
+	private byte[] buildBatchRequest(List<RawResource> resources,
+			long[] timestamps) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+
+		out.writeInt(resources.size());
+		int i = 0;
+		for (RawResource r : resources) {
+			out.writeUTF(r.getPathUri().toString());
+			out.writeLong(timestamps[i++]);
+			out.writeBoolean(r.getETag() != null);
+			if (r.getETag() != null)
+				out.writeUTF(r.getETag());
+		}
+		out.flush();
+
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Reads the next entry of a batch response into the resource.
+	 * 
+	 * @return <code>null</code> if the resource has been updated
+	 * @throws IOException
+	 *             If the response could not be read any further
+	 */
+	private Exception readBatchEntry(DataInputStream din, RawResource r)
+			throws IOException {
+		final int code = din.readInt();
+		if (code == HttpStatus.SC_NOT_MODIFIED)
+			return new DoNotUpdateException(
+					DoNotUpdateException.EXC_MESSAGE_NOT_MODIFIED);
+		if (code != HttpStatus.SC_OK)
+			return new ResponseCodeException(code, null);
+
+		String eTag = din.readBoolean() ? din.readUTF() : null;
+		long lastModified = din.readLong();
+		int len = din.readInt();
+
+		byte[] data = new byte[len];
+		din.readFully(data);
+
+		currentUri = r.getPathUri().toString();
+		if (r instanceof RawBigResource)
+			replaceResourceContent(r, new ByteArrayInputStream(data), len);
+		else
+			r.adoptData(data);
+		r.setETag(eTag);
+		r.setLastModified(lastModified);
+
+		// the entries are read back to back, so the interval applies
+		informProgressListener(len, len, false);
+		return null;
+	}
+
+	@Override
+	public Manifest loadManifest(String path) throws IOException {
+		final long start = TimeProvider.currentTimeMillis();
+		URL url = new URL(mAuthority.buildUpon().path(path).build().toString());
+
+		HttpConnectionPool pool = HttpConnectionPool.getPool(mAuthority);
+		HttpURLConnection conn = pool.open(url);
+		InputStream in = null;
+		boolean reusable = false;
+		long deadline = -1L;
+		try {
+			Log.d(TAG, "Loading manifest from url: " + url.toString());
+			final long requestStart = TimeProvider.currentTimeMillis();
+			setTimeouts(conn);
+			conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+
+			final int respCode = conn.getResponseCode();
+			final long latency = TimeProvider.currentTimeMillis()
+					- requestStart;
+			if (respCode != HttpStatus.SC_OK)
+				throw new ResponseCodeException(respCode,
+						conn.getResponseMessage());
+
+			deadline = watchTransfer(pool, conn, conn.getContentLength(), 0L);
+			CountingInputStream counted = new CountingInputStream(
+					conn.getInputStream());
+			in = counted;
+			final long readStart = TimeProvider.currentTimeMillis();
+			Manifest manifest = Manifest.read(new DataInputStream(
+					new BufferedInputStream(decodeContent(in,
+							conn.getContentEncoding()), BUFFER_SIZE)));
+			reusable = true;
+
+			recordTransfer(counted.getCount(), latency,
+					TimeProvider.currentTimeMillis() - readStart);
+
+			Log.d(TAG, "Loaded manifest of " + manifest.size()
+					+ " resources in "
+					+ (TimeProvider.currentTimeMillis() - start) + "ms.");
+			return manifest;
+		} catch (IOException e) {
+			if (pool.isExpired(conn))
+				throw new DeadlineExceededException(url.toString(), deadline);
+			throw e;
+		} finally {
+			pool.release(conn, in, reusable);
+		}
+	}
+
+	@Override
+	protected boolean shouldSegment(RawResource r, String acceptRanges,
+			int contentLen) {
+		return isWorthSegmenting(r, acceptRanges, contentLen);
+	}
+
+	@Override
+	protected InputStream openRange(RawResource r, List<NameValuePair> params,
+			long first, long last, String validator) throws IOException {
+		URL url = new URL(buildUri(r, params).toString());
+		HttpConnectionPool pool = HttpConnectionPool.getPool(mAuthority);
+		HttpURLConnection conn = takeReservedSegment() ? pool
+				.openReserved(url) : pool.open(url);
+
+		boolean success = false;
+		try {
+			setTimeouts(conn);
+			conn.setRequestProperty("Range", "bytes=" + first + "-" + last);
+			conn.setRequestProperty("Accept-Encoding", "identity");
+			if (validator != null)
+				conn.setRequestProperty("If-Range", validator);
+
+			// a 200 means that the content has changed meanwhile
+			if (conn.getResponseCode() != HttpStatus.SC_PARTIAL_CONTENT
+					|| getRangeStart(conn) != first)
+				throw new IOException("Authority did not serve bytes " + first
+						+ "-" + last + " of " + url);
+
+			final long deadline = watchTransfer(pool, conn, last - first + 1,
+					0L);
+			InputStream in = new RangeInputStream(pool, conn,
+					conn.getInputStream(), url.toString(), deadline);
+			success = true;
+			return in;
+		} finally {
+			if (!success)
+				pool.release(conn, null, false);
+		}
+	}
+
+	/**
+	 * Gives the connection back to the pool when the range has been read.
+	 * Reports a transfer aborted by the pool as exceeded deadline.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+
+		private final HttpConnectionPool mPool;
+		private HttpURLConnection mConn;
+		private final String mUrl;
+		private final long mDeadline;
+
+		RangeInputStream(HttpConnectionPool pool, HttpURLConnection conn,
+				InputStream in, String url, long deadline) {
+			super(in);
+			this.mPool = pool;
+			this.mConn = conn;
+			this.mUrl = url;
+			this.mDeadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				return super.read();
+			} catch (IOException e) {
+				throw check(e);
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			try {
+				return super.read(buffer, offset, count);
+			} catch (IOException e) {
+				throw check(e);
+			}
+		}
+
+		private IOException check(IOException e) {
+			if (mConn != null && mPool.isExpired(mConn))
+				return new DeadlineExceededException(mUrl, mDeadline);
+			return e;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mConn == null)
+				return;
+
+			mPool.release(mConn, in, true);
+			mConn = null;
+		}
+	}
+
 	/**
 	 * Workaround from
 	 * http://android-developers.blogspot.de/2011/09/androids-http-clients.html
@@ -151,37 +747,105 @@ public class HttpResourceProxy extends ResourceProxy {
 		}
 	}
 
+	/**
+	 * Opens the connections using HEAD requests for the root of the authority,
+	 * which resolves the host as well.
+	 */
+	@Override
+	protected void doPrewarm(int connections) throws IOException {
+		Uri root = mAuthority.buildUpon().path("/").build();
+		HttpConnectionPool.getPool(mAuthority).prewarm(
+				new URL(root.toString()), connections);
+	}
+
+	/**
+	 * Stores the authority followed by the mirrors.
+	 */
 	@Override
 	public byte[] internalMarshall() {
-		// no over-flow as it automatically grows
-		ByteBuffer bb = ByteBuffer.allocate(256);
-		char[] authority = this.mAuthority.toString().toCharArray();
+		if (mMirrors.isEmpty())
+			return marshallAuthority(mAuthority);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] authority = marshallAuthority(mAuthority);
+		bos.write(authority, 0, authority.length);
+		for (Uri mirror : mMirrors) {
+			byte[] m = marshallAuthority(mirror);
+			bos.write(m, 0, m.length);
+		}
+		return bos.toByteArray();
+	}
 
-		bb.putInt(authority.length);
-		for (char c : authority)
-			bb.putChar(c);
+	/**
+	 * Restores the mirrors stored by <code>internalMarshall()</code> behind
+	 * the authority.
+	 */
+	protected void unmarshallMirrors(byte[] proxyExtra) {
+		ByteBuffer bb = ByteBuffer.wrap(proxyExtra);
+		bb.position(4 + 2 * bb.getInt());
+
+		while (bb.remaining() >= 4) {
+			final int len = bb.getInt();
+			if (len <= 0 || bb.remaining() < 2 * len)
+				break;
+
+			StringBuilder sb = new StringBuilder(len);
+			for (int i = 0; i < len; i++)
+				sb.append(bb.getChar());
+			mMirrors.add(Uri.parse(sb.toString()));
+		}
+	}
 
-		return bb.array();
+	/**
+	 * Makes the request conditional. The validators the authority delivered
+	 * with the cached content are preferred. If there are none, the timestamp
+	 * of the cached content is used.
+	 */
+	protected void setValidators(HttpURLConnection conn, RawResource r,
+			List<NameValuePair> params) {
+		if (r.getETag() != null)
+			conn.setRequestProperty("If-None-Match", r.getETag());
+
+		if (r.getLastModified() > 0)
+			conn.setIfModifiedSince(r.getLastModified());
+		else
+			conn.setIfModifiedSince(getTimestampFromParams(params));
 	}
 
-	private static String internalUnmarshallAuthority(byte[] data) {
-		ByteBuffer bb = ByteBuffer.wrap(data);
+	/**
+	 * Returns a validator which can be used within the <code>If-Range</code>
+	 * header. Weak ETags are not allowed there.
+	 * 
+	 * @return <code>null</code> if there is no suitable validator
+	 */
+	protected String getResumeValidator(HttpURLConnection conn) {
+		String eTag = conn.getHeaderField("ETag");
+		if (eTag != null && !eTag.startsWith("W/"))
+			return eTag;
 
-		int len = bb.getInt();
+		return conn.getHeaderField("Last-Modified");
+	}
 
-		StringBuilder sb = new StringBuilder(len);
-		for (int i = 0; i < len; i++)
-			sb.append(bb.getChar());
+	/**
+	 * Parses the first byte position of the <code>Content-Range</code> header
+	 * (e.g. "bytes 500-999/1000").
+	 * 
+	 * @return -1 if the header is missing or malformed
+	 */
+	protected long getRangeStart(HttpURLConnection conn) {
+		String range = conn.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes "))
+			return -1;
 
-		return sb.toString();
-	}
+		final int dash = range.indexOf('-');
+		if (dash == -1)
+			return -1;
 
-	protected long getTimestampFromParams(List<NameValuePair> params) {
-		for (NameValuePair p : params) {
-			if (p.getName().equals(UpdateWorker.HTTP_PARAM_TIMESTAMP))
-				return Long.parseLong(p.getValue());
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-		return 0;
 	}
 
 	@Override
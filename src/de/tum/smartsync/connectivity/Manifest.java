@@ -0,0 +1,113 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A list of all resources of an authority with their current versions, so
+ * that a client can find the changed resources with a single request.
+ * 
+ * <p>
+ * The manifest holds the number of entries followed by path, version and size
+ * of each resource, all encoded like <code>DataOutputStream</code> does. The
+ * version is what the authority would deliver as ETag for the resource, the
+ * size is the length of its content in bytes (-1 if unknown). The entries
+ * must be sorted by their path in the order of
+ * <code>String.compareTo(...)</code>, so that the manifest can be joined with
+ * the sorted cache index.
+ * 
+ * @author Daniel
+ * 
+ */
+public class Manifest {
+
+	/** Manifests announcing more entries are rejected as malformed */
+	public static final int MAX_ENTRIES = 1000000;
+
+	/** The arrays grow from this size while the entries are read */
+	private static final int INITIAL_CAPACITY = 256;
+
+	private String[] mPaths;
+	private String[] mVersions;
+	private long[] mSizes;
+	private int mCount = 0;
+
+	private Manifest(int capacity) {
+		mPaths = new String[capacity];
+		mVersions = new String[capacity];
+		mSizes = new long[capacity];
+	}
+
+	/**
+	 * Reads a whole manifest. The announced number of entries is not
+	 * trusted: the memory is only allocated for the entries actually read.
+	 * 
+	 * @throws IOException
+	 *             If the manifest is malformed or not sorted
+	 */
+	public static Manifest read(DataInputStream in) throws IOException {
+		final int count = in.readInt();
+		if (count < 0 || count > MAX_ENTRIES)
+			throw new IOException("Malformed manifest: " + count + " entries");
+
+		Manifest m = new Manifest(Math.min(count, INITIAL_CAPACITY));
+		for (int i = 0; i < count; i++) {
+			if (i == m.mPaths.length)
+				m.grow(Math.min(count, 2 * i));
+			m.mPaths[i] = in.readUTF();
+			m.mVersions[i] = in.readUTF();
+			m.mSizes[i] = in.readLong();
+			m.mCount++;
+
+			if (i > 0 && m.mPaths[i - 1].compareTo(m.mPaths[i]) >= 0)
+				throw new IOException("Manifest is not sorted at "
+						+ m.mPaths[i]);
+		}
+		return m;
+	}
+
+	private void grow(int capacity) {
+		mPaths = Arrays.copyOf(mPaths, capacity);
+		mVersions = Arrays.copyOf(mVersions, capacity);
+		mSizes = Arrays.copyOf(mSizes, capacity);
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public String getPath(int i) {
+		return mPaths[i];
+	}
+
+	/**
+	 * Returns the version of the resource, which equals its ETag.
+	 */
+	public String getVersion(int i) {
+		return mVersions[i];
+	}
+
+	/**
+	 * @return -1 if unknown
+	 */
+	public long getSize(int i) {
+		return mSizes[i];
+	}
+}
@@ -0,0 +1,830 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * A minimal HTTP/1.1 client on non-blocking channels. A single I/O thread
+ * multiplexes all requests of the process using a selector, so the number of
+ * concurrent downloads is not bound to the number of threads. Submitting a
+ * request returns an {@link Exchange} immediately; the caller waits for it
+ * once it needs the response.
+ * 
+ * <p>
+ * Connections are kept alive and reused for further requests to the same
+ * host. The number of connections per host is limited, further requests wait
+ * until a connection becomes available. Only GET requests are supported and
+ * the body is kept in memory, so this client is meant for small resources.
+ * Redirects are not followed.
+ * 
+ * @author Daniel
+ * 
+ */
+public class NioHttpClient implements Runnable {
+
+	private static final String TAG = "NioHttpClient";
+
+	public static final int MAX_CONNECTIONS_PER_HOST = 6;
+
+	/** Requests without any progress for this time fail */
+	public static final long TIMEOUT = 30 * TimeProvider.SECOND;
+
+	/** Idle connections are closed after this time */
+	public static final long IDLE_TIMEOUT = 15 * TimeProvider.SECOND;
+
+	/**
+	 * Longest time waited for a response. Only reached if the I/O thread does
+	 * not make any progress, as requests waiting for a connection of their
+	 * host are usually served much earlier.
+	 */
+	public static final long AWAIT_TIMEOUT = 4 * TIMEOUT;
+
+	private static final long SELECT_INTERVAL = TimeProvider.SECOND;
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024; // 16kB
+
+	private static NioHttpClient sInstance = null;
+
+	private final Selector mSelector;
+
+	/** Requests submitted by other threads, taken over by the I/O thread */
+	private final ConcurrentLinkedQueue<Exchange> mSubmitted = new ConcurrentLinkedQueue<Exchange>();
+
+	/** Only accessed by the I/O thread */
+	private final Map<String, Host> mHosts = new HashMap<String, Host>();
+
+	/** Only accessed by the I/O thread */
+	private final ByteBuffer mReadBuffer = ByteBuffer
+			.allocateDirect(READ_BUFFER_SIZE);
+
+	/** Only accessed by the I/O thread */
+	private final byte[] mReadArray = new byte[READ_BUFFER_SIZE];
+
+	private NioHttpClient() throws IOException {
+		mSelector = Selector.open();
+	}
+
+	/**
+	 * Returns the client of this process. Its I/O thread is started on first
+	 * use and runs as long as the process does.
+	 */
+	public static synchronized NioHttpClient getInstance() {
+		if (sInstance == null) {
+			try {
+				sInstance = new NioHttpClient();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to open selector", e);
+			}
+			Thread t = new Thread(sInstance, TAG);
+			t.setDaemon(true);
+			t.start();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Submits a GET request. This method does not block: the address must
+	 * already be resolved and the request is sent by the I/O thread.
+	 * 
+	 * @param address
+	 *            Resolved address of the host
+	 * @param host
+	 *            Value of the <code>Host</code> header
+	 * @param target
+	 *            Path and query of the request
+	 * @param headers
+	 *            Additional headers as name/value pairs. Might be
+	 *            <code>null</code>.
+	 * @return The exchange to wait for
+	 */
+	public Exchange submit(InetSocketAddress address, String host,
+			String target, List<String[]> headers) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("GET ").append(target).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(host).append("\r\n");
+		if (headers != null) {
+			for (String[] h : headers)
+				sb.append(h[0]).append(": ").append(h[1]).append("\r\n");
+		}
+		sb.append("Connection: keep-alive\r\n\r\n");
+
+		Exchange e;
+		try {
+			e = new Exchange(address, sb.toString().getBytes("ISO-8859-1"));
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		mSubmitted.add(e);
+		mSelector.wakeup();
+		return e;
+	}
+
+	/**
+	 * Opens connections to the host in advance, so that the next requests do
+	 * not have to wait for the connection setup. The connections are kept
+	 * like idle ones. This method does not block.
+	 * 
+	 * @param address
+	 *            Resolved address of the host
+	 * @param connections
+	 *            Number of connections the host should have (limited by
+	 *            {@link #MAX_CONNECTIONS_PER_HOST})
+	 */
+	public void connect(InetSocketAddress address, int connections) {
+		final int target = Math.min(connections, MAX_CONNECTIONS_PER_HOST);
+		for (int i = 0; i < target; i++) {
+			Exchange e = new Exchange(address, null);
+			e.mWarmTarget = target;
+			mSubmitted.add(e);
+		}
+		mSelector.wakeup();
+	}
+
+	/**
+	 * <p>
+	 * A single request and its response. All fields are written by the I/O
+	 * thread and may only be read after <code>await()</code> returned.
+	 */
+	public static class Exchange {
+
+		private final InetSocketAddress mAddress;
+		private final byte[] mRequest;
+
+		/** Set if the request is repeated on a fresh connection */
+		private boolean mRetried = false;
+
+		/**
+		 * Number of connections to be opened if this is no request but a
+		 * warm-up (see <code>connect(...)</code>)
+		 */
+		private int mWarmTarget = 0;
+
+		private int mResponseCode = -1;
+		private String mResponseMessage = null;
+		private final Map<String, String> mHeaders = new HashMap<String, String>();
+		private ByteArrayOutputStream mBody = null;
+
+		/** Used instead of mBody if the content length is known */
+		private byte[] mFixedBody = null;
+		private int mFixedPos = 0;
+
+		/** Bytes received including the headers */
+		private long mWireBytes = 0L;
+
+		private long mSent = 0L;
+		private long mFirstByte = 0L;
+		private long mFinished = 0L;
+
+		private boolean mDone = false;
+		private IOException mError = null;
+
+		Exchange(InetSocketAddress address, byte[] request) {
+			this.mAddress = address;
+			this.mRequest = request;
+		}
+
+		/**
+		 * Blocks until the response has been received completely, at most
+		 * for {@link #AWAIT_TIMEOUT}.
+		 * 
+		 * @throws IOException
+		 *             If the request failed, timed out or the thread has been
+		 *             interrupted
+		 */
+		public synchronized void await() throws IOException {
+			final long deadline = TimeProvider.currentTimeMillis()
+					+ AWAIT_TIMEOUT;
+			while (!mDone) {
+				final long remaining = deadline
+						- TimeProvider.currentTimeMillis();
+				if (remaining <= 0) {
+					// the I/O thread ignores the exchange from now on
+					finish(new SocketTimeoutException("No response within "
+							+ AWAIT_TIMEOUT + "ms"));
+					break;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted while waiting for the response");
+				}
+			}
+			if (mError != null)
+				throw mError;
+		}
+
+		private synchronized void finish(IOException error) {
+			if (mDone)
+				return;
+			mFinished = TimeProvider.currentTimeMillis();
+			mError = error;
+			mDone = true;
+			notifyAll();
+		}
+
+		public int getResponseCode() {
+			return mResponseCode;
+		}
+
+		public String getResponseMessage() {
+			return mResponseMessage;
+		}
+
+		/**
+		 * Returns the value of the response header.
+		 * 
+		 * @return <code>null</code> if there is no such header
+		 */
+		public String getHeader(String name) {
+			return mHeaders.get(name.toLowerCase(Locale.ENGLISH));
+		}
+
+		/**
+		 * Returns the body as received (i.e. still content encoded). Might be
+		 * empty but never <code>null</code>. If the content length has been
+		 * known, the array the body has been received into is returned
+		 * without copying it.
+		 */
+		public byte[] getBody() {
+			if (mFixedBody != null)
+				return mFixedBody;
+			return mBody == null ? new byte[0] : mBody.toByteArray();
+		}
+
+		/**
+		 * Returns the number of bytes received including the headers.
+		 */
+		public long getWireBytes() {
+			return mWireBytes;
+		}
+
+		/**
+		 * Returns the time from sending the request until the first byte of
+		 * the response arrived in ms.
+		 */
+		public long getLatency() {
+			return mFirstByte - mSent;
+		}
+
+		/**
+		 * Returns the time needed for receiving the response after its first
+		 * byte in ms.
+		 */
+		public long getDuration() {
+			return mFinished - mFirstByte;
+		}
+	}
+
+	/**
+	 * Connections and waiting requests of a single host. Only accessed by the
+	 * I/O thread.
+	 */
+	private static class Host {
+		final List<Connection> mIdle = new LinkedList<Connection>();
+		final List<Exchange> mWaiting = new LinkedList<Exchange>();
+		int mConnections = 0;
+	}
+
+	private static final int STATE_CONNECTING = 0;
+	private static final int STATE_WRITING = 1;
+	private static final int STATE_STATUS_LINE = 2;
+	private static final int STATE_HEADERS = 3;
+	private static final int STATE_BODY_FIXED = 4;
+	private static final int STATE_BODY_UNTIL_CLOSE = 5;
+	private static final int STATE_CHUNK_SIZE = 6;
+	private static final int STATE_CHUNK_DATA = 7;
+	private static final int STATE_CHUNK_END = 8;
+	private static final int STATE_TRAILER = 9;
+	private static final int STATE_IDLE = 10;
+	private static final int STATE_CLOSED = 11;
+
+	/**
+	 * A socket and the parser state of the response currently read from it.
+	 * Only accessed by the I/O thread.
+	 */
+	private static class Connection {
+		final String mHostKey;
+		final SocketChannel mChannel;
+		SelectionKey mKey;
+
+		int mState = STATE_CONNECTING;
+		Exchange mExchange = null;
+		ByteBuffer mOut = null;
+
+		/** Set once this connection has served a request */
+		boolean mReused = false;
+		boolean mKeepAlive = true;
+
+		/** Collects the current line of the status line, headers or chunks */
+		final StringBuilder mLine = new StringBuilder(128);
+		boolean mCarriageReturn = false;
+
+		/** Remaining bytes of the body or the current chunk */
+		long mRemaining = 0L;
+
+		long mLastActivity = TimeProvider.currentTimeMillis();
+
+		Connection(String hostKey, SocketChannel channel) {
+			this.mHostKey = hostKey;
+			this.mChannel = channel;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				mSelector.select(SELECT_INTERVAL);
+			} catch (IOException e) {
+				Log.e(TAG, "Selecting failed", e);
+				continue;
+			}
+
+			Exchange e;
+			while ((e = mSubmitted.poll()) != null) {
+				try {
+					dispatch(e);
+				} catch (Throwable t) {
+					Log.e(TAG, "Dispatching failed", t);
+					e.finish(new IOException(t));
+				}
+			}
+
+			Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Connection c = (Connection) key.attachment();
+				try {
+					if (!key.isValid())
+						throw new ClosedChannelException();
+					if (key.isConnectable())
+						onConnectable(c);
+					else if (key.isWritable())
+						onWritable(c);
+					else if (key.isReadable())
+						onReadable(c);
+				} catch (IOException ex) {
+					fail(c, ex);
+				} catch (Throwable t) {
+					// only this connection is affected, the thread goes on
+					Log.e(TAG, "Unexpected failure of a connection to "
+							+ c.mHostKey, t);
+					c.mReused = false;
+					fail(c, new IOException(t));
+				}
+			}
+
+			try {
+				checkTimeouts();
+			} catch (Throwable t) {
+				Log.e(TAG, "Checking timeouts failed", t);
+			}
+		}
+	}
+
+	private static String getHostKey(InetSocketAddress address) {
+		return address.getAddress().getHostAddress() + ":" + address.getPort();
+	}
+
+	/**
+	 * Assigns the exchange to an idle connection, opens a new one or lets the
+	 * exchange wait for a connection of its host.
+	 */
+	private void dispatch(Exchange e) {
+		final String hostKey = getHostKey(e.mAddress);
+		Host host = mHosts.get(hostKey);
+		if (host == null) {
+			host = new Host();
+			mHosts.put(hostKey, host);
+		}
+
+		// a warm-up only opens a connection if there are not enough yet
+		if (e.mRequest == null) {
+			if (host.mConnections < e.mWarmTarget)
+				open(host, hostKey, e.mAddress, null);
+			return;
+		}
+
+		if (!host.mIdle.isEmpty()) {
+			startExchange(host.mIdle.remove(0), e);
+		} else if (host.mConnections < MAX_CONNECTIONS_PER_HOST) {
+			open(host, hostKey, e.mAddress, e);
+		} else {
+			host.mWaiting.add(e);
+		}
+	}
+
+	/**
+	 * Opens a new connection to the host.
+	 * 
+	 * @param exchange
+	 *            Started once the connection is established. If
+	 *            <code>null</code> the connection becomes idle.
+	 */
+	private void open(Host host, String hostKey, InetSocketAddress address,
+			Exchange exchange) {
+		try {
+			SocketChannel ch = SocketChannel.open();
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			Connection c = new Connection(hostKey, ch);
+			c.mExchange = exchange;
+			host.mConnections++;
+
+			if (ch.connect(address)) {
+				c.mKey = ch.register(mSelector, 0, c);
+				onConnected(c);
+			} else {
+				c.mKey = ch.register(mSelector, SelectionKey.OP_CONNECT, c);
+			}
+		} catch (IOException ex) {
+			host.mConnections--;
+			if (exchange != null)
+				exchange.finish(ex);
+			else
+				Log.v(TAG, "Unable to connect to " + hostKey + ": "
+						+ ex.getMessage());
+		}
+	}
+
+	private void startExchange(Connection c, Exchange e) {
+		c.mExchange = e;
+		c.mState = STATE_WRITING;
+		c.mOut = ByteBuffer.wrap(e.mRequest);
+		c.mLine.setLength(0);
+		c.mCarriageReturn = false;
+		c.mKeepAlive = true;
+		c.mLastActivity = TimeProvider.currentTimeMillis();
+		c.mKey.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	private void onConnectable(Connection c) throws IOException {
+		c.mChannel.finishConnect();
+		onConnected(c);
+	}
+
+	private void onConnected(Connection c) {
+		if (c.mExchange != null) {
+			startExchange(c, c.mExchange);
+			return;
+		}
+
+		// opened in advance: a server might close it like any idle one
+		c.mReused = true;
+		idle(c);
+	}
+
+	private void onWritable(Connection c) throws IOException {
+		c.mChannel.write(c.mOut);
+		c.mLastActivity = TimeProvider.currentTimeMillis();
+
+		if (!c.mOut.hasRemaining()) {
+			c.mOut = null;
+			c.mState = STATE_STATUS_LINE;
+			c.mExchange.mSent = c.mLastActivity;
+			c.mKey.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void onReadable(Connection c) throws IOException {
+		ByteBuffer buf = mReadBuffer;
+		buf.clear();
+		final int len = c.mChannel.read(buf);
+		c.mLastActivity = TimeProvider.currentTimeMillis();
+
+		if (len == -1) {
+			if (c.mState == STATE_BODY_UNTIL_CLOSE)
+				complete(c);
+			else if (c.mState == STATE_IDLE)
+				close(c);
+			else
+				throw new EOFException("Connection closed by " + c.mHostKey);
+			return;
+		}
+		if (c.mState == STATE_IDLE)
+			throw new IOException("Unexpected data on idle connection");
+
+		Exchange e = c.mExchange;
+		if (e.mFirstByte == 0L)
+			e.mFirstByte = c.mLastActivity;
+		e.mWireBytes += len;
+
+		buf.flip();
+		buf.get(mReadArray, 0, len);
+		parse(c, mReadArray, 0, len);
+	}
+
+	/**
+	 * Feeds received bytes into the response parser of the connection.
+	 */
+	private void parse(Connection c, byte[] data, int off, int len)
+			throws IOException {
+		final int end = off + len;
+		int pos = off;
+
+		while (pos < end) {
+			switch (c.mState) {
+			case STATE_STATUS_LINE:
+			case STATE_HEADERS:
+			case STATE_CHUNK_SIZE:
+			case STATE_CHUNK_END:
+			case STATE_TRAILER:
+				byte b = data[pos++];
+				if (b == '\n') {
+					onLine(c);
+				} else if (b != '\r') {
+					c.mLine.append((char) (b & 0xFF));
+				}
+				break;
+
+			case STATE_BODY_FIXED:
+			case STATE_CHUNK_DATA:
+				final int n = (int) Math.min(end - pos, c.mRemaining);
+				Exchange e = c.mExchange;
+				if (e.mFixedBody != null) {
+					System.arraycopy(data, pos, e.mFixedBody, e.mFixedPos, n);
+					e.mFixedPos += n;
+				} else {
+					e.mBody.write(data, pos, n);
+				}
+				pos += n;
+				c.mRemaining -= n;
+				if (c.mRemaining == 0) {
+					if (c.mState == STATE_BODY_FIXED)
+						complete(c);
+					else
+						c.mState = STATE_CHUNK_END;
+				}
+				break;
+
+			case STATE_BODY_UNTIL_CLOSE:
+				c.mExchange.mBody.write(data, pos, end - pos);
+				pos = end;
+				break;
+
+			default:
+				throw new IOException("Unexpected data from " + c.mHostKey);
+			}
+		}
+	}
+
+	/**
+	 * Processes a complete line of the status line, headers or chunk framing.
+	 */
+	private void onLine(Connection c) throws IOException {
+		final String line = c.mLine.toString();
+		c.mLine.setLength(0);
+		Exchange e = c.mExchange;
+
+		switch (c.mState) {
+		case STATE_STATUS_LINE:
+			// e.g. "HTTP/1.1 200 OK"
+			if (!line.startsWith("HTTP/") || line.length() < 12)
+				throw new IOException("Malformed status line: " + line);
+			try {
+				e.mResponseCode = Integer.parseInt(line.substring(9, 12));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed status line: " + line);
+			}
+			e.mResponseMessage = line.length() > 13 ? line.substring(13) : "";
+			c.mKeepAlive = line.startsWith("HTTP/1.1");
+			e.mHeaders.clear();
+			c.mState = STATE_HEADERS;
+			break;
+
+		case STATE_HEADERS:
+			if (line.length() > 0) {
+				final int colon = line.indexOf(':');
+				if (colon > 0)
+					e.mHeaders.put(line.substring(0, colon).trim()
+							.toLowerCase(Locale.ENGLISH),
+							line.substring(colon + 1).trim());
+			} else {
+				onHeadersComplete(c);
+			}
+			break;
+
+		case STATE_CHUNK_SIZE:
+			int semicolon = line.indexOf(';');
+			String size = semicolon == -1 ? line : line.substring(0, semicolon);
+			try {
+				c.mRemaining = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed chunk size: " + line);
+			}
+			c.mState = c.mRemaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+			break;
+
+		case STATE_CHUNK_END:
+			c.mState = STATE_CHUNK_SIZE;
+			break;
+
+		case STATE_TRAILER:
+			if (line.length() == 0)
+				complete(c);
+			break;
+
+		default:
+			throw new IllegalStateException("No line expected in state "
+					+ c.mState);
+		}
+	}
+
+	/**
+	 * Determines how the body is delimited.
+	 */
+	private void onHeadersComplete(Connection c) throws IOException {
+		Exchange e = c.mExchange;
+		final int code = e.mResponseCode;
+
+		// interim response, the actual one follows
+		if (code / 100 == 1) {
+			c.mState = STATE_STATUS_LINE;
+			return;
+		}
+
+		String connection = e.getHeader("Connection");
+		if (connection != null) {
+			if (connection.equalsIgnoreCase("close"))
+				c.mKeepAlive = false;
+			else if (connection.equalsIgnoreCase("keep-alive"))
+				c.mKeepAlive = true;
+		}
+
+		String length = e.getHeader("Content-Length");
+		String transferEncoding = e.getHeader("Transfer-Encoding");
+		e.mFixedBody = null;
+
+		if (code == 204 || code == 304) {
+			e.mBody = new ByteArrayOutputStream(0);
+			complete(c);
+		} else if (transferEncoding != null
+				&& transferEncoding.toLowerCase(Locale.ENGLISH).contains(
+						"chunked")) {
+			e.mBody = new ByteArrayOutputStream();
+			c.mState = STATE_CHUNK_SIZE;
+		} else if (length != null) {
+			try {
+				c.mRemaining = Long.parseLong(length);
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed content length: " + length);
+			}
+			if (c.mRemaining > Integer.MAX_VALUE)
+				throw new IOException("Content too large: " + length);
+
+			// received into the final array, see getBody()
+			e.mBody = null;
+			e.mFixedBody = new byte[(int) c.mRemaining];
+			e.mFixedPos = 0;
+			c.mState = STATE_BODY_FIXED;
+			if (c.mRemaining == 0)
+				complete(c);
+		} else {
+			e.mBody = new ByteArrayOutputStream();
+			c.mKeepAlive = false;
+			c.mState = STATE_BODY_UNTIL_CLOSE;
+		}
+	}
+
+	/**
+	 * The response has been received completely: hands the connection to the
+	 * next waiting exchange, keeps it idle or closes it.
+	 */
+	private void complete(Connection c) {
+		Exchange e = c.mExchange;
+		c.mExchange = null;
+		c.mReused = true;
+
+		if (c.mKeepAlive && c.mChannel.isOpen())
+			idle(c);
+		else
+			close(c);
+
+		e.finish(null);
+	}
+
+	/**
+	 * Hands the connection to the next waiting exchange or keeps it idle.
+	 */
+	private void idle(Connection c) {
+		c.mState = STATE_IDLE;
+		c.mLastActivity = TimeProvider.currentTimeMillis();
+		c.mKey.interestOps(SelectionKey.OP_READ);
+
+		Host host = mHosts.get(c.mHostKey);
+		if (!host.mWaiting.isEmpty())
+			startExchange(c, host.mWaiting.remove(0));
+		else
+			host.mIdle.add(c);
+	}
+
+	/**
+	 * The connection broke: the exchange is repeated once if the connection
+	 * has been reused and nothing has been received yet, as the server might
+	 * have closed it meanwhile. Otherwise the exchange fails.
+	 */
+	private void fail(Connection c, IOException error) {
+		close(c);
+
+		Exchange e = c.mExchange;
+		if (e == null)
+			return;
+		c.mExchange = null;
+
+		if (c.mReused && !e.mRetried && e.mWireBytes == 0) {
+			e.mRetried = true;
+			dispatch(e);
+		} else {
+			e.finish(error);
+		}
+	}
+
+	/**
+	 * Closes the connection and lets a waiting exchange of its host open a new
+	 * one.
+	 */
+	private void close(Connection c) {
+		if (c.mState == STATE_CLOSED)
+			return;
+		c.mState = STATE_CLOSED;
+
+		if (c.mKey != null)
+			c.mKey.cancel();
+		try {
+			c.mChannel.close();
+		} catch (IOException ignore) {
+		}
+
+		Host host = mHosts.get(c.mHostKey);
+		host.mIdle.remove(c);
+		host.mConnections--;
+
+		if (!host.mWaiting.isEmpty())
+			dispatch(host.mWaiting.remove(0));
+	}
+
+	/**
+	 * Fails requests without progress and closes idle connections.
+	 */
+	private void checkTimeouts() {
+		final long now = TimeProvider.currentTimeMillis();
+
+		// closing might register further channels
+		List<SelectionKey> keys = new ArrayList<SelectionKey>(
+				mSelector.keys());
+		for (SelectionKey key : keys) {
+			Connection c = (Connection) key.attachment();
+			if (c == null || c.mState == STATE_CLOSED)
+				continue;
+
+			if (c.mState == STATE_IDLE) {
+				if (now - c.mLastActivity > IDLE_TIMEOUT)
+					close(c);
+			} else if (now - c.mLastActivity > TIMEOUT) {
+				c.mReused = false;
+				fail(c, new SocketTimeoutException("No response from "
+						+ c.mHostKey + " within " + TIMEOUT + "ms"));
+			}
+		}
+	}
+}
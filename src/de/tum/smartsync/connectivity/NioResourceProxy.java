@@ -0,0 +1,307 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.connectivity.NioHttpClient.Exchange;
+import de.tum.smartsync.helper.TimeProvider;
+import de.tum.smartsync.resource.RawBigResource;
+
+/**
+ * <p>
+ * An HTTP resource proxy which loads small resources using the non-blocking
+ * {@link NioHttpClient}. All requests of a batch are sent at once and are
+ * multiplexed by the single I/O thread of the client, so a single
+ * {@link UpdateWorker} keeps many downloads in flight without further
+ * threads. The worker only waits for the completed bodies and hands them to
+ * the cache.
+ * 
+ * <p>
+ * Big resources are loaded like the {@link HttpResourceProxy} does, as they
+ * are streamed to storage and benefit from resuming and segmented downloads.
+ * 
+ * @author Daniel
+ * 
+ */
+public class NioResourceProxy extends HttpResourceProxy {
+
+	private static final String TAG = "NioResourceProxy";
+
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	public NioResourceProxy(Uri authority, Context context) {
+		super(authority, context);
+	}
+
+	public NioResourceProxy(byte[] proxyExtra, Context context) {
+		super(proxyExtra, context);
+	}
+
+	@Override
+	public void doLoad(RawResource r, List<NameValuePair> params)
+			throws IOException, DoNotUpdateException {
+		if (!usesClient(r)) {
+			super.doLoad(r, params);
+			return;
+		}
+
+		final long start = TimeProvider.currentTimeMillis();
+		Exchange e = submit(r, params);
+		e.await();
+		complete(r, e, true);
+
+		final long dur = TimeProvider.currentTimeMillis() - start;
+		Log.d(TAG, "Loaded " + r.getSize() + " bytes in " + dur + "ms.");
+	}
+
+	/**
+	 * Batches are loaded by concurrent requests instead of the batch protocol
+	 * of the authority, so every authority supports them.
+	 */
+	@Override
+	public boolean supportsBatch() {
+		return true;
+	}
+
+	@Override
+	public Exception[] doLoadBatch(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps) {
+		final long start = TimeProvider.currentTimeMillis();
+		Exception[] results = new Exception[resources.size()];
+		Exchange[] exchanges = new Exchange[resources.size()];
+
+		// send all requests at once
+		int i = 0;
+		for (RawResource r : resources) {
+			if (usesClient(r)) {
+				try {
+					exchanges[i] = submit(r,
+							getParams(parameters, timestamps[i]));
+				} catch (IOException e) {
+					results[i] = e;
+				}
+			}
+			i++;
+		}
+
+		// collect the responses in order
+		i = 0;
+		for (RawResource r : resources) {
+			try {
+				if (!usesClient(r)) {
+					load(r, getParams(parameters, timestamps[i]));
+				} else if (exchanges[i] != null) {
+					exchanges[i].await();
+					// finished exchanges are collected back to back
+					complete(r, exchanges[i], false);
+				}
+			} catch (IOException e) {
+				results[i] = e;
+			} catch (DoNotUpdateException e) {
+				results[i] = e;
+			}
+			i++;
+		}
+
+		final long dur = TimeProvider.currentTimeMillis() - start;
+		Log.d(TAG, "Loaded batch of " + resources.size() + " in " + dur
+				+ "ms.");
+		return results;
+	}
+
+	/**
+	 * The client does not speak TLS, so authorities of any other scheme than
+	 * "http" are always left to the {@link HttpResourceProxy}.
+	 * 
+	 * @return Whether the resource is loaded by the {@link NioHttpClient}
+	 */
+	private boolean usesClient(RawResource r) {
+		return !(r instanceof RawBigResource) && isPlainHttp(mAuthority);
+	}
+
+	private static boolean isPlainHttp(Uri uri) {
+		return "http".equalsIgnoreCase(uri.getScheme());
+	}
+
+	private static List<NameValuePair> getParams(
+			List<NameValuePair> parameters, long timestamp) {
+		List<NameValuePair> params = new LinkedList<NameValuePair>(parameters);
+		params.add(new BasicNameValuePair(UpdateWorker.HTTP_PARAM_TIMESTAMP,
+				Long.toString(timestamp)));
+		return params;
+	}
+
+	/**
+	 * Resolves the host of the authority, using the {@link DnsCache} if there
+	 * is a context. Only this proxy connects to the addresses itself,
+	 * <code>HttpURLConnection</code> always resolves on its own.
+	 * 
+	 * @throws UnknownHostException
+	 */
+	private InetAddress resolveHost(String host) throws UnknownHostException {
+		if (mContext == null)
+			return InetAddress.getByName(host);
+		return DnsCache.getInstance(mContext).resolve(host)[0];
+	}
+
+	/**
+	 * Resolves the host and lets the client open the connections.
+	 */
+	@Override
+	protected void doPrewarm(int connections) throws IOException {
+		if (!isPlainHttp(mAuthority)) {
+			super.doPrewarm(connections);
+			return;
+		}
+
+		final String host = mAuthority.getHost();
+		final int port = mAuthority.getPort() == -1 ? 80 : mAuthority
+				.getPort();
+		NioHttpClient.getInstance().connect(
+				new InetSocketAddress(resolveHost(host), port), connections);
+	}
+
+	/**
+	 * Builds the request for the resource and submits it to the client.
+	 * Resolving the host name is the only blocking operation, which is
+	 * usually answered by the {@link DnsCache}.
+	 * 
+	 * @throws IOException
+	 *             If the host could not be resolved or the request would not
+	 *             be sent in plain HTTP
+	 */
+	private Exchange submit(RawResource r, List<NameValuePair> params)
+			throws IOException {
+		Uri uri = buildUri(r, params);
+		if (!isPlainHttp(uri))
+			throw new MalformedURLException("Not a plain HTTP URI: " + uri);
+		final String host = uri.getHost();
+		if (host == null)
+			throw new MalformedURLException("No host in " + uri);
+		final int port = uri.getPort() == -1 ? 80 : uri.getPort();
+
+		InetSocketAddress address = new InetSocketAddress(resolveHost(host),
+				port);
+
+		String target = uri.getEncodedPath();
+		if (target == null || target.length() == 0)
+			target = "/";
+		if (uri.getEncodedQuery() != null)
+			target += "?" + uri.getEncodedQuery();
+
+		// same headers as sent by the HttpResourceProxy
+		List<String[]> headers = new LinkedList<String[]>();
+		headers.add(new String[] { "Accept-Encoding", ACCEPT_ENCODING });
+		if (r.getETag() != null)
+			headers.add(new String[] { "If-None-Match", r.getETag() });
+		final long ifModifiedSince = r.getLastModified() > 0 ? r
+				.getLastModified() : getTimestampFromParams(params);
+		if (ifModifiedSince > 0)
+			headers.add(new String[] { "If-Modified-Since",
+					formatDate(ifModifiedSince) });
+
+		return NioHttpClient.getInstance().submit(address,
+				uri.getPort() == -1 ? host : host + ":" + port, target,
+				headers);
+	}
+
+	/**
+	 * Replaces the content of the resource with the received response.
+	 * 
+	 * @param force
+	 *            Whether the progress is reported regardless of the update
+	 *            interval
+	 * @throws IOException
+	 * @throws DoNotUpdateException
+	 */
+	private void complete(RawResource r, Exchange e, boolean force)
+			throws IOException, DoNotUpdateException {
+		final int respCode = e.getResponseCode();
+		if (respCode == HttpStatus.SC_NOT_MODIFIED) {
+			recordTransfer(0, e.getLatency(), 0);
+			throw new DoNotUpdateException(
+					DoNotUpdateException.EXC_MESSAGE_NOT_MODIFIED);
+		}
+		if (respCode != HttpStatus.SC_OK)
+			throw new ResponseCodeException(respCode, e.getResponseMessage());
+
+		currentUri = r.getPathUri().toString();
+		byte[] body = e.getBody();
+		final String encoding = e.getHeader("Content-Encoding");
+		if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+			// the body has been received into an array of its own
+			r.adoptData(body);
+			informProgressListener(body.length, body.length, force);
+		} else {
+			replaceResourceContent(r, new ByteArrayInputStream(body),
+					body.length, encoding, null);
+		}
+		recordTransfer(e.getWireBytes(), e.getLatency(), e.getDuration());
+
+		// remember the validators for the next conditional request
+		r.setETag(e.getHeader("ETag"));
+		r.setLastModified(parseDate(e.getHeader("Last-Modified")));
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat f = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return f.format(new Date(time));
+	}
+
+	/**
+	 * @return 0 if the date is missing or malformed
+	 */
+	private static long parseDate(String date) {
+		if (date == null)
+			return 0L;
+
+		SimpleDateFormat f = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return f.parse(date).getTime();
+		} catch (ParseException e) {
+			return 0L;
+		}
+	}
+
+	@Override
+	public int getProxyMethod() {
+		return ResourceProxy.METHOD_HTTP_NIO;
+	}
+}
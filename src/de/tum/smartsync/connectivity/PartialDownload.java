@@ -0,0 +1,200 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * The persisted state of a download of a big resource which has not been
+ * finished yet. It consists of the bytes received so far and a meta file with
+ * the validator (strong ETag or Last-Modified) of the content and its total
+ * length.
+ * 
+ * <p>
+ * If a transfer breaks off (e.g. when switching networks) the next attempt can
+ * resume using a <code>Range</code> request instead of starting from byte
+ * zero. The <code>If-Range</code> header with the stored validator makes sure
+ * that the authority sends the complete content if it has changed meanwhile.
+ * 
+ * @author Daniel
+ * 
+ */
+public class PartialDownload {
+
+	private static final String TAG = "PartialDownload";
+
+	private static final String DIR_NAME = "partial";
+
+	private static final String FILE_SUFFIX_DATA = ".part";
+	private static final String FILE_SUFFIX_META = ".meta";
+
+	/** Partial downloads older than this are discarded */
+	public static final long MAX_AGE = TimeProvider.DAY;
+
+	private final String mKey;
+	private final File mDataFile;
+	private final File mMetaFile;
+
+	private String mValidator = null;
+	private long mTotal = -1;
+
+	private PartialDownload(File dir, String key) {
+		final String name = Integer.toString(Math.abs(key.hashCode()), 10 + 26);
+		this.mKey = key;
+		this.mDataFile = new File(dir, name + FILE_SUFFIX_DATA);
+		this.mMetaFile = new File(dir, name + FILE_SUFFIX_META);
+	}
+
+	/**
+	 * Returns the partial download for the given key (usually authority and
+	 * path of the resource). If there is no usable state, the returned instance
+	 * is empty.
+	 */
+	public static PartialDownload get(Context context, String key) {
+		File dir = new File(context.getCacheDir(), DIR_NAME);
+		if (!dir.exists() && !dir.mkdir())
+			throw new RuntimeException(
+					"Unable to create directory for partial downloads: " + dir);
+
+		PartialDownload p = new PartialDownload(dir, key);
+		p.readMeta();
+		return p;
+	}
+
+	private void readMeta() {
+		if (!mMetaFile.exists() || !mDataFile.exists())
+			return;
+
+		// the authority might have dropped the version meanwhile
+		if (mMetaFile.lastModified() + MAX_AGE < TimeProvider
+				.currentTimeMillis()) {
+			delete();
+			return;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					mMetaFile));
+			try {
+				// belongs to another key (hash collision)
+				if (!mKey.equals(in.readUTF())) {
+					delete();
+					return;
+				}
+				mValidator = in.readUTF();
+				mTotal = in.readLong();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable partial download: " + mKey, e);
+			delete();
+		}
+	}
+
+	/**
+	 * Returns true if there are bytes which can be resumed
+	 */
+	public boolean canResume() {
+		final long len = getLength();
+		return mValidator != null && len > 0 && (mTotal < 0 || len < mTotal);
+	}
+
+	/**
+	 * Returns the number of bytes already received
+	 */
+	public long getLength() {
+		return mDataFile.exists() ? mDataFile.length() : 0L;
+	}
+
+	/**
+	 * Returns the total length of the content or -1 if unknown
+	 */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	public String getValidator() {
+		return mValidator;
+	}
+
+	/**
+	 * Discards all received bytes and starts a new partial download for
+	 * content with the given validator.
+	 * 
+	 * @param validator
+	 *            Strong ETag or Last-Modified of the content. Must not be
+	 *            <code>null</code>.
+	 * @param total
+	 *            Length of the whole content or -1 if unknown
+	 * @throws IOException
+	 */
+	public void restart(String validator, long total) throws IOException {
+		mDataFile.delete();
+		mValidator = validator;
+		mTotal = total;
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				mMetaFile));
+		try {
+			out.writeUTF(mKey);
+			out.writeUTF(validator);
+			out.writeLong(total);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Opens the data file for appending further bytes.
+	 * 
+	 * @throws IOException
+	 */
+	public OutputStream openForAppend() throws IOException {
+		return new FileOutputStream(mDataFile, true);
+	}
+
+	/**
+	 * Opens the data file for reading all bytes received so far.
+	 * 
+	 * @throws IOException
+	 */
+	public InputStream openForReading() throws IOException {
+		return new FileInputStream(mDataFile);
+	}
+
+	/**
+	 * Removes the whole state. Called after the download has been completed.
+	 */
+	public void delete() {
+		mDataFile.delete();
+		mMetaFile.delete();
+		mValidator = null;
+		mTotal = -1;
+	}
+}
@@ -16,18 +16,38 @@
 package de.tum.smartsync.connectivity;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 import de.tum.smartsync.RawResource;
 import de.tum.smartsync.background.ProgressListener;
+import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.helper.BufferPool;
+import de.tum.smartsync.helper.CountingInputStream;
 import de.tum.smartsync.helper.TimeProvider;
 import de.tum.smartsync.resource.RawBigResource;
 
@@ -41,19 +61,83 @@ import de.tum.smartsync.resource.RawBigResource;
  */
 public abstract class ResourceProxy {
 
-	@SuppressWarnings("unused")
 	private static final String TAG = "ResourceProxy";
 
 	public static final int METHOD_HTTP = 0x1;
 	public static final int METHOD_HTTPS = 0x2;
 	public static final int METHOD_CONTENT_RESOLVER = 0x3;
+	public static final int METHOD_HTTP_NIO = 0x4;
 
 	private static final long PROGRESS_UPDATE_INTERVAL = 250; // 125ms
 
 	protected static final int BUFFER_SIZE = 4 * 1024; // 4kB
 
+	/** Content below this size is always loaded using a single stream */
+	public static final int SEGMENTED_THRESHOLD = 4 * 1024 * 1024; // 4MB
+
+	/** Number of parallel ranges used by the segmented download */
+	public static final int SEGMENT_COUNT = 3;
+
+	private static volatile boolean sSegmentedDownload = false;
+
+	/** Number of attempts for a request failing with transient errors */
+	public static final int MAX_ATTEMPTS = 3;
+
+	/** Backoff before the first retry, doubled for every further retry */
+	private static final long BACKOFF_BASE = 500; // 500ms
+
+	private static final long BACKOFF_MAX = 8 * TimeProvider.SECOND;
+
+	/** Bounds of the connect timeout */
+	private static final long MIN_CONNECT_TIMEOUT = 5 * TimeProvider.SECOND;
+	private static final long MAX_CONNECT_TIMEOUT = 30 * TimeProvider.SECOND;
+
+	/** Multiple of the 95th percentile of the latency regarded as timeout */
+	private static final float TIMEOUT_LATENCY_FACTOR = 5f;
+
+	/** Latency of a delay factor of 1.0 (see {@link ConnectionGuru}) */
+	private static final float NOMINAL_LATENCY = 200f; // ms
+
+	/** Throughput of a speed factor of 1.0 (see {@link ConnectionGuru}) */
+	private static final float NOMINAL_THROUGHPUT = 100 * 1024f; // B/s
+
+	/**
+	 * A transfer slower than this share of the estimated throughput is
+	 * regarded as stalled
+	 */
+	private static final float STALL_THROUGHPUT_SHARE = 0.25f;
+
+	/** Lowest throughput a deadline is based on */
+	private static final float MIN_DEADLINE_THROUGHPUT = 1024f; // B/s
+
+	private static final Random sRandom = new Random();
+
 	protected Uri mAuthority;
 
+	/**
+	 * Used for accessing the device, e.g. for storing partial downloads. Might
+	 * be <code>null</code>.
+	 */
+	protected Context mContext = null;
+
+	/**
+	 * The connection type the proxy is currently used with (see
+	 * {@link ConnectionGuru}).
+	 */
+	protected int mConnection = ConnectionGuru.CONNECTION_UNKNOWN;
+
+	/**
+	 * Whether the traffic of the current connection costs. Assumed until the
+	 * proxy is told otherwise.
+	 */
+	protected boolean mMetered = true;
+
+	/** Highest latency recorded since the last call of takeLatency() */
+	private long mLatency = -1L;
+
+	/** Bytes loaded by all segments of the current segmented download */
+	private int mSegmentedBytes = 0;
+
 	private long noUpdateBefore = 0L;
 
 	// used for calculating transmission speed
@@ -93,6 +177,484 @@ public abstract class ResourceProxy {
 	public abstract void doLoad(RawResource r, List<NameValuePair> parameters)
 			throws MalformedURLException, IOException, DoNotUpdateException;
 
+	/**
+	 * <p>
+	 * Loads several resources at once. Proxies supporting a batch protocol
+	 * override this method in order to save round trips. The default
+	 * implementation calls <code>load(...)</code> for each resource, so each
+	 * of them is retried on its own.
+	 * 
+	 * <p>
+	 * This method will block until it is finished!
+	 * 
+	 * @param resources
+	 *            The resources to be updated
+	 * @param parameters
+	 *            Additional parameters which are shared by all resources
+	 * @param timestamps
+	 *            Timestamp of the cached content for each resource
+	 * @return For each resource: <code>null</code> if it has been updated,
+	 *         otherwise the {@link IOException} or
+	 *         {@link DoNotUpdateException} which explains why not
+	 */
+	public Exception[] doLoadBatch(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps) {
+		return loadEach(resources, parameters, timestamps, false);
+	}
+
+	/**
+	 * Loads the resources one by one using <code>load(...)</code>, so each of
+	 * them is retried on its own.
+	 * 
+	 * @param admitted
+	 *            <code>true</code> if the caller has passed the
+	 *            {@link CircuitBreaker} for this batch already, e.g. with the
+	 *            probe of a half-open circuit. The first request is then sent
+	 *            without checking the breaker again.
+	 * @return See <code>doLoadBatch(...)</code>
+	 */
+	protected Exception[] loadEach(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps,
+			boolean admitted) {
+		Exception[] results = new Exception[resources.size()];
+
+		int i = 0;
+		for (RawResource r : resources) {
+			List<NameValuePair> params = new LinkedList<NameValuePair>(
+					parameters);
+			params.add(new BasicNameValuePair(
+					UpdateWorker.HTTP_PARAM_TIMESTAMP, Long
+							.toString(timestamps[i])));
+			try {
+				load(r, params, admitted);
+			} catch (IOException e) {
+				results[i] = e;
+			} catch (DoNotUpdateException e) {
+				results[i] = e;
+			}
+			admitted = false;
+			i++;
+		}
+
+		return results;
+	}
+
+	/**
+	 * <p>
+	 * Loads the resource using <code>doLoad(...)</code> and takes care of
+	 * failures: requests failing with transient errors (e.g. timeouts or server
+	 * errors) are retried up to {@link #MAX_ATTEMPTS} times with a jittered
+	 * exponential backoff. Transfers which exceeded their deadline are not
+	 * retried (see {@link DeadlineExceededException}). Every outcome is
+	 * reported to the {@link CircuitBreaker}, so that an unreachable authority
+	 * is not contacted at all for a while.
+	 * 
+	 * <p>
+	 * This method will block until it is finished!
+	 * 
+	 * @throws CircuitOpenException
+	 *             If the circuit of the authority is open
+	 * @throws IOException
+	 *             The failure of the last attempt
+	 * @throws DoNotUpdateException
+	 *             See <code>doLoad(...)</code>. Also thrown if the resource is
+	 *             deferred by the {@link TrafficBudget}.
+	 */
+	public void load(RawResource r, List<NameValuePair> parameters)
+			throws IOException, DoNotUpdateException {
+		load(r, parameters, false);
+	}
+
+	/**
+	 * See <code>load(...)</code>.
+	 * 
+	 * @param admitted
+	 *            <code>true</code> if the first attempt has passed the
+	 *            {@link CircuitBreaker} already
+	 */
+	private void load(RawResource r, List<NameValuePair> parameters,
+			boolean admitted) throws IOException, DoNotUpdateException {
+		if (shouldDefer(r))
+			throw new DoNotUpdateException(
+					DoNotUpdateException.EXC_MESSAGE_BUDGET_SPENT);
+
+		final CircuitBreaker breaker = getCircuitBreaker();
+		final String authority = getAuthorityAsString();
+
+		int attempt = 0;
+		while (true) {
+			if (breaker != null && !admitted)
+				breaker.checkRequest(authority);
+			admitted = false;
+
+			try {
+				doLoad(r, parameters);
+				if (breaker != null)
+					breaker.onSuccess(authority);
+				return;
+			} catch (DoNotUpdateException e) {
+				// the authority answered
+				if (breaker != null)
+					breaker.onSuccess(authority);
+				throw e;
+			} catch (IOException e) {
+				if (!isTransient(e)) {
+					if (breaker != null)
+						breaker.onSuccess(authority);
+					throw e;
+				}
+				if (breaker != null)
+					breaker.onFailure(authority);
+				// a stalled transfer is requeued by the worker instead, as it
+				// would most likely stall again right away
+				if (++attempt >= MAX_ATTEMPTS
+						|| e instanceof DeadlineExceededException)
+					throw e;
+
+				Log.d(TAG, "Attempt " + attempt + " for " + r.getPathUri()
+						+ " failed: " + e.getMessage());
+				backoff(attempt);
+			} catch (RuntimeException e) {
+				// unexpected, but a probe must report its outcome anyway
+				if (breaker != null)
+					breaker.onFailure(authority);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Loads several resources at once like <code>load(...)</code> does for a
+	 * single resource. If the proxy supports batches, the whole batch is
+	 * retried when it failed as a whole with transient errors. Otherwise each
+	 * resource is loaded (and retried) on its own.
+	 * 
+	 * <p>
+	 * This method will block until it is finished!
+	 * 
+	 * @return See <code>doLoadBatch(...)</code>. Contains
+	 *         {@link CircuitOpenException}s for the resources which have not
+	 *         been requested because the circuit of the authority is open.
+	 */
+	public Exception[] loadBatch(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps) {
+		if (supportsBatch()) {
+			Exception[] results = deferBatch(resources, parameters,
+					timestamps);
+			if (results != null)
+				return results;
+		}
+
+		final CircuitBreaker breaker = getCircuitBreaker();
+		if (!supportsBatch() || breaker == null)
+			return doLoadBatch(resources, parameters, timestamps);
+
+		final String authority = getAuthorityAsString();
+		int attempt = 0;
+		while (true) {
+			try {
+				breaker.checkRequest(authority);
+			} catch (CircuitOpenException e) {
+				Exception[] results = new Exception[resources.size()];
+				for (int i = 0; i < results.length; i++)
+					results[i] = e;
+				return results;
+			}
+
+			Exception[] results;
+			try {
+				results = doLoadBatch(resources, parameters, timestamps);
+			} catch (RuntimeException e) {
+				// unexpected, but a probe must report its outcome anyway
+				breaker.onFailure(authority);
+				throw e;
+			}
+
+			// the authority has no batch support: the resources have been
+			// loaded (and retried) one by one, which reported to the breaker
+			if (!supportsBatch())
+				return results;
+
+			if (!isTransientBatchFailure(results)) {
+				breaker.onSuccess(authority);
+				return results;
+			}
+
+			breaker.onFailure(authority);
+			if (++attempt >= MAX_ATTEMPTS
+					|| results[0] instanceof DeadlineExceededException)
+				return results;
+
+			Log.d(TAG, "Attempt " + attempt + " for batch of "
+					+ resources.size() + " failed: " + results[0].getMessage());
+			try {
+				backoff(attempt);
+			} catch (InterruptedIOException e) {
+				return results;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the resource is not essential and the
+	 * {@link TrafficBudget} of the current connection is spent.
+	 */
+	protected boolean shouldDefer(RawResource r) {
+		return mContext != null
+				&& TrafficBudget.getInstance(mContext).shouldDefer(mConnection,
+						r);
+	}
+
+	/**
+	 * Takes the resources deferred by the {@link TrafficBudget} out of the
+	 * batch and loads only the remaining ones.
+	 * 
+	 * @return <code>null</code> if no resource is deferred
+	 */
+	private Exception[] deferBatch(List<RawResource> resources,
+			List<NameValuePair> parameters, long[] timestamps) {
+		Exception[] results = new Exception[resources.size()];
+		List<RawResource> remaining = new LinkedList<RawResource>();
+		long[] remainingTimestamps = new long[resources.size()];
+		int[] positions = new int[resources.size()];
+
+		int i = 0;
+		for (RawResource r : resources) {
+			if (shouldDefer(r)) {
+				results[i] = new DoNotUpdateException(
+						DoNotUpdateException.EXC_MESSAGE_BUDGET_SPENT);
+			} else {
+				positions[remaining.size()] = i;
+				remainingTimestamps[remaining.size()] = timestamps[i];
+				remaining.add(r);
+			}
+			i++;
+		}
+		if (remaining.size() == resources.size())
+			return null;
+
+		Log.d(TAG, "Traffic budget spent, deferring "
+				+ (resources.size() - remaining.size()) + " resources.");
+		if (!remaining.isEmpty()) {
+			Exception[] loaded = loadBatch(remaining, parameters,
+					Arrays.copyOf(remainingTimestamps, remaining.size()));
+			for (i = 0; i < loaded.length; i++)
+				results[positions[i]] = loaded[i];
+		}
+		return results;
+	}
+
+	/**
+	 * Returns true if all resources of the batch failed with transient errors,
+	 * i.e. the batch request as a whole failed.
+	 */
+	private boolean isTransientBatchFailure(Exception[] results) {
+		if (results.length == 0)
+			return false;
+
+		for (Exception e : results) {
+			if (!(e instanceof IOException) || !isTransient((IOException) e))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Returns true if the request might succeed when it is repeated. Network
+	 * errors are regarded as transient, as well as the server errors of
+	 * {@link ResponseCodeException#isTransient()}.
+	 * 
+	 * <p>
+	 * Only transient failures count towards opening the circuit of an
+	 * authority. A permanent failure proves that the authority is reachable.
+	 */
+	protected boolean isTransient(IOException e) {
+		if (e instanceof ResponseCodeException)
+			return ((ResponseCodeException) e).isTransient();
+
+		return !(e instanceof CircuitOpenException
+				|| e instanceof MalformedURLException
+				|| e instanceof FileNotFoundException);
+	}
+
+	/**
+	 * Waits before the next attempt. The backoff is doubled with each attempt
+	 * and half of it is random, so that workers failing at the same time do
+	 * not retry at the same time.
+	 * 
+	 * @param attempt
+	 *            Number of attempts failed so far (1 for the first retry)
+	 * @throws InterruptedIOException
+	 *             If the thread has been interrupted while waiting
+	 */
+	private static void backoff(int attempt) throws InterruptedIOException {
+		final long max = Math.min(BACKOFF_MAX, BACKOFF_BASE << (attempt - 1));
+		final long delay;
+		synchronized (sRandom) {
+			delay = max / 2 + (long) (sRandom.nextDouble() * (max / 2));
+		}
+
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the next attempt");
+		}
+	}
+
+	/**
+	 * Returns the circuit breaker used for the authority.
+	 * 
+	 * @return <code>null</code> if there is no context
+	 */
+	protected CircuitBreaker getCircuitBreaker() {
+		if (mContext == null)
+			return null;
+		return CircuitBreaker.getInstance(mContext);
+	}
+
+	/**
+	 * Returns the time to wait for a connection to the authority in ms: a
+	 * multiple of the estimated 95th percentile of its latency over the
+	 * current connection type. As long as there is no estimate, the latency is
+	 * derived from the delay factor of the connection type.
+	 */
+	protected int getConnectTimeout() {
+		float latency;
+		if (mContext != null) {
+			BandwidthEstimator estimator = BandwidthEstimator
+					.getInstance(mContext);
+			latency = estimator.getLatencyP95(mConnection,
+					getAuthorityAsString());
+			if (latency < 0)
+				latency = estimator.getDelayFactor(mConnection)
+						* NOMINAL_LATENCY;
+		} else {
+			latency = ConnectionGuru.getDelayFactor(mConnection)
+					* NOMINAL_LATENCY;
+		}
+
+		final long timeout = (long) (TIMEOUT_LATENCY_FACTOR * latency);
+		return (int) Math.max(MIN_CONNECT_TIMEOUT,
+				Math.min(MAX_CONNECT_TIMEOUT, timeout));
+	}
+
+	/**
+	 * Returns the time to wait for the next bytes of a response in ms. The
+	 * first bytes also include the time the authority needs to build the
+	 * response, so this is twice the connect timeout.
+	 */
+	protected int getReadTimeout() {
+		return 2 * getConnectTimeout();
+	}
+
+	/**
+	 * <p>
+	 * Returns the time the transfer of a response may take in ms. The read
+	 * timeout only detects transfers which stopped completely, whereas a
+	 * transfer trickling along would block a worker and a connection for
+	 * ages. Such transfers are aborted once they exceed their deadline.
+	 * 
+	 * <p>
+	 * The deadline allows for the read timeout plus the expected bytes at a
+	 * quarter of the estimated throughput of the authority. As long as there
+	 * is no estimate, the throughput is derived from the speed factor of the
+	 * connection type.
+	 * 
+	 * @param expectedBytes
+	 *            Size of the response (as on the wire) or -1 if unknown
+	 * @return -1 if there is no deadline because the size is unknown
+	 */
+	protected long getTransferDeadline(long expectedBytes) {
+		if (expectedBytes < 0)
+			return -1L;
+
+		float throughput = -1f;
+		if (mContext != null)
+			throughput = BandwidthEstimator.getInstance(mContext)
+					.getThroughput(mConnection, getAuthorityAsString());
+		if (throughput < 0)
+			throughput = ConnectionGuru.getSpeedFactor(mConnection)
+					* NOMINAL_THROUGHPUT;
+		throughput = Math.max(MIN_DEADLINE_THROUGHPUT, STALL_THROUGHPUT_SHARE
+				* throughput);
+
+		// 1000, as there are 1000ms per second
+		return getReadTimeout() + (long) (1000f * expectedBytes / throughput);
+	}
+
+	/**
+	 * <p>
+	 * Prepares the access to the authority in the background and returns
+	 * immediately. The update service calls this as soon as it knows the
+	 * authority, so that resolving the host and opening connections overlap
+	 * with its local work (e.g. the decision algorithm) instead of delaying
+	 * the first downloads.
+	 * 
+	 * <p>
+	 * Nothing is done for authorities whose circuit is open.
+	 * 
+	 * @param connections
+	 *            Number of connections the first requests will need
+	 */
+	public void prewarm(final int connections) {
+		final CircuitBreaker breaker = getCircuitBreaker();
+		final String authority = getAuthorityAsString();
+		if (breaker != null
+				&& breaker.getState(authority) == CircuitBreaker.STATE_OPEN)
+			return;
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long start = TimeProvider.currentTimeMillis();
+				try {
+					doPrewarm(connections);
+					Log.d(TAG, "Prewarmed " + authority + " in "
+							+ (TimeProvider.currentTimeMillis() - start)
+							+ "ms.");
+				} catch (IOException e) {
+					Log.d(TAG, "Prewarming " + authority + " failed: "
+							+ e.getMessage());
+				}
+			}
+		}, TAG + "_prewarm");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Does the actual work of <code>prewarm(...)</code> and blocks meanwhile.
+	 * Nothing has to be done for local authorities.
+	 * 
+	 * @throws IOException
+	 */
+	protected void doPrewarm(int connections) throws IOException {
+	}
+
+	/**
+	 * Loads the {@link Manifest} of the authority, which lists the current
+	 * versions of all its resources. Blocks meanwhile.
+	 * 
+	 * @param path
+	 *            Path of the manifest relative to the authority
+	 * @return <code>null</code> if the proxy does not support manifests
+	 * @throws IOException
+	 */
+	public Manifest loadManifest(String path) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Returns true if <code>doLoadBatch(...)</code> is cheaper than loading
+	 * the resources one by one.
+	 */
+	public boolean supportsBatch() {
+		return false;
+	}
+
 	/**
 	 * <p>
 	 * Replaces the resources content using the provided data from the
@@ -112,45 +674,142 @@ public abstract class ResourceProxy {
 	 */
 	protected void replaceResourceContent(RawResource r, InputStream in,
 			int contentLen) throws IOException {
+		replaceResourceContent(r, in, contentLen, null, null);
+	}
+
+	/**
+	 * <p>
+	 * Replaces the resources content using the provided data from the
+	 * InputStream. If a partial download is given and the resource is a
+	 * {@link RawBigResource}, the data is appended to the bytes received so far
+	 * and the resource is only replaced once the content is complete. If the
+	 * transfer breaks off, the received bytes remain in the partial download.
+	 * 
+	 * <p>
+	 * Encoded content (gzip or deflate) is decoded while reading. The progress
+	 * is then reported in bytes read from the InputStream as well as in decoded
+	 * bytes, so that the transmission rate reflects the actual throughput of
+	 * the link.
+	 * 
+	 * <p>
+	 * This method is blocking!
+	 * 
+	 * @param contentLen
+	 *            Number of bytes provided by the InputStream or -1 if unknown
+	 * @param contentEncoding
+	 *            The encoding of the InputStream's content. Might be
+	 *            <code>null</code> if not encoded.
+	 * @param partial
+	 *            Might be <code>null</code>. Ignored for encoded content.
+	 */
+	protected void replaceResourceContent(RawResource r, InputStream in,
+			int contentLen, String contentEncoding, PartialDownload partial)
+			throws IOException {
+		CountingInputStream wire = new CountingInputStream(in);
+		InputStream decoded = decodeContent(wire, contentEncoding);
+		final boolean encoded = decoded != wire;
 
 		// alternative handling for BigRawResources
 		if (r instanceof RawBigResource) {
-			this.internalReplaceRawBigResourceContent((RawBigResource) r, in,
-					contentLen);
+			if (encoded)
+				this.internalReplaceRawBigResourceContent((RawBigResource) r,
+						decoded, -1);
+			else if (partial != null)
+				this.internalAppendPartialContent((RawBigResource) r, in,
+						contentLen, partial);
+			else
+				this.internalReplaceRawBigResourceContent((RawBigResource) r,
+						in, contentLen);
 			return;
 		}
 
-		ByteArrayOutputStream bos = null;
-		if (contentLen >= 0) {
-			// Content length known
-			bos = new ByteArrayOutputStream(contentLen);
-		} else {
-			// Content length unknown
-			bos = new ByteArrayOutputStream();
+		if (contentLen >= 0 && !encoded) {
+			// Content length known: read directly into the resulting array
+			byte[] data = new byte[contentLen];
+			int pos = 0;
+			while (pos < contentLen) {
+				final int len = in.read(data, pos, contentLen - pos);
+				if (len == -1)
+					throw new EOFException("Content ended after " + pos
+							+ " of " + contentLen + " bytes");
+				pos += len;
+
+				informProgressListener(pos, contentLen, false);
+			}
+			r.adoptData(data);
+
+			informProgressListener(contentLen, contentLen, true);
+			return;
 		}
 
-		byte[] buf = new byte[BUFFER_SIZE];
+		// Content length unknown (or only the encoded one)
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
-		while (true) {
-			int len = in.read(buf);
+		byte[] buf = BufferPool.acquire(mConnection, contentLen);
+		try {
+			while (true) {
+				int len = decoded.read(buf);
 
-			// finished reading
-			if (len == -1)
-				break;
+				// finished reading
+				if (len == -1)
+					break;
 
-			// transport to buffer
-			bos.write(buf, 0, len);
+				// transport to buffer
+				bos.write(buf, 0, len);
 
-			// inform other about progress
-			informProgressListener(bos.size(), contentLen, false);
+				// inform other about progress
+				informProgressListener((int) wire.getCount(), contentLen,
+						bos.size(), false);
+			}
+		} finally {
+			BufferPool.release(buf);
 		}
 		bos.flush();
-		r.setData(bos.toByteArray());
+		r.adoptData(bos.toByteArray());
 
-		informProgressListener(bos.size(), contentLen, true);
+		informProgressListener((int) wire.getCount(), contentLen, bos.size(),
+				true);
 
 	}
 
+	/**
+	 * Wraps the InputStream into a stream decoding the given content encoding.
+	 * 
+	 * @param contentEncoding
+	 *            Might be <code>null</code>
+	 * @return The given stream itself if the content is not encoded
+	 * @throws IOException
+	 *             If the encoding is not supported
+	 */
+	protected static InputStream decodeContent(InputStream in,
+			String contentEncoding) throws IOException {
+		if (contentEncoding == null || contentEncoding.length() == 0
+				|| contentEncoding.equalsIgnoreCase("identity"))
+			return in;
+
+		if (contentEncoding.equalsIgnoreCase("gzip")
+				|| contentEncoding.equalsIgnoreCase("x-gzip"))
+			return new GZIPInputStream(in, BUFFER_SIZE);
+
+		if (contentEncoding.equalsIgnoreCase("deflate")) {
+			// "deflate" should be zlib wrapped, but some servers send raw
+			// deflate data. A zlib header is recognized by its checksum.
+			PushbackInputStream pin = new PushbackInputStream(in, 2);
+			byte[] header = new byte[2];
+			int len = pin.read(header);
+			if (len > 0)
+				pin.unread(header, 0, len);
+
+			final boolean zlib = len == 2 && (header[0] & 0x0F) == 8
+					&& (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+			return new InflaterInputStream(pin, new Inflater(!zlib),
+					BUFFER_SIZE);
+		}
+
+		throw new IOException("Unsupported content encoding: "
+				+ contentEncoding);
+	}
+
 	/**
 	 * Alternativ handling for BigRawResources avoid unneccessary memory
 	 * operations.
@@ -164,27 +823,342 @@ public abstract class ResourceProxy {
 	private void internalReplaceRawBigResourceContent(RawBigResource r,
 			InputStream in, int contentLen) throws IOException {
 		OutputStream os = r.getOutputStream();
+		int size = transfer(in, os, 0, contentLen);
+		os.flush();
 
-		byte[] buf = new byte[BUFFER_SIZE];
-		int size = 0;
+		informProgressListener(size, contentLen, true);
+	}
 
-		while (true) {
-			int len = in.read(buf);
-			size += len;
+	/**
+	 * Appends the InputStream to the partial download. Once the content is
+	 * complete, it is moved into the resource and the partial download is
+	 * removed. If the stream ends early, the partial download is kept for
+	 * resuming later on.
+	 * 
+	 * @param contentLen
+	 *            Number of bytes provided by the InputStream or -1 if unknown
+	 * @throws IOException
+	 */
+	private void internalAppendPartialContent(RawBigResource r,
+			InputStream in, int contentLen, PartialDownload partial)
+			throws IOException {
+		final int offset = (int) partial.getLength();
+		final int total = contentLen >= 0 ? offset + contentLen : -1;
 
-			// finished reading (E)
-			if (len == -1)
-				break;
+		// received bytes are kept even if the transfer breaks off
+		OutputStream pos = partial.openForAppend();
+		int size;
+		try {
+			size = transfer(in, pos, offset, total);
+		} finally {
+			pos.close();
+		}
 
-			// transport to buffer
-			os.write(buf, 0, len);
+		// the connection dropped mid-body: keep the bytes for resuming
+		final long expected = total >= 0 ? total : partial.getTotal();
+		if (expected >= 0 && size != expected)
+			throw new EOFException("Content ended after " + size + " of "
+					+ expected + " bytes");
 
-			// inform other about progress
-			informProgressListener(size, contentLen, false);
+		// complete: move into resource
+		InputStream pin = partial.openForReading();
+		try {
+			copy(pin, r.getOutputStream());
+		} finally {
+			pin.close();
 		}
-		os.flush();
+		partial.delete();
 
-		informProgressListener(size, contentLen, true);
+		informProgressListener(size, total, true);
+	}
+
+	/**
+	 * Copies the InputStream into the OutputStream and informs the progress
+	 * listener meanwhile.
+	 * 
+	 * @param offset
+	 *            Number of bytes which had been loaded before
+	 * @param total
+	 *            Number of bytes in total or -1 if unknown
+	 * @return Number of bytes loaded including the offset
+	 * @throws IOException
+	 */
+	protected int transfer(InputStream in, OutputStream os, int offset,
+			int total) throws IOException {
+		byte[] buf = BufferPool.acquire(mConnection, total < 0 ? -1 : total
+				- offset);
+		int size = offset;
+
+		try {
+			while (true) {
+				int len = in.read(buf);
+
+				// finished reading (E)
+				if (len == -1)
+					break;
+				size += len;
+
+				// transport to buffer
+				os.write(buf, 0, len);
+
+				// inform other about progress
+				informProgressListener(size, total, false);
+			}
+		} finally {
+			BufferPool.release(buf);
+		}
+
+		return size;
+	}
+
+	/**
+	 * Copies a local InputStream (e.g. a temporary file) into the
+	 * OutputStream and flushes it.
+	 * 
+	 * @throws IOException
+	 */
+	private static void copy(InputStream in, OutputStream os)
+			throws IOException {
+		byte[] buf = BufferPool.acquire(BufferPool.MAX_SIZE);
+		try {
+			while (true) {
+				int len = in.read(buf);
+				if (len == -1)
+					break;
+				os.write(buf, 0, len);
+			}
+			os.flush();
+		} finally {
+			BufferPool.release(buf);
+		}
+	}
+
+	/**
+	 * Returns true if the content should be loaded using the segmented
+	 * download. Proxies are not able to do so unless they override this
+	 * method and <code>openRange(...)</code>.
+	 * 
+	 * @param acceptRanges
+	 *            The value of the <code>Accept-Ranges</code> header. Might be
+	 *            <code>null</code>.
+	 */
+	protected boolean shouldSegment(RawResource r, String acceptRanges,
+			int contentLen) {
+		return false;
+	}
+
+	/**
+	 * Returns true if the segmented download has been enabled and the content
+	 * is worth it. This is only the case for big resources on WIFI when the
+	 * authority supports byte ranges.
+	 * 
+	 * @param acceptRanges
+	 *            The value of the <code>Accept-Ranges</code> header. Might be
+	 *            <code>null</code>.
+	 */
+	protected final boolean isWorthSegmenting(RawResource r,
+			String acceptRanges, int contentLen) {
+		return sSegmentedDownload && r instanceof RawBigResource
+				&& mContext != null
+				&& mConnection == ConnectionGuru.CONNECTION_WIFI
+				&& contentLen > SEGMENTED_THRESHOLD
+				&& "bytes".equalsIgnoreCase(acceptRanges);
+	}
+
+	/**
+	 * Opens a stream providing the given byte range of the resource. Needed by
+	 * the segmented download, so it is only called if
+	 * <code>shouldSegment(...)</code> returned true. Closing the stream
+	 * releases all underlying connections.
+	 * 
+	 * @param first
+	 *            Position of the first byte
+	 * @param last
+	 *            Position of the last byte (inclusive)
+	 * @param validator
+	 *            Ensures that the range belongs to the same version of the
+	 *            content. Might be <code>null</code>.
+	 * @throws IOException
+	 *             If the range could not be served
+	 */
+	protected InputStream openRange(RawResource r, List<NameValuePair> params,
+			long first, long last, String validator) throws IOException {
+		throw new UnsupportedOperationException(
+				"This proxy does not support byte ranges.");
+	}
+
+	/**
+	 * <p>
+	 * Replaces the content of a big resource by loading it in
+	 * {@link #SEGMENT_COUNT} parallel byte ranges. The first range is read from
+	 * the given InputStream, the others are requested using
+	 * <code>openRange(...)</code>. All ranges are written directly into their
+	 * offsets of a temporary file, which is moved into the resource once all
+	 * of them are complete.
+	 * 
+	 * <p>
+	 * This method is blocking! Only the first range is read from the given
+	 * InputStream, so the underlying connection can not be reused afterwards.
+	 * 
+	 * @param contentLen
+	 *            Size of the whole content
+	 * @throws IOException
+	 */
+	protected void replaceResourceContentSegmented(RawBigResource r,
+			InputStream in, int contentLen, List<NameValuePair> params,
+			String validator) throws IOException {
+		File tmp = File.createTempFile("segmented", null,
+				mContext.getCacheDir());
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+
+		try {
+			raf.setLength(contentLen);
+			FileChannel ch = raf.getChannel();
+			final long segLen = (contentLen + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+			mSegmentedBytes = 0;
+
+			// start the other segments
+			List<Segment> segments = new LinkedList<Segment>();
+			List<Thread> threads = new LinkedList<Thread>();
+			for (int i = 1; i < SEGMENT_COUNT; i++) {
+				final long start = i * segLen;
+				if (start >= contentLen)
+					break;
+				Segment seg = new Segment(r, params, validator, ch, start,
+						Math.min(segLen, contentLen - start), contentLen);
+				Thread t = new Thread(seg, "Segment_" + i);
+				segments.add(seg);
+				threads.add(t);
+				t.start();
+			}
+
+			// the first segment is served by the already opened stream
+			IOException error = null;
+			try {
+				writeSegment(ch, in, 0, Math.min(segLen, contentLen),
+						contentLen);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			for (Thread t : threads) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					error = new InterruptedIOException(
+							"Interrupted while waiting for segments");
+				}
+			}
+			for (Segment seg : segments) {
+				if (error == null && seg.mError != null)
+					error = seg.mError;
+			}
+			if (error != null)
+				throw error;
+
+			// complete: move into resource
+			InputStream tin = new FileInputStream(tmp);
+			try {
+				copy(tin, r.getOutputStream());
+			} finally {
+				tin.close();
+			}
+		} finally {
+			raf.close();
+			tmp.delete();
+		}
+
+		informProgressListener(contentLen, contentLen, true);
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes from the InputStream and writes
+	 * them at the given position of the channel. Positional writes do not
+	 * interfere with each other, so this can be called by all segments
+	 * concurrently.
+	 * 
+	 * @throws IOException
+	 */
+	private void writeSegment(FileChannel ch, InputStream in, long position,
+			long length, int total) throws IOException {
+		byte[] buf = BufferPool.acquire(mConnection, length);
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		long remaining = length;
+
+		try {
+			while (remaining > 0) {
+				int len = in.read(buf, 0,
+						(int) Math.min(buf.length, remaining));
+				if (len == -1)
+					throw new IOException("Unexpected end of segment at byte "
+							+ position);
+
+				bb.clear();
+				bb.limit(len);
+				while (bb.hasRemaining())
+					position += ch.write(bb, position);
+				remaining -= len;
+
+				informSegmentProgress(len, total);
+			}
+		} finally {
+			BufferPool.release(buf);
+		}
+	}
+
+	/**
+	 * Aggregates the progress of all segments into one progress stream.
+	 */
+	private synchronized void informSegmentProgress(int len, int total) {
+		mSegmentedBytes += len;
+		informProgressListener(mSegmentedBytes, total, false);
+	}
+
+	/**
+	 * Loads a single range of the segmented download.
+	 */
+	private class Segment implements Runnable {
+
+		private final RawResource mResource;
+		private final List<NameValuePair> mParams;
+		private final String mValidator;
+		private final FileChannel mChannel;
+		private final long mStart;
+		private final long mLength;
+		private final int mTotal;
+
+		/** Set if this segment failed */
+		private IOException mError = null;
+
+		Segment(RawResource r, List<NameValuePair> params, String validator,
+				FileChannel ch, long start, long length, int total) {
+			this.mResource = r;
+			this.mParams = params;
+			this.mValidator = validator;
+			this.mChannel = ch;
+			this.mStart = start;
+			this.mLength = length;
+			this.mTotal = total;
+		}
+
+		@Override
+		public void run() {
+			InputStream in = null;
+			try {
+				in = openRange(mResource, mParams, mStart, mStart + mLength
+						- 1, mValidator);
+				writeSegment(mChannel, in, mStart, mLength, mTotal);
+			} catch (IOException e) {
+				mError = e;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+		}
 	}
 
 	/**
@@ -195,7 +1169,19 @@ public abstract class ResourceProxy {
 	 *            Might be <code>null</code>.
 	 */
 	protected Uri buildUri(RawResource r, List<NameValuePair> params) {
-		Uri.Builder b = mAuthority.buildUpon();
+		return buildUri(mAuthority, r, params);
+	}
+
+	/**
+	 * Builds the Uri for the respective resource on the given authority, e.g.
+	 * a mirror of mAuthority.
+	 * 
+	 * @param params
+	 *            Might be <code>null</code>.
+	 */
+	protected static Uri buildUri(Uri authority, RawResource r,
+			List<NameValuePair> params) {
+		Uri.Builder b = authority.buildUpon();
 		b.path(r.getPathUri().toString());
 
 		if (params != null) {
@@ -241,15 +1227,70 @@ public abstract class ResourceProxy {
 	 */
 	public static ResourceProxy getResourceProxy(Context context,
 			int proxyMethod, byte[] proxyExtra) {
+		ResourceProxy proxy;
 		switch (proxyMethod) {
 		case METHOD_HTTP:
-			return new HttpResourceProxy(proxyExtra, context);
+			proxy = new HttpResourceProxy(proxyExtra, context);
+			break;
 		case METHOD_HTTPS:
-			return new HttpsResourceProxy(proxyExtra, context);
+			proxy = new HttpsResourceProxy(proxyExtra, context);
+			break;
+		case METHOD_HTTP_NIO:
+			proxy = new NioResourceProxy(proxyExtra, context);
+			break;
+		case METHOD_CONTENT_RESOLVER:
+			proxy = new ContentResolverResourceProxy(proxyExtra, context);
+			break;
 		default:
 			throw new IllegalArgumentException(
 					"Unknown or unimplemented proxy method: " + proxyMethod);
 		}
+
+		proxy.mContext = context;
+		return proxy;
+	}
+
+	/**
+	 * Stores the authority in a byte array as used for the proxy extra.
+	 */
+	protected static byte[] marshallAuthority(Uri authority) {
+		char[] chars = authority.toString().toCharArray();
+		ByteBuffer bb = ByteBuffer.allocate(4 + 2 * chars.length);
+
+		bb.putInt(chars.length);
+		for (char c : chars)
+			bb.putChar(c);
+
+		return bb.array();
+	}
+
+	/**
+	 * Restores an authority stored by <code>marshallAuthority(...)</code>.
+	 */
+	protected static Uri unmarshallAuthority(byte[] data) {
+		ByteBuffer bb = ByteBuffer.wrap(data);
+
+		int len = bb.getInt();
+
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++)
+			sb.append(bb.getChar());
+
+		return Uri.parse(sb.toString());
+	}
+
+	/**
+	 * Returns the time of the last update the UpdateWorker passes as
+	 * parameter.
+	 * 
+	 * @return 0 if there has been no update before
+	 */
+	protected long getTimestampFromParams(List<NameValuePair> params) {
+		for (NameValuePair p : params) {
+			if (p.getName().equals(UpdateWorker.HTTP_PARAM_TIMESTAMP))
+				return Long.parseLong(p.getValue());
+		}
+		return 0;
 	}
 
 	/**
@@ -259,6 +1300,70 @@ public abstract class ResourceProxy {
 		return this.mAuthority.toString();
 	}
 
+	/**
+	 * Feeds the measurements of a finished transfer into the
+	 * {@link BandwidthEstimator} and accounts it in the {@link TrafficBudget}.
+	 * 
+	 * @param bytes
+	 *            Number of bytes transferred (as on the wire)
+	 * @param latency
+	 *            Time from sending the request until the response arrived in
+	 *            ms
+	 * @param duration
+	 *            Time needed for reading the content in ms
+	 */
+	protected void recordTransfer(long bytes, long latency, long duration) {
+		mLatency = Math.max(mLatency, latency);
+		if (mContext == null)
+			return;
+
+		TrafficBudget.getInstance(mContext).addTraffic(mConnection, bytes);
+
+		BandwidthEstimator.getInstance(mContext).addSample(mConnection,
+				getAuthorityAsString(), bytes, latency, duration);
+	}
+
+	/**
+	 * Returns the time from sending a request until the response arrived, as
+	 * recorded for the transfers since the last call. If there were several,
+	 * the highest one is returned.
+	 * 
+	 * @return -1 if no response has arrived since the last call
+	 */
+	public long takeLatency() {
+		final long latency = mLatency;
+		mLatency = -1L;
+		return latency;
+	}
+
+	/**
+	 * Sets the connection type the proxy is currently used with. This is
+	 * considered when choosing how to load the content.
+	 * 
+	 * @param connection
+	 *            See {@link ConnectionGuru}
+	 */
+	public void setCurrentConnection(int connection) {
+		this.mConnection = connection;
+	}
+
+	/**
+	 * Sets whether the traffic of the current connection costs (see
+	 * <code>ConnectionGuru.isMetered()</code>). Optional traffic is avoided on
+	 * metered connections.
+	 */
+	public void setMetered(boolean metered) {
+		this.mMetered = metered;
+	}
+
+	/**
+	 * Enables or disables the segmented download of big resources for all
+	 * proxies supporting it. Disabled by default.
+	 */
+	public static void setSegmentedDownloadEnabled(boolean enabled) {
+		sSegmentedDownload = enabled;
+	}
+
 	/**
 	 * Set (or replaces) the progress listener.
 	 */
@@ -278,6 +1383,24 @@ public abstract class ResourceProxy {
 	 *            interval
 	 */
 	protected void informProgressListener(int byteCnt, int total, boolean force) {
+		informProgressListener(byteCnt, total, byteCnt, force);
+	}
+
+	/**
+	 * Informs the current listener if any.
+	 * 
+	 * @param byteCnt
+	 *            Number of bytes already loaded (as transferred)
+	 * @param total
+	 *            Number of bytes in total to read (as transferred)
+	 * @param decodedCnt
+	 *            Number of bytes after decoding the content encoding
+	 * @param force
+	 *            if the listener should be informed regardless of any waiting
+	 *            interval
+	 */
+	protected void informProgressListener(int byteCnt, int total,
+			int decodedCnt, boolean force) {
 		if (mProgressListener == null)
 			return;
 
@@ -288,7 +1411,8 @@ public abstract class ResourceProxy {
 		noUpdateBefore = NOW + PROGRESS_UPDATE_INTERVAL;
 
 		int bytesPerSecond = -1;
-		if (lastUpdate != 0L) {
+		// forced updates might follow each other within a millisecond
+		if (lastUpdate != 0L && NOW > lastUpdate) {
 			final long byteDiff = byteCnt - lastByteCount;
 			final long timeDiff = NOW - lastUpdate;
 
@@ -300,7 +1424,7 @@ public abstract class ResourceProxy {
 		lastByteCount = byteCnt;
 		lastUpdate = NOW;
 
-		mProgressListener
-				.onProgress(currentUri, byteCnt, total, bytesPerSecond);
+		mProgressListener.onProgress(currentUri, byteCnt, total,
+				bytesPerSecond, decodedCnt);
 	}
 }
@@ -0,0 +1,56 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a resource proxy if the authority answered with an unexpected
+ * HTTP status code. Keeps the code, so that server errors which might vanish
+ * on a retry can be distinguished from permanent ones.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ResponseCodeException extends IOException {
+
+	private static final long serialVersionUID = 4170551270968245893L;
+
+	private final int mResponseCode;
+
+	/**
+	 * @param responseMessage
+	 *            Might be <code>null</code>
+	 */
+	public ResponseCodeException(int responseCode, String responseMessage) {
+		super(DoNotUpdateException.EXC_MESSAGE_BAD_RESPONSE + responseCode
+				+ (responseMessage != null ? " " + responseMessage : ""));
+		this.mResponseCode = responseCode;
+	}
+
+	public int getResponseCode() {
+		return mResponseCode;
+	}
+
+	/**
+	 * Returns true if the same request might succeed later on: server errors
+	 * (5xx), request timeouts (408) and too many requests (429).
+	 */
+	public boolean isTransient() {
+		return mResponseCode >= 500 || mResponseCode == 408
+				|| mResponseCode == 429;
+	}
+}
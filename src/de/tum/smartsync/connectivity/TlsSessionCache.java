@@ -0,0 +1,277 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Keeps the TLS sessions of an HTTPS authority, so that new connections
+ * resume a former session with an abbreviated handshake instead of a full
+ * one. On links with a high latency the full handshake takes two round trips
+ * and might cost more than the content itself.
+ * 
+ * <p>
+ * There is one cache per authority within a process. Its socket factory is
+ * used for all connections of the {@link HttpConnectionPool} of the
+ * authority, i.e. by all workers and by all update sessions of the process.
+ * The same factory instance is returned every time, which also allows the
+ * platform to reuse kept-alive connections.
+ * 
+ * <p>
+ * By default the factory wraps the default factory of
+ * <code>HttpsURLConnection</code> at the time the cache is created, so a
+ * factory installed by the app (e.g. with its own trust managers or
+ * pinning) keeps being used and its sessions are shared by all authorities.
+ * Separate session caches per authority, which are based on the platform's
+ * default trust managers, have to be enabled explicitly (see
+ * <code>setOwnSessionContexts(...)</code>).
+ * 
+ * <p>
+ * The handshakes are counted and timed from creating the TLS socket until
+ * the handshake has completed, separately for full and resumed handshakes.
+ * 
+ * @author Daniel
+ * 
+ */
+public class TlsSessionCache {
+
+	private static final String TAG = "TlsSessionCache";
+
+	/** Maximum number of sessions kept per authority */
+	public static final int SESSION_CACHE_SIZE = 16;
+
+	/** Time a session may be resumed in seconds */
+	public static final int SESSION_TIMEOUT = 12 * 60 * 60;
+
+	private static final Map<String, TlsSessionCache> sCaches = new HashMap<String, TlsSessionCache>();
+
+	private static volatile boolean sOwnContexts = false;
+
+	private final String mAuthority;
+
+	private final SSLSocketFactory mFactory;
+
+	private int mFullHandshakes = 0;
+	private int mResumedHandshakes = 0;
+	private long mFullHandshakeTime = 0L;
+	private long mResumedHandshakeTime = 0L;
+
+	private TlsSessionCache(String authority) {
+		this.mAuthority = authority;
+
+		// the platform's factory caches sessions as well, only not per
+		// authority
+		SSLSocketFactory factory = HttpsURLConnection
+				.getDefaultSSLSocketFactory();
+		if (sOwnContexts) {
+			try {
+				SSLContext context = SSLContext.getInstance("TLS");
+				context.init(null, null, null);
+
+				SSLSessionContext sessions = context
+						.getClientSessionContext();
+				sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(SESSION_TIMEOUT);
+
+				factory = context.getSocketFactory();
+			} catch (GeneralSecurityException e) {
+				Log.w(TAG, "Unable to create a context for " + authority
+						+ ": " + e.getMessage());
+			}
+		}
+
+		mFactory = new MeasuringSocketFactory(factory);
+	}
+
+	/**
+	 * Enables or disables an <code>SSLContext</code> of its own for each
+	 * authority, with a session cache of {@link #SESSION_CACHE_SIZE} sessions.
+	 * These contexts use the default trust managers of the platform, so they
+	 * must not be enabled if the app installed a default socket factory of
+	 * its own. Disabled by default. Only caches created afterwards are
+	 * affected.
+	 */
+	public static void setOwnSessionContexts(boolean enabled) {
+		sOwnContexts = enabled;
+	}
+
+	/**
+	 * Returns the cache for the given authority, e.g. for reading its
+	 * metrics. The cache is created if there is none yet.
+	 */
+	public static TlsSessionCache getCache(Uri authority) {
+		return getCache(authority.getScheme() + "://"
+				+ authority.getEncodedAuthority());
+	}
+
+	/**
+	 * @param authority
+	 *            Scheme and authority part of the Uri, like the key of the
+	 *            {@link HttpConnectionPool}
+	 */
+	static synchronized TlsSessionCache getCache(String authority) {
+		TlsSessionCache cache = sCaches.get(authority);
+		if (cache == null) {
+			cache = new TlsSessionCache(authority);
+			sCaches.put(authority, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the socket factory to be used for all connections to the
+	 * authority.
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return mFactory;
+	}
+
+	public synchronized int getFullHandshakeCount() {
+		return mFullHandshakes;
+	}
+
+	public synchronized int getResumedHandshakeCount() {
+		return mResumedHandshakes;
+	}
+
+	/**
+	 * Returns the average duration of the handshakes in ms.
+	 * 
+	 * @param resumed
+	 *            <code>true</code> for the abbreviated handshakes, which
+	 *            resumed a former session
+	 * @return -1 if there has been no such handshake
+	 */
+	public synchronized long getAverageHandshakeTime(boolean resumed) {
+		if (resumed)
+			return mResumedHandshakes > 0 ? mResumedHandshakeTime
+					/ mResumedHandshakes : -1L;
+		return mFullHandshakes > 0 ? mFullHandshakeTime / mFullHandshakes
+				: -1L;
+	}
+
+	private synchronized void onHandshake(long duration, boolean resumed) {
+		if (resumed) {
+			mResumedHandshakes++;
+			mResumedHandshakeTime += duration;
+		} else {
+			mFullHandshakes++;
+			mFullHandshakeTime += duration;
+		}
+
+		Log.v(TAG, (resumed ? "Resumed" : "Full") + " handshake with "
+				+ mAuthority + " in " + duration + "ms (" + mFullHandshakes
+				+ " full, " + mResumedHandshakes + " resumed so far)");
+	}
+
+	/**
+	 * Registers a listener at each created socket, which reports its
+	 * handshake.
+	 */
+	private class MeasuringSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory mDelegate;
+
+		MeasuringSocketFactory(SSLSocketFactory delegate) {
+			this.mDelegate = delegate;
+		}
+
+		private Socket measure(Socket socket) {
+			if (!(socket instanceof SSLSocket))
+				return socket;
+
+			final long created = TimeProvider.currentTimeMillis();
+			final SSLSocket ssl = (SSLSocket) socket;
+			ssl.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					ssl.removeHandshakeCompletedListener(this);
+
+					// a resumed session has been created before this socket
+					final boolean resumed = event.getSession()
+							.getCreationTime() < created;
+					onHandshake(TimeProvider.currentTimeMillis() - created,
+							resumed);
+				}
+			});
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return mDelegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return mDelegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return measure(mDelegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port,
+				boolean autoClose) throws IOException {
+			return measure(mDelegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return measure(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port,
+				InetAddress localHost, int localPort) throws IOException {
+			return measure(mDelegate.createSocket(host, port, localHost,
+					localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port)
+				throws IOException {
+			return measure(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port,
+				InetAddress localAddress, int localPort) throws IOException {
+			return measure(mDelegate.createSocket(address, port,
+					localAddress, localPort));
+		}
+	}
+}
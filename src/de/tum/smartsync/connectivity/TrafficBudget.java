@@ -0,0 +1,311 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.connectivity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import de.tum.smartsync.Resource;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Accounts the bytes transferred by the resource proxies per connection type
+ * and day, and limits them by a daily budget per connection type. Once the
+ * budget of the current connection is spent, resources which are not
+ * essential are deferred until the next day or a connection with budget left
+ * (see {@link #shouldDefer(int, Resource)}). By default, only resources with
+ * a negative priority are essential, so resources of the default priority (0)
+ * are deferred.
+ * 
+ * <p>
+ * There are no budgets by default. Apps usually set one for mobile
+ * connections, which protects the data plans of their users, and none for
+ * WIFI. Budgets and traffic are persisted in the {@link ConnectivityDbHelper}
+ * database, so that the update services started by alarms respect them. The
+ * traffic is not written on every transfer, but at most every
+ * {@link #PERSIST_INTERVAL} and when <code>persist()</code> is called.
+ * 
+ * @author Daniel
+ * 
+ */
+public class TrafficBudget {
+
+	private static final String TAG = "TrafficBudget";
+
+	/** Budget of connection types which are not limited */
+	public static final long UNLIMITED = -1L;
+
+	/**
+	 * Resources with a priority up to this are loaded even if the budget is
+	 * spent, unless another threshold is set. Smaller values are more urgent,
+	 * as resources are processed in ascending order of their priority. The
+	 * default priority of resources is 0, so they are not essential.
+	 */
+	public static final int DEFAULT_MAX_ESSENTIAL_PRIORITY = -1;
+
+	/** Number of days the traffic is kept for statistics */
+	public static final int HISTORY_DAYS = 31;
+
+	/** Minimum time between two writes of the traffic */
+	public static final long PERSIST_INTERVAL = 30 * TimeProvider.SECOND;
+
+	private static TrafficBudget sInstance = null;
+
+	private final ConnectivityDbHelper mDbHelper;
+
+	/** Budget in bytes per day for each limited connection type */
+	private final Map<Integer, Long> mBudgets = new HashMap<Integer, Long>();
+
+	/** Bytes transferred today for each connection type */
+	private final Map<Integer, Long> mTraffic = new HashMap<Integer, Long>();
+
+	/** The day <code>mTraffic</code> refers to */
+	private int mDay;
+
+	private volatile int mMaxEssentialPriority = DEFAULT_MAX_ESSENTIAL_PRIORITY;
+
+	/** Traffic changed since it was written, by day and connection type */
+	private final Map<String, ContentValues> mChanged = new HashMap<String, ContentValues>();
+
+	private long mLastPersist = 0L;
+
+	/** Keeps the writes in the order of the changes */
+	private final Object mPersistLock = new Object();
+
+	private TrafficBudget(Context context) {
+		mDbHelper = ConnectivityDbHelper.getInstance(context);
+		load();
+	}
+
+	/**
+	 * Returns the traffic budget of this process. It is created and loaded
+	 * from the database on first use.
+	 */
+	public static synchronized TrafficBudget getInstance(Context context) {
+		if (sInstance == null)
+			sInstance = new TrafficBudget(context.getApplicationContext());
+		return sInstance;
+	}
+
+	private static final String[] COLUMNS_CONNECTION_BYTES = new String[] {
+			ConnectivityDbHelper.KEY_CONNECTION,
+			ConnectivityDbHelper.KEY_BYTES };
+
+	private static final String WHERE_DAY = ConnectivityDbHelper.KEY_DAY
+			+ " = ?";
+
+	private void load() {
+		mDay = today();
+		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+		db.delete(ConnectivityDbHelper.TABLE_TRAFFIC,
+				ConnectivityDbHelper.KEY_DAY + " <= ?",
+				new String[] { Integer.toString(mDay - HISTORY_DAYS) });
+
+		Cursor c = db.query(ConnectivityDbHelper.TABLE_BUDGET,
+				COLUMNS_CONNECTION_BYTES, null, null, null, null, null);
+		while (c.moveToNext())
+			mBudgets.put(c.getInt(0), c.getLong(1));
+		c.close();
+
+		c = db.query(ConnectivityDbHelper.TABLE_TRAFFIC,
+				COLUMNS_CONNECTION_BYTES, WHERE_DAY,
+				new String[] { Integer.toString(mDay) }, null, null, null);
+		while (c.moveToNext())
+			mTraffic.put(c.getInt(0), c.getLong(1));
+		c.close();
+
+		Log.d(TAG, "Loaded " + mBudgets.size() + " budgets.");
+	}
+
+	/**
+	 * Returns the number of the current day in the local time zone, so that
+	 * the budgets are renewed at midnight.
+	 */
+	private static int today() {
+		final long now = TimeProvider.currentTimeMillis();
+		final long local = now + TimeZone.getDefault().getOffset(now);
+		return (int) (local / TimeProvider.DAY);
+	}
+
+	/**
+	 * Starts a new day if midnight has passed.
+	 */
+	private void checkDay() {
+		final int day = today();
+		if (day != mDay) {
+			mDay = day;
+			mTraffic.clear();
+		}
+	}
+
+	/**
+	 * Sets the number of bytes which may be transferred per day over the
+	 * given connection type.
+	 * 
+	 * @param connection
+	 *            See {@link ConnectionGuru}
+	 * @param bytesPerDay
+	 *            {@link #UNLIMITED} removes the budget
+	 */
+	public synchronized void setBudget(int connection, long bytesPerDay) {
+		SQLiteDatabase db = mDbHelper.getWritableDatabase();
+		if (bytesPerDay < 0) {
+			mBudgets.remove(connection);
+			db.delete(ConnectivityDbHelper.TABLE_BUDGET,
+					ConnectivityDbHelper.KEY_CONNECTION + " = ?",
+					new String[] { Integer.toString(connection) });
+			return;
+		}
+
+		mBudgets.put(connection, bytesPerDay);
+		ContentValues values = new ContentValues();
+		values.put(ConnectivityDbHelper.KEY_CONNECTION, connection);
+		values.put(ConnectivityDbHelper.KEY_BYTES, bytesPerDay);
+		db.replace(ConnectivityDbHelper.TABLE_BUDGET, null, values);
+	}
+
+	/**
+	 * @return {@link #UNLIMITED} if there is no budget for the connection
+	 *         type
+	 */
+	public synchronized long getBudget(int connection) {
+		Long budget = mBudgets.get(connection);
+		return budget != null ? budget : UNLIMITED;
+	}
+
+	/**
+	 * Returns the number of bytes transferred over the connection type today.
+	 */
+	public synchronized long getTraffic(int connection) {
+		checkDay();
+		Long traffic = mTraffic.get(connection);
+		return traffic != null ? traffic : 0L;
+	}
+
+	/**
+	 * Returns the number of bytes which may still be transferred over the
+	 * connection type today.
+	 * 
+	 * @return {@link #UNLIMITED} if there is no budget for the connection
+	 *         type
+	 */
+	public synchronized long getRemaining(int connection) {
+		final long budget = getBudget(connection);
+		if (budget == UNLIMITED)
+			return UNLIMITED;
+		return Math.max(0L, budget - getTraffic(connection));
+	}
+
+	/**
+	 * Accounts a transfer.
+	 * 
+	 * @param bytes
+	 *            Number of bytes transferred (as on the wire)
+	 */
+	public void addTraffic(int connection, long bytes) {
+		if (bytes <= 0)
+			return;
+
+		final boolean due;
+		synchronized (this) {
+			final long traffic = getTraffic(connection) + bytes;
+			mTraffic.put(connection, traffic);
+
+			// the day is part of the values, so midnight loses nothing
+			ContentValues values = new ContentValues();
+			values.put(ConnectivityDbHelper.KEY_CONNECTION, connection);
+			values.put(ConnectivityDbHelper.KEY_DAY, mDay);
+			values.put(ConnectivityDbHelper.KEY_BYTES, traffic);
+			mChanged.put(mDay + "|" + connection, values);
+
+			final long budget = getBudget(connection);
+			if (budget != UNLIMITED && traffic >= budget
+					&& traffic - bytes < budget)
+				Log.i(TAG, "Budget of " + budget
+						+ " bytes spent for connection " + connection);
+
+			due = TimeProvider.currentTimeMillis() - mLastPersist
+					>= PERSIST_INTERVAL;
+		}
+
+		if (due)
+			persist();
+	}
+
+	/**
+	 * Writes the traffic changed since the last call into the database. The
+	 * update service calls this at the end of each session.
+	 */
+	public void persist() {
+		synchronized (mPersistLock) {
+			List<ContentValues> changed;
+			synchronized (this) {
+				mLastPersist = TimeProvider.currentTimeMillis();
+				if (mChanged.isEmpty())
+					return;
+
+				changed = new ArrayList<ContentValues>(mChanged.values());
+				mChanged.clear();
+			}
+
+			// written without blocking the accounting
+			SQLiteDatabase db = mDbHelper.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (ContentValues values : changed)
+					db.replace(ConnectivityDbHelper.TABLE_TRAFFIC, null,
+							values);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Sets the highest priority of the resources which are loaded even if the
+	 * budget is spent. Not persisted.
+	 * 
+	 * @param priority
+	 *            See {@link #DEFAULT_MAX_ESSENTIAL_PRIORITY}
+	 */
+	public void setMaxEssentialPriority(int priority) {
+		this.mMaxEssentialPriority = priority;
+	}
+
+	public int getMaxEssentialPriority() {
+		return mMaxEssentialPriority;
+	}
+
+	/**
+	 * Returns true if the resource should not be loaded over the connection
+	 * type today, as the budget is spent and the resource is not essential.
+	 */
+	public boolean shouldDefer(int connection, Resource r) {
+		return r.getConfig().getPriority() > mMaxEssentialPriority
+				&& getRemaining(connection) == 0L;
+	}
+}
@@ -0,0 +1,119 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.debug;
+
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.Resource;
+import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.caching.FileCacheProvider;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Counts the allocations caused by scanning the meta information of the
+ * {@link FileCacheProvider}. The cache is filled with many candidates for a
+ * single resource and afterwards the scanning methods are called repeatedly.
+ * 
+ * <p>
+ * Consider this class ONLY FOR DEBUGGING! It relies on the allocation counting
+ * of the Dalvik VM and therefore has to be run on a device or emulator.
+ * 
+ * @author Daniel
+ * 
+ */
+public class CacheScanBenchmark {
+
+	private static final String TAG = "CacheScanBenchmark";
+
+	private static final String CACHE_NAME = "benchmark_scan";
+
+	private static final int ROUNDS = 20;
+
+	/**
+	 * Runs the benchmark and logs the results.
+	 * 
+	 * @param candidates
+	 *            Number of cache entries created for the examined resource.
+	 */
+	@SuppressWarnings("deprecation")
+	public static void run(Context context, int candidates) {
+		FileCacheProvider cache = (FileCacheProvider) CacheProvider.getCache(
+				context, CacheProvider.METHOD_FILE, CACHE_NAME);
+		cache.clearCache();
+
+		// every entry has the same status, so all of them are kept
+		RawResource r = new RawResource("/benchmark/scan");
+		r.setData(new byte[64]);
+		r.setStatus(Resource.QUALITY_FAIR);
+		for (int i = 0; i < candidates; i++)
+			cache.cache(r);
+		Log.i(TAG, "Created " + candidates + " candidates.");
+
+		Debug.startAllocCounting();
+		try {
+			for (int m = 0; m < 3; m++) {
+				Debug.resetThreadAllocCount();
+				Debug.resetThreadAllocSize();
+				final long start = TimeProvider.currentTimeMillis();
+
+				for (int i = 0; i < ROUNDS; i++) {
+					switch (m) {
+					case 0:
+						cache.getCachingStatus(r);
+						break;
+					case 1:
+						cache.getTimestamp(r);
+						break;
+					default:
+						cache.fillResource(r);
+						break;
+					}
+				}
+
+				final long dur = TimeProvider.currentTimeMillis() - start;
+				final int cnt = Debug.getThreadAllocCount();
+				final int size = Debug.getThreadAllocSize();
+				final int scans = ROUNDS * candidates;
+
+				Log.i(TAG, String.format(Locale.ENGLISH,
+						"%s: %.1f objects and %.1f bytes per candidate, "
+								+ "%d ms per call", getMethodName(m),
+						(float) cnt / scans, (float) size / scans, dur
+								/ ROUNDS));
+			}
+		} finally {
+			Debug.stopAllocCounting();
+			cache.clearCache();
+			cache.close();
+		}
+	}
+
+	private static String getMethodName(int m) {
+		switch (m) {
+		case 0:
+			return "getCachingStatus";
+		case 1:
+			return "getTimestamp";
+		default:
+			return "fillResource";
+		}
+	}
+}
@@ -0,0 +1,650 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.connectivity.HttpResourceProxy;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * A minimal HTTP/1.1 authority running on the device itself. It serves
+ * resources from memory and understands everything the resource proxies
+ * expect from an authority: the timestamp parameter, conditional requests,
+ * byte ranges, keep-alive connections and batch requests (see
+ * {@link HttpResourceProxy#BATCH_PATH}). The connection and quality
+ * parameters of the UpdateWorkers are validated and counted.
+ * 
+ * <p>
+ * For load tests it can imitate a real backend: every response can be
+ * delayed by a fixed latency, the bodies can be sent with a limited bandwidth
+ * and a share of the requests can fail with an error code.
+ * 
+ * <p>
+ * Consider this class ONLY FOR DEBUGGING! It allows to run the update
+ * pipeline against a well known authority without any network.
+ * 
+ * @author Daniel
+ * 
+ */
+public class LocalAuthorityServer implements Runnable {
+
+	private static final String TAG = "LocalAuthorityServer";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final Map<String, Entry> mResources = new HashMap<String, Entry>();
+
+	private ServerSocket mServerSocket;
+
+	private volatile boolean mRunning = false;
+
+	/** Delay before each response in ms */
+	private volatile long mLatency = 0L;
+
+	/** Bytes per second sent on each connection, 0 for unlimited */
+	private volatile int mBandwidth = 0;
+
+	/** Share of the requests failing with mErrorCode */
+	private volatile float mErrorRate = 0f;
+	private volatile int mErrorCode = HttpStatus.SC_SERVICE_UNAVAILABLE;
+
+	private final Random mRandom = new Random();
+
+	// statistics
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mInjectedErrors = new AtomicLong();
+	private final Map<String, Integer> mParamCounts = new HashMap<String, Integer>();
+
+	/**
+	 * A single resource served by this authority
+	 */
+	private static class Entry {
+		final byte[] mData;
+		final String mETag;
+		final long mLastModified;
+
+		Entry(byte[] data, long lastModified) {
+			this.mData = data;
+			this.mETag = "\"" + Integer.toHexString(Arrays.hashCode(data))
+					+ "\"";
+			// HTTP dates only have a resolution of seconds
+			this.mLastModified = lastModified - lastModified
+					% TimeProvider.SECOND;
+		}
+	}
+
+	/**
+	 * Starts listening on the loopback interface.
+	 * 
+	 * @param port
+	 *            0 for any free port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		mServerSocket = new ServerSocket(port, 16,
+				InetAddress.getByName("127.0.0.1"));
+		mRunning = true;
+
+		Thread t = new Thread(this, TAG);
+		t.setDaemon(true);
+		t.start();
+		Log.i(TAG, "Listening on " + getAuthority());
+	}
+
+	public void stop() {
+		mRunning = false;
+		try {
+			if (mServerSocket != null)
+				mServerSocket.close();
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * Returns the authority to be used by the resource proxies.
+	 */
+	public Uri getAuthority() {
+		return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort());
+	}
+
+	/**
+	 * Adds or replaces the resource with the given path.
+	 */
+	public void putResource(String path, byte[] data) {
+		synchronized (mResources) {
+			mResources.put(path,
+					new Entry(data, TimeProvider.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Adds or replaces the resource with the given path by random content of
+	 * the given size.
+	 */
+	public void putResource(String path, int size) {
+		byte[] data = new byte[size];
+		synchronized (mRandom) {
+			mRandom.nextBytes(data);
+		}
+		putResource(path, data);
+	}
+
+	/**
+	 * Adds <code>count</code> resources of random content named
+	 * <code>prefix + i</code>.
+	 */
+	public void putResources(String prefix, int count, int size) {
+		for (int i = 0; i < count; i++)
+			putResource(prefix + i, size);
+	}
+
+	public void removeResource(String path) {
+		synchronized (mResources) {
+			mResources.remove(path);
+		}
+	}
+
+	private Entry getResource(String path) {
+		synchronized (mResources) {
+			return mResources.get(path);
+		}
+	}
+
+	/**
+	 * Delays every response by the given time.
+	 */
+	public void setLatency(long latency) {
+		this.mLatency = latency;
+	}
+
+	/**
+	 * Limits the rate the bodies are sent with on each connection.
+	 * 
+	 * @param bytesPerSecond
+	 *            0 for unlimited
+	 */
+	public void setBandwidth(int bytesPerSecond) {
+		this.mBandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Lets the given share of requests fail.
+	 * 
+	 * @param rate
+	 *            Between 0 (no errors) and 1 (all requests fail)
+	 * @param code
+	 *            HTTP status code of the failing responses, e.g. 503 for a
+	 *            transient error
+	 */
+	public void setErrorRate(float rate, int code) {
+		this.mErrorRate = rate;
+		this.mErrorCode = code;
+	}
+
+	/**
+	 * Returns the number of requests served, including batch requests and
+	 * injected errors.
+	 */
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/**
+	 * Returns the number of bytes sent including the headers.
+	 */
+	public long getBytesSent() {
+		return mBytesSent.get();
+	}
+
+	public long getInjectedErrorCount() {
+		return mInjectedErrors.get();
+	}
+
+	/**
+	 * Returns how often a value of the connection (<code>c</code>) or
+	 * expected quality (<code>q</code>) parameter has been received.
+	 * 
+	 * @param name
+	 *            {@link UpdateWorker#HTTP_PARAM_CONNECTION} or
+	 *            {@link UpdateWorker#HTTP_PARAM_EXPECTED_QUALITY}
+	 */
+	public int getParameterCount(String name, int value) {
+		synchronized (mParamCounts) {
+			Integer cnt = mParamCounts.get(name + "=" + value);
+			return cnt == null ? 0 : cnt;
+		}
+	}
+
+	public void resetStatistics() {
+		mRequests.set(0L);
+		mBytesSent.set(0L);
+		mInjectedErrors.set(0L);
+		synchronized (mParamCounts) {
+			mParamCounts.clear();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			try {
+				final Socket s = mServerSocket.accept();
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						handleConnection(s);
+					}
+				}, TAG + "_conn");
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				if (mRunning)
+					Log.w(TAG, "Accepting connection failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Serves requests on the connection until the client closes it.
+	 */
+	private void handleConnection(Socket s) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream(),
+					BUFFER_SIZE);
+			OutputStream out = new BufferedOutputStream(s.getOutputStream(),
+					BUFFER_SIZE);
+
+			while (mRunning) {
+				Request req = Request.read(in);
+				if (req == null)
+					break;
+
+				handleRequest(req, out);
+				out.flush();
+
+				if ("close".equalsIgnoreCase(req.getHeader("connection")))
+					break;
+			}
+		} catch (SocketException ignore) {
+			// client went away
+		} catch (IOException e) {
+			Log.w(TAG, "Serving connection failed", e);
+		} finally {
+			try {
+				s.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private void handleRequest(Request req, OutputStream out)
+			throws IOException {
+		Uri uri = Uri.parse(req.mTarget);
+		String path = uri.getPath();
+		mRequests.incrementAndGet();
+
+		if (!countParameter(uri, UpdateWorker.HTTP_PARAM_CONNECTION)
+				|| !countParameter(uri,
+						UpdateWorker.HTTP_PARAM_EXPECTED_QUALITY)) {
+			writeResponse(out, HttpStatus.SC_BAD_REQUEST, null, null);
+			return;
+		}
+
+		// imitate the backend
+		if (mLatency > 0) {
+			try {
+				Thread.sleep(mLatency);
+			} catch (InterruptedException e) {
+				throw new SocketException("Interrupted");
+			}
+		}
+		if (mErrorRate > 0f && nextFloat() < mErrorRate) {
+			mInjectedErrors.incrementAndGet();
+			writeResponse(out, mErrorCode, null, null);
+			return;
+		}
+
+		if ("POST".equals(req.mMethod)
+				&& ("/" + HttpResourceProxy.BATCH_PATH).equals(path)) {
+			handleBatch(req, out);
+			return;
+		}
+
+		if (!"GET".equals(req.mMethod)) {
+			writeResponse(out, HttpStatus.SC_METHOD_NOT_ALLOWED, null, null);
+			return;
+		}
+
+		Entry e = getResource(path);
+		if (e == null) {
+			writeResponse(out, HttpStatus.SC_NOT_FOUND, null, null);
+			return;
+		}
+
+		if (isNotModified(e, req.getHeader("if-none-match"),
+				getTimestamp(uri, req))) {
+			writeResponse(out, HttpStatus.SC_NOT_MODIFIED, e, null);
+			return;
+		}
+
+		// serve byte ranges unless the content has changed
+		String range = req.getHeader("range");
+		String ifRange = req.getHeader("if-range");
+		if (range != null && range.startsWith("bytes=")
+				&& (ifRange == null || ifRange.equals(e.mETag))) {
+			long first;
+			long last;
+			try {
+				final int dash = range.indexOf('-');
+				first = Long.parseLong(range.substring(6, dash).trim());
+				String end = range.substring(dash + 1).trim();
+				last = end.length() == 0 ? e.mData.length - 1 : Math.min(
+						Long.parseLong(end), e.mData.length - 1);
+			} catch (RuntimeException ex) {
+				first = -1;
+				last = -1;
+			}
+
+			if (first < 0 || first > last) {
+				writeResponse(out, 416, e, null);
+				return;
+			}
+
+			byte[] part = Arrays.copyOfRange(e.mData, (int) first,
+					(int) last + 1);
+			writeResponse(out, HttpStatus.SC_PARTIAL_CONTENT, e, part,
+					"Content-Range: bytes " + first + "-" + last + "/"
+							+ e.mData.length);
+			return;
+		}
+
+		writeResponse(out, HttpStatus.SC_OK, e, e.mData);
+	}
+
+	private void handleBatch(Request req, OutputStream out) throws IOException {
+		DataInputStream din = new DataInputStream(
+				new ByteArrayInputStream(req.mBody));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dout = new DataOutputStream(bos);
+
+		final int count = din.readInt();
+		for (int i = 0; i < count; i++) {
+			String path = din.readUTF();
+			long timestamp = din.readLong();
+			String eTag = din.readBoolean() ? din.readUTF() : null;
+
+			Entry e = getResource(path);
+			if (e == null) {
+				dout.writeInt(HttpStatus.SC_NOT_FOUND);
+			} else if (isNotModified(e, eTag, timestamp)) {
+				dout.writeInt(HttpStatus.SC_NOT_MODIFIED);
+			} else {
+				dout.writeInt(HttpStatus.SC_OK);
+				dout.writeBoolean(true);
+				dout.writeUTF(e.mETag);
+				dout.writeLong(e.mLastModified);
+				dout.writeInt(e.mData.length);
+				dout.write(e.mData);
+			}
+		}
+		dout.flush();
+
+		writeResponse(out, HttpStatus.SC_OK, null, bos.toByteArray(),
+				"Content-Type: " + HttpResourceProxy.BATCH_CONTENT_TYPE);
+	}
+
+	/**
+	 * Counts the value of the given integer parameter.
+	 * 
+	 * @return <code>false</code> if the value is malformed
+	 */
+	private boolean countParameter(Uri uri, String name) {
+		String value = uri.getQueryParameter(name);
+		if (value == null)
+			return true;
+
+		String key;
+		try {
+			key = name + "=" + Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+		synchronized (mParamCounts) {
+			Integer cnt = mParamCounts.get(key);
+			mParamCounts.put(key, cnt == null ? 1 : cnt + 1);
+		}
+		return true;
+	}
+
+	private float nextFloat() {
+		synchronized (mRandom) {
+			return mRandom.nextFloat();
+		}
+	}
+
+	private boolean isNotModified(Entry e, String eTag, long timestamp) {
+		if (eTag != null)
+			return eTag.equals(e.mETag);
+		return timestamp >= e.mLastModified;
+	}
+
+	/**
+	 * Returns the timestamp of the cached content as given by the query
+	 * parameter or the <code>If-Modified-Since</code> header.
+	 */
+	private long getTimestamp(Uri uri, Request req) {
+		long timestamp = 0L;
+		try {
+			String ts = uri.getQueryParameter(UpdateWorker.HTTP_PARAM_TIMESTAMP);
+			if (ts != null)
+				timestamp = Long.parseLong(ts);
+
+			String since = req.getHeader("if-modified-since");
+			if (since != null)
+				timestamp = Math.max(timestamp, getDateFormat().parse(since)
+						.getTime());
+		} catch (Exception ignore) {
+			// treat as unconditional request
+		}
+		return timestamp;
+	}
+
+	private void writeResponse(OutputStream out, int code, Entry e,
+			byte[] body, String... headers) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(code).append(' ')
+				.append(getReasonPhrase(code)).append("\r\n");
+		sb.append("Connection: keep-alive\r\n");
+		sb.append("Content-Length: ").append(body == null ? 0 : body.length)
+				.append("\r\n");
+		if (e != null) {
+			sb.append("ETag: ").append(e.mETag).append("\r\n");
+			sb.append("Last-Modified: ")
+					.append(getDateFormat().format(new Date(e.mLastModified)))
+					.append("\r\n");
+			sb.append("Accept-Ranges: bytes\r\n");
+		}
+		for (String header : headers)
+			sb.append(header).append("\r\n");
+		sb.append("\r\n");
+
+		byte[] head = sb.toString().getBytes("ISO-8859-1");
+		out.write(head);
+		mBytesSent.addAndGet(head.length);
+		if (body != null) {
+			writeBody(out, body);
+			mBytesSent.addAndGet(body.length);
+		}
+	}
+
+	/**
+	 * Writes the body, limited to the configured bandwidth.
+	 */
+	private void writeBody(OutputStream out, byte[] body) throws IOException {
+		final int bandwidth = mBandwidth;
+		if (bandwidth <= 0) {
+			out.write(body);
+			return;
+		}
+
+		// about 20 slices per second
+		final int slice = Math.max(512, bandwidth / 20);
+		final long start = TimeProvider.currentTimeMillis();
+		int pos = 0;
+		while (pos < body.length) {
+			final int len = Math.min(slice, body.length - pos);
+			out.write(body, pos, len);
+			out.flush();
+			pos += len;
+
+			// 1000, as there are 1000ms per second
+			final long due = start + 1000L * pos / bandwidth;
+			final long wait = due - TimeProvider.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					throw new SocketException("Interrupted");
+				}
+			}
+		}
+	}
+
+	private static String getReasonPhrase(int code) {
+		switch (code) {
+		case HttpStatus.SC_OK:
+			return "OK";
+		case HttpStatus.SC_PARTIAL_CONTENT:
+			return "Partial Content";
+		case HttpStatus.SC_NOT_MODIFIED:
+			return "Not Modified";
+		case HttpStatus.SC_BAD_REQUEST:
+			return "Bad Request";
+		case HttpStatus.SC_NOT_FOUND:
+			return "Not Found";
+		case HttpStatus.SC_METHOD_NOT_ALLOWED:
+			return "Method Not Allowed";
+		case 416:
+			return "Requested Range Not Satisfiable";
+		case HttpStatus.SC_SERVICE_UNAVAILABLE:
+			return "Service Unavailable";
+		default:
+			return "Error";
+		}
+	}
+
+	private static SimpleDateFormat getDateFormat() {
+		SimpleDateFormat df = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		df.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return df;
+	}
+
+	/**
+	 * A parsed HTTP request
+	 */
+	private static class Request {
+		String mMethod;
+		String mTarget;
+		final Map<String, String> mHeaders = new HashMap<String, String>();
+		byte[] mBody = new byte[0];
+
+		String getHeader(String lowerCaseName) {
+			return mHeaders.get(lowerCaseName);
+		}
+
+		/**
+		 * @return <code>null</code> if the connection has been closed
+		 */
+		static Request read(InputStream in) throws IOException {
+			String line = readLine(in);
+			if (line == null)
+				return null;
+
+			String[] parts = line.split(" ");
+			if (parts.length < 2)
+				throw new IOException("Malformed request line: " + line);
+
+			Request req = new Request();
+			req.mMethod = parts[0];
+			req.mTarget = parts[1];
+
+			while (true) {
+				line = readLine(in);
+				if (line == null || line.length() == 0)
+					break;
+
+				final int colon = line.indexOf(':');
+				if (colon > 0)
+					req.mHeaders.put(line.substring(0, colon).trim()
+							.toLowerCase(Locale.US), line.substring(colon + 1)
+							.trim());
+			}
+
+			String len = req.getHeader("content-length");
+			if (len != null) {
+				req.mBody = new byte[Integer.parseInt(len)];
+				new DataInputStream(in).readFully(req.mBody);
+			}
+
+			return req;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				int c = in.read();
+				if (c == -1)
+					return sb.length() == 0 ? null : sb.toString();
+				if (c == '\n')
+					break;
+				if (c != '\r')
+					sb.append((char) c);
+			}
+			return sb.toString();
+		}
+	}
+}
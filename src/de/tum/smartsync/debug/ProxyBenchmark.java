@@ -0,0 +1,170 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.debug;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.http.NameValuePair;
+
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.connectivity.DoNotUpdateException;
+import de.tum.smartsync.connectivity.HttpResourceProxy;
+import de.tum.smartsync.connectivity.NioResourceProxy;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Compares the blocking {@link HttpResourceProxy} with the
+ * {@link NioResourceProxy} by loading many small resources from a
+ * {@link LocalAuthorityServer}. The blocking proxy is run by several threads
+ * like the UpdateWorkers do, the non-blocking one by a single thread loading
+ * batches of {@link UpdateWorker#BATCH_SIZE} resources.
+ * 
+ * <p>
+ * Consider this class ONLY FOR DEBUGGING! The proxies are created without a
+ * context, so the measurements of the loopback interface do not end up in the
+ * bandwidth estimates.
+ * 
+ * @author Daniel
+ * 
+ */
+public class ProxyBenchmark {
+
+	private static final String TAG = "ProxyBenchmark";
+
+	private static final String PATH_PREFIX = "/benchmark/proxy/";
+
+	/**
+	 * Runs the benchmark and logs the results.
+	 * 
+	 * @param resources
+	 *            Number of resources loaded per run
+	 * @param size
+	 *            Size of each resource in bytes
+	 * @param threads
+	 *            Number of threads running the blocking proxy
+	 */
+	public static void run(int resources, int size, int threads)
+			throws IOException {
+		LocalAuthorityServer server = new LocalAuthorityServer();
+		server.start(0);
+		try {
+			for (int i = 0; i < resources; i++)
+				server.putResource(PATH_PREFIX + i, new byte[size]);
+			final Uri authority = server.getAuthority();
+
+			// warm up connections and code paths
+			runBlocking(authority, resources, threads);
+			runNio(authority, resources);
+
+			long dur = runBlocking(authority, resources, threads);
+			log("HttpResourceProxy (" + threads + " threads)", resources,
+					size, dur);
+
+			dur = runNio(authority, resources);
+			log("NioResourceProxy (1 thread)", resources, size, dur);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void log(String name, int resources, int size, long dur) {
+		Log.i(TAG, String.format(Locale.ENGLISH,
+				"%s: %d resources of %d bytes in %d ms (%.1f per second)",
+				name, resources, size, dur, 1000f * resources
+						/ Math.max(1, dur)));
+	}
+
+	private static List<RawResource> createResources(int resources) {
+		List<RawResource> list = new LinkedList<RawResource>();
+		for (int i = 0; i < resources; i++)
+			list.add(new RawResource(PATH_PREFIX + i));
+		return list;
+	}
+
+	private static long runBlocking(final Uri authority, int resources,
+			int threads) {
+		final List<RawResource> queue = createResources(resources);
+		final long start = TimeProvider.currentTimeMillis();
+
+		List<Thread> workers = new LinkedList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					HttpResourceProxy proxy = new HttpResourceProxy(authority,
+							null);
+					List<NameValuePair> params = new LinkedList<NameValuePair>();
+					while (true) {
+						RawResource r;
+						synchronized (queue) {
+							if (queue.isEmpty())
+								return;
+							r = queue.remove(0);
+						}
+						try {
+							proxy.doLoad(r, params);
+						} catch (IOException e) {
+							Log.w(TAG, "Loading failed", e);
+						} catch (DoNotUpdateException e) {
+							Log.w(TAG, "Loading failed", e);
+						}
+					}
+				}
+			}, TAG + "_" + i);
+			workers.add(t);
+			t.start();
+		}
+
+		for (Thread t : workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		return TimeProvider.currentTimeMillis() - start;
+	}
+
+	private static long runNio(Uri authority, int resources) {
+		List<RawResource> queue = createResources(resources);
+		NioResourceProxy proxy = new NioResourceProxy(authority, null);
+		List<NameValuePair> params = new LinkedList<NameValuePair>();
+		final long start = TimeProvider.currentTimeMillis();
+
+		while (!queue.isEmpty()) {
+			List<RawResource> batch = new LinkedList<RawResource>();
+			while (!queue.isEmpty() && batch.size() < UpdateWorker.BATCH_SIZE)
+				batch.add(queue.remove(0));
+
+			Exception[] results = proxy.doLoadBatch(batch, params,
+					new long[batch.size()]);
+			for (Exception e : results) {
+				if (e != null)
+					Log.w(TAG, "Loading failed", e);
+			}
+		}
+
+		return TimeProvider.currentTimeMillis() - start;
+	}
+}
@@ -0,0 +1,259 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.debug;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.background.ConcurrencyController;
+import de.tum.smartsync.background.ProgressListener;
+import de.tum.smartsync.background.UpdateNowService;
+import de.tum.smartsync.background.UpdateWorker;
+import de.tum.smartsync.caching.CacheProvider;
+import de.tum.smartsync.connectivity.ConnectionGuru;
+import de.tum.smartsync.connectivity.HttpResourceProxy;
+import de.tum.smartsync.connectivity.ResourceProxy;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Pushes many resources through the worker pipeline of the
+ * {@link UpdateNowService}: the resources are served by a
+ * {@link LocalAuthorityServer} and loaded by {@link UpdateWorker}s sharing a
+ * {@link ConcurrencyController}, exactly like <code>runWorkers(...)</code>
+ * does, and are stored in a cache of their own. The throughput, the latency
+ * percentiles of the requests and the bytes transferred are logged.
+ * 
+ * <p>
+ * The server can be configured before running a session (e.g. latency,
+ * bandwidth and error rate), so that the pipeline can be examined under the
+ * conditions of a real backend.
+ * 
+ * <p>
+ * Consider this class ONLY FOR DEBUGGING! It runs on the device and needs a
+ * connection to be available, as the workers check it before loading.
+ * 
+ * @author Daniel
+ * 
+ */
+public class SyncLoadGenerator {
+
+	private static final String TAG = "SyncLoadGenerator";
+
+	private static final String CACHE_NAME = "loadgenerator";
+
+	private static final String PATH_PREFIX = "/loadgenerator/";
+
+	private final Context mContext;
+
+	private final LocalAuthorityServer mServer = new LocalAuthorityServer();
+
+	private int mResources = 0;
+
+	/**
+	 * Starts the server. Has to be stopped by <code>stop()</code>.
+	 */
+	public SyncLoadGenerator(Context context) throws IOException {
+		this.mContext = context;
+		mServer.start(0);
+	}
+
+	/**
+	 * Returns the server, e.g. for injecting latency or errors.
+	 */
+	public LocalAuthorityServer getServer() {
+		return mServer;
+	}
+
+	/**
+	 * Replaces the resources served by the authority.
+	 * 
+	 * @param count
+	 *            Number of resources
+	 * @param size
+	 *            Size of each resource in bytes
+	 */
+	public void setResources(int count, int size) {
+		for (int i = count; i < mResources; i++)
+			mServer.removeResource(PATH_PREFIX + i);
+		mServer.putResources(PATH_PREFIX, count, size);
+		mResources = count;
+	}
+
+	public void stop() {
+		mServer.stop();
+	}
+
+	/**
+	 * Loads all resources once and logs the results.
+	 * 
+	 * @param proxyMethod
+	 *            {@link ResourceProxy#METHOD_HTTP} or
+	 *            {@link ResourceProxy#METHOD_HTTP_NIO}
+	 * @param maxWorkers
+	 *            Maximum number of concurrent workers
+	 * @param clearCache
+	 *            <code>false</code> for conditional requests of the resources
+	 *            loaded by the previous session
+	 */
+	public void runSession(int proxyMethod, int maxWorkers,
+			boolean clearCache) {
+		CacheProvider cache = CacheProvider.getCache(mContext,
+				CacheProvider.METHOD_SQL, CACHE_NAME);
+		if (clearCache)
+			cache.clearCache();
+
+		final Uri authority = mServer.getAuthority();
+		final byte[] proxyExtra = new HttpResourceProxy(authority, null)
+				.getProxyExtra();
+
+		List<RawResource> workQueue = new LinkedList<RawResource>();
+		for (int i = 0; i < mResources; i++)
+			workQueue.add(new RawResource(PATH_PREFIX + i));
+
+		final int conn = new ConnectionGuru(mContext).getCurrentConnection();
+		RecordingController controller = new RecordingController(conn,
+				maxWorkers, mResources);
+		Counter counter = new Counter();
+		ReentrantLock lockQueue = new ReentrantLock();
+		ReentrantLock lockCache = new ReentrantLock();
+
+		mServer.resetStatistics();
+		final long start = TimeProvider.currentTimeMillis();
+
+		LinkedList<Thread> workers = new LinkedList<Thread>();
+		for (int i = 0; i < maxWorkers; i++) {
+			UpdateWorker worker = new UpdateWorker(mContext, lockCache, cache,
+					lockQueue, workQueue, proxyMethod, proxyExtra, counter,
+					controller);
+			Thread t = new Thread(worker, TAG + "_" + i);
+			workers.add(t);
+			t.start();
+		}
+
+		for (Thread t : workers) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		final long dur = Math.max(1, TimeProvider.currentTimeMillis() - start);
+		cache.close();
+
+		final long[] latencies = controller.getLatencies();
+		Log.i(TAG, String.format(Locale.ENGLISH,
+				"%d resources with %d workers (final limit %d) in %d ms: "
+						+ "%.1f resources/s, %.1f kB/s, "
+						+ "%d updated, %d errors",
+				mResources, maxWorkers, controller.getLimit(), dur,
+				1000f * counter.mUpdated.get() / dur,
+				mServer.getBytesSent() / 1.024f / dur,
+				counter.mUpdated.get(), counter.mErrors.get()));
+		Log.i(TAG, String.format(Locale.ENGLISH,
+				"%d requests (%d served, %d injected errors), "
+						+ "latency p50 %d ms, p90 %d ms, p99 %d ms, "
+						+ "max %d ms, %d bytes sent",
+				latencies.length, mServer.getRequestCount(),
+				mServer.getInjectedErrorCount(),
+				percentile(latencies, 0.5f), percentile(latencies, 0.9f),
+				percentile(latencies, 0.99f), percentile(latencies, 1f),
+				mServer.getBytesSent()));
+	}
+
+	/**
+	 * @param sorted
+	 *            Values in ascending order
+	 * @return -1 if there are no values
+	 */
+	private static long percentile(long[] sorted, float p) {
+		if (sorted.length == 0)
+			return -1;
+
+		final int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	/**
+	 * Records the latency of each request the workers report, i.e. the time
+	 * until its response headers arrived.
+	 */
+	private static class RecordingController extends ConcurrencyController {
+
+		private final long[] mLatencies;
+		private int mCount = 0;
+
+		RecordingController(int connection, int maxWorkers, int capacity) {
+			super(connection, maxWorkers);
+			this.mLatencies = new long[capacity];
+		}
+
+		@Override
+		public void release(long bytes, long latency, boolean error) {
+			synchronized (mLatencies) {
+				if (latency >= 0 && mCount < mLatencies.length)
+					mLatencies[mCount++] = latency;
+			}
+			super.release(bytes, latency, error);
+		}
+
+		/**
+		 * Returns the recorded latencies in ascending order.
+		 */
+		long[] getLatencies() {
+			synchronized (mLatencies) {
+				long[] sorted = Arrays.copyOf(mLatencies, mCount);
+				Arrays.sort(sorted);
+				return sorted;
+			}
+		}
+	}
+
+	/**
+	 * Counts the outcome of the resources instead of broadcasting it.
+	 */
+	private static class Counter implements ProgressListener {
+
+		final AtomicInteger mUpdated = new AtomicInteger();
+		final AtomicInteger mErrors = new AtomicInteger();
+
+		@Override
+		public void onProgress(String currentUri, int byteCnt, int progress,
+				int bytesPerSecond, int decodedCnt) {
+		}
+
+		@Override
+		public void updatedResource(String uri) {
+			mUpdated.incrementAndGet();
+		}
+
+		@Override
+		public void onError(String uri, String message) {
+			mErrors.incrementAndGet();
+			Log.v(TAG, "Error for " + uri + ": " + message);
+		}
+	}
+}
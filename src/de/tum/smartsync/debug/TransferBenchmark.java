@@ -0,0 +1,125 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.debug;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.http.NameValuePair;
+
+import android.os.Debug;
+import android.util.Log;
+import de.tum.smartsync.RawResource;
+import de.tum.smartsync.connectivity.ConnectionGuru;
+import de.tum.smartsync.connectivity.DoNotUpdateException;
+import de.tum.smartsync.connectivity.HttpResourceProxy;
+import de.tum.smartsync.helper.BufferPool;
+import de.tum.smartsync.helper.TimeProvider;
+
+/**
+ * <p>
+ * Measures the throughput and the allocations of loading resources from a
+ * {@link LocalAuthorityServer} with the transfer buffers of the
+ * {@link BufferPool}. The resource proxy is run once for each connection
+ * type, as the buffer sizes depend on it.
+ * 
+ * <p>
+ * Consider this class ONLY FOR DEBUGGING! It relies on the allocation counting
+ * of the Dalvik VM and therefore has to be run on a device or emulator.
+ * 
+ * @author Daniel
+ * 
+ */
+public class TransferBenchmark {
+
+	private static final String TAG = "TransferBenchmark";
+
+	private static final String PATH = "/benchmark/transfer";
+
+	private static final int[] CONNECTIONS = new int[] {
+			ConnectionGuru.CONNECTION_MOBILE_SLOW,
+			ConnectionGuru.CONNECTION_MOBILE_FAST,
+			ConnectionGuru.CONNECTION_WIFI };
+
+	/**
+	 * Runs the benchmark and logs the results.
+	 * 
+	 * @param size
+	 *            Size of the resource in bytes
+	 * @param rounds
+	 *            Number of times the resource is loaded per connection type
+	 */
+	@SuppressWarnings("deprecation")
+	public static void run(int size, int rounds) throws IOException {
+		LocalAuthorityServer server = new LocalAuthorityServer();
+		server.start(0);
+
+		// no context: the loopback measurements are not recorded
+		HttpResourceProxy proxy = new HttpResourceProxy(
+				server.getAuthority(), null);
+		List<NameValuePair> params = new LinkedList<NameValuePair>();
+
+		Debug.startAllocCounting();
+		try {
+			server.putResource(PATH, new byte[size]);
+
+			for (int conn : CONNECTIONS) {
+				proxy.setCurrentConnection(conn);
+
+				// warm up connection and pool
+				load(proxy, params);
+				BufferPool.clear();
+				Debug.resetThreadAllocCount();
+				Debug.resetThreadAllocSize();
+				final long start = TimeProvider.currentTimeMillis();
+
+				for (int i = 0; i < rounds; i++)
+					load(proxy, params);
+
+				final long dur = Math.max(1,
+						TimeProvider.currentTimeMillis() - start);
+				final int cnt = Debug.getThreadAllocCount();
+				final int alloc = Debug.getThreadAllocSize();
+
+				Log.i(TAG, String.format(Locale.ENGLISH,
+						"%s: %.1f MB/s, buffers of %d bytes, "
+								+ "%d pool hits, %d misses, "
+								+ "%.1f objects and %.1f kB per load",
+						ConnectionGuru.getDescription(conn), (float) size
+								* rounds / dur / 1000f,
+						BufferPool.getTransferSize(conn, size),
+						BufferPool.getHits(), BufferPool.getMisses(),
+						(float) cnt / rounds, alloc / 1024f / rounds));
+			}
+		} finally {
+			Debug.stopAllocCounting();
+			server.stop();
+		}
+	}
+
+	private static void load(HttpResourceProxy proxy,
+			List<NameValuePair> params) throws IOException {
+		RawResource r = new RawResource(PATH);
+		try {
+			proxy.doLoad(r, params);
+		} catch (DoNotUpdateException e) {
+			throw new IOException("Resource has not been loaded: "
+					+ e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,187 @@
+// SmartSync is an Android Framework for Smart Mobile Synchronization
+// Copyright (C) 2013 Daniel Hugenroth
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package de.tum.smartsync.helper;
+
+import de.tum.smartsync.connectivity.ConnectionGuru;
+
+/**
+ * <p>
+ * A process wide pool of transfer buffers shared by the resource proxies and
+ * the cache providers. Buffers are handed out in a few size classes and kept
+ * after use, so that copying streams does not allocate a new buffer per call.
+ * The number of pooled buffers per size class is bounded.
+ * 
+ * <p>
+ * The size of a transfer buffer should match the connection: a few kB are
+ * enough for a slow mobile connection, whereas WIFI delivers much more per
+ * read call. See <code>getTransferSize(...)</code>.
+ * 
+ * <p>
+ * Usage: <code>byte[] buf = BufferPool.acquire(size);</code> and
+ * <code>BufferPool.release(buf);</code> in a finally block. A buffer must not
+ * be used any more after it has been released.
+ * 
+ * @author Daniel
+ * 
+ */
+public class BufferPool {
+
+	/** The size classes of the buffers handed out */
+	private static final int[] SIZES = new int[] { 4 * 1024, 16 * 1024,
+			64 * 1024 };
+
+	/** Maximum number of pooled buffers per size class */
+	private static final int[] CAPACITIES = new int[] { 16, 8, 4 };
+
+	public static final int MIN_SIZE = SIZES[0];
+	public static final int MAX_SIZE = SIZES[SIZES.length - 1];
+
+	private static final byte[][][] sFree = new byte[SIZES.length][][];
+	private static final int[] sFreeCount = new int[SIZES.length];
+
+	static {
+		for (int i = 0; i < SIZES.length; i++)
+			sFree[i] = new byte[CAPACITIES[i]][];
+	}
+
+	private static int sHits = 0;
+	private static int sMisses = 0;
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Returns the buffer size suitable for transferring content over the given
+	 * connection.
+	 * 
+	 * @param connection
+	 *            See {@link ConnectionGuru}
+	 * @param contentLen
+	 *            Length of the content or -1 if unknown. Small content does
+	 *            not need a large buffer.
+	 */
+	public static int getTransferSize(int connection, long contentLen) {
+		int size;
+		switch (connection) {
+		case ConnectionGuru.CONNECTION_WIFI:
+			size = SIZES[2];
+			break;
+		case ConnectionGuru.CONNECTION_MOBILE_FAST:
+			size = SIZES[1];
+			break;
+		default:
+			size = SIZES[0];
+			break;
+		}
+
+		if (contentLen >= 0 && contentLen < size)
+			size = (int) Math.max(MIN_SIZE, contentLen);
+		return size;
+	}
+
+	/**
+	 * Returns a buffer for transferring content over the given connection.
+	 * 
+	 * @param contentLen
+	 *            Length of the content or -1 if unknown
+	 */
+	public static byte[] acquire(int connection, long contentLen) {
+		return acquire(getTransferSize(connection, contentLen));
+	}
+
+	/**
+	 * Returns a buffer with at least the given size (or {@link #MAX_SIZE} if
+	 * more is requested). The buffer might contain data of its former use.
+	 */
+	public static byte[] acquire(int size) {
+		final int c = getSizeClass(size);
+
+		synchronized (sFree) {
+			if (sFreeCount[c] > 0) {
+				sHits++;
+				final int i = --sFreeCount[c];
+				byte[] buf = sFree[c][i];
+				sFree[c][i] = null;
+				return buf;
+			}
+			sMisses++;
+		}
+
+		return new byte[SIZES[c]];
+	}
+
+	/**
+	 * Gives a buffer back to the pool. Buffers which have not been handed out
+	 * by this pool are ignored.
+	 * 
+	 * @param buf
+	 *            Might be <code>null</code>
+	 */
+	public static void release(byte[] buf) {
+		if (buf == null)
+			return;
+
+		final int c = getSizeClass(buf.length);
+		if (SIZES[c] != buf.length)
+			return;
+
+		synchronized (sFree) {
+			if (sFreeCount[c] < CAPACITIES[c])
+				sFree[c][sFreeCount[c]++] = buf;
+		}
+	}
+
+	private static int getSizeClass(int size) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (size <= SIZES[i])
+				return i;
+		}
+		return SIZES.length - 1;
+	}
+
+	/**
+	 * Returns the number of requests served by a pooled buffer.
+	 */
+	public static int getHits() {
+		synchronized (sFree) {
+			return sHits;
+		}
+	}
+
+	/**
+	 * Returns the number of requests which needed a new buffer.
+	 */
+	public static int getMisses() {
+		synchronized (sFree) {
+			return sMisses;
+		}
+	}
+
+	/**
+	 * Drops all pooled buffers and resets the statistics.
+	 */
+	public static void clear() {
+		synchronized (sFree) {
+			for (int c = 0; c < SIZES.length; c++) {
+				for (int i = 0; i < sFreeCount[c]; i++)
+					sFree[c][i] = null;
+				sFreeCount[c] = 0;
+			}
+			sHits = 0;
+			sMisses = 0;
+		}
+	}
+}
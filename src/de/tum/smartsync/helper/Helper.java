@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Locale;
@@ -221,33 +222,76 @@ public class Helper {
 	 * 
 	 * @param size
 	 *            If the size is known this value can be used to read more
-	 *            efficient. Otherwise set it to -1.
+	 *            efficient: the stream is then read directly into an array of
+	 *            exactly this size. Otherwise set it to -1.
 	 * @return
 	 * @throws IOException
 	 */
 	public static byte[] readStreamIntoArray(InputStream in, int size)
 			throws IOException {
+		if (size == 0)
+			return new byte[0];
+
 		ByteArrayOutputStream bos;
-		if (size > 0)
-			bos = new ByteArrayOutputStream(size);
-		else
+		if (size > 0) {
+			byte[] data = new byte[size];
+			final int len = readFully(in, data, 0, size);
+
+			if (len < size)
+				return Arrays.copyOf(data, len);
+
+			// the common case: the size was right
+			final int next = in.read();
+			if (next == -1)
+				return data;
+
+			// there is more: continue the slow way
+			bos = new ByteArrayOutputStream(2 * size);
+			bos.write(data, 0, len);
+			bos.write(next);
+		} else {
 			bos = new ByteArrayOutputStream();
+		}
 
-		byte buf[] = new byte[4 * 1024];
-		while (true) {
-			int len = in.read(buf);
+		byte buf[] = BufferPool.acquire(BufferPool.MAX_SIZE);
+		try {
+			while (true) {
+				int len = in.read(buf);
 
-			// finished reading
-			if (len == -1)
-				break;
+				// finished reading
+				if (len == -1)
+					break;
 
-			// transport to buffer
-			bos.write(buf, 0, len);
+				// transport to buffer
+				bos.write(buf, 0, len);
+			}
+		} finally {
+			BufferPool.release(buf);
 		}
 		bos.flush();
 		return bos.toByteArray();
 	}
 
+	/**
+	 * Reads from the input stream until the given range of the array is filled
+	 * or the stream has ended.
+	 * 
+	 * @return Number of bytes read, less than <code>len</code> only if the
+	 *         stream has ended
+	 * @throws IOException
+	 */
+	public static int readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		int pos = 0;
+		while (pos < len) {
+			final int n = in.read(b, off + pos, len - pos);
+			if (n == -1)
+				break;
+			pos += n;
+		}
+		return pos;
+	}
+
 	public static final int FILE_SIZE_UNKOWN = -1;
 
 	/**